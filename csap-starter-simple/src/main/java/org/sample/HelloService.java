@@ -11,6 +11,7 @@ import javax.inject.Inject;
 import javax.servlet.http.HttpSession;
 
 import org.csap.CsapMonitor;
+import org.csap.alerts.ServiceAgreement;
 import org.jasypt.encryption.pbe.StandardPBEStringEncryptor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,6 +34,7 @@ public class HelloService {
 	private ObjectMapper jacksonMapper = new ObjectMapper();
 
 	@RequestMapping(value = { "/hello", "/helloNoSecurity" })
+	@ServiceAgreement(maxTime = 500, p99 = 100)
 	public String hello () {
 
 		logger.info( "simple log" );
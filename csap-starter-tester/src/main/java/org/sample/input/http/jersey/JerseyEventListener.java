@@ -1,14 +1,18 @@
 package org.sample.input.http.jersey;
 
 
+import java.util.List;
+
 import javax.ws.rs.ext.Provider;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.csap.integations.RouteMetrics;
 import org.glassfish.jersey.server.monitoring.ApplicationEvent;
 import org.glassfish.jersey.server.monitoring.ApplicationEventListener;
 import org.glassfish.jersey.server.monitoring.RequestEvent;
 import org.glassfish.jersey.server.monitoring.RequestEventListener;
+import org.glassfish.jersey.uri.UriTemplate;
 
 @Provider
 public class JerseyEventListener implements ApplicationEventListener {
@@ -33,9 +37,15 @@ public class JerseyEventListener implements ApplicationEventListener {
 		// return the listener instance that will handle this request.
 		return new RequestEventListener() {
 
+			private final long startNanos = System.nanoTime();
+
 			@Override
 			public void onEvent(RequestEvent event) {
 
+				if (event.getType() == RequestEvent.Type.FINISHED) {
+					recordRoute(event, System.nanoTime() - startNanos);
+				}
+
 				if (logger.isDebugEnabled()) {
 					logger.debug("Event type: " + event.getType() + " Event path " + event.getUriInfo().getPath());
 				}
@@ -49,4 +59,39 @@ public class JerseyEventListener implements ApplicationEventListener {
 		};
 	}
 
+	/**
+	 * 
+	 * Timers by resource template, eg. http.route.GET.jersey.helloJaxrs.<id>
+	 * 
+	 */
+	private void recordRoute(RequestEvent event, long nanos) {
+
+		RouteMetrics routeMetrics = RouteMetrics.getActive();
+		if (routeMetrics == null) {
+			return;
+		}
+
+		// matched templates are last matched first
+		List<UriTemplate> templates = event.getUriInfo().getMatchedTemplates();
+		StringBuilder pattern = new StringBuilder(JERSEY_PATH);
+		for (int i = templates.size() - 1; i >= 0; i--) {
+			String template = templates.get(i).getTemplate();
+			if (!template.startsWith("/")) {
+				pattern.append('/');
+			}
+			pattern.append(template);
+		}
+
+		if (templates.isEmpty()) {
+			pattern.append('/').append(RouteMetrics.UNMATCHED);
+		}
+
+		int status = event.getContainerResponse() == null ? 500 : event.getContainerResponse().getStatus();
+
+		routeMetrics.record(event.getContainerRequest().getMethod(), pattern.toString(), status, nanos);
+	}
+
+	// Csap_Tester_Application.JerseyConfig @ApplicationPath
+	private final static String JERSEY_PATH = "/jersey";
+
 }
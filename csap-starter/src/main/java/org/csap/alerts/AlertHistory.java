@@ -0,0 +1,198 @@
+package org.csap.alerts;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.csap.alerts.AlertInstance.AlertItem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ *
+ * Fixed size store for alerts that have been triggered. Alerts are stored in
+ * columns (primitive timestamps and counts, shared strings for ids) in a ring
+ * buffer: adding an alert is O(1), and once capacity is reached the oldest
+ * alert is overwritten.
+ *
+ * All access is synchronized; readers get a snapshot built from the columns.
+ *
+ * @author pnightin
+ *
+ */
+public class AlertHistory {
+
+	final static Logger logger = LoggerFactory.getLogger( AlertHistory.class );
+
+	private static final long NOT_SET = Long.MIN_VALUE;
+
+	private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter
+		.ofPattern( "HH:mm:ss , MMM d" )
+		.withZone( ZoneId.systemDefault() );
+
+	private final int capacity;
+
+	private final long[] timestamps;
+	private final int[] counts;
+	private final long[] collected;
+	private final long[] limits;
+	private final String[] ids;
+	private final String[] types;
+	private final String[] hosts;
+	private final String[] services;
+	private final String[] descriptions;
+
+	// next slot to write, and number of valid slots
+	private int head = 0;
+	private int size = 0;
+	private long totalAdded = 0;
+
+	// ids, types, hosts and services repeat - share a single instance
+	private Map<String, String> sharedStrings = new HashMap<>();
+
+	public AlertHistory( int capacity ) {
+
+		this.capacity = Math.max( 1, capacity );
+
+		timestamps = new long[this.capacity];
+		counts = new int[this.capacity];
+		collected = new long[this.capacity];
+		limits = new long[this.capacity];
+		ids = new String[this.capacity];
+		types = new String[this.capacity];
+		hosts = new String[this.capacity];
+		services = new String[this.capacity];
+		descriptions = new String[this.capacity];
+	}
+
+	/**
+	 *
+	 * @param alertItem
+	 *            json using AlertItem fields
+	 */
+	public synchronized void add ( JsonNode alertItem ) {
+
+		int slot = head;
+
+		timestamps[slot] = alertItem.path( AlertItem.timestamp.json ).asLong( System.currentTimeMillis() );
+		counts[slot] = alertItem.path( AlertItem.count.json ).asInt( 1 );
+		ids[slot] = share( textOrNull( alertItem, AlertItem.id ) );
+		types[slot] = share( textOrNull( alertItem, AlertItem.type ) );
+		hosts[slot] = share( textOrNull( alertItem, AlertItem.host ) );
+		services[slot] = share( textOrNull( alertItem, AlertItem.service ) );
+		descriptions[slot] = textOrNull( alertItem, AlertItem.description );
+		collected[slot] = alertItem.has( AlertItem.collected.json ) ? alertItem.get( AlertItem.collected.json ).asLong() : NOT_SET;
+		limits[slot] = alertItem.has( AlertItem.limit.json ) ? alertItem.get( AlertItem.limit.json ).asLong() : NOT_SET;
+
+		head = (head + 1) % capacity;
+		if ( size < capacity ) {
+			size++;
+		}
+		totalAdded++;
+	}
+
+	public synchronized void addAll ( Iterable<? extends JsonNode> alertItems ) {
+		for ( JsonNode alertItem : alertItems ) {
+			add( alertItem );
+		}
+	}
+
+	/**
+	 *
+	 * @param sinceMs
+	 *            only alerts with a timestamp after are included, use 0 for
+	 *            all
+	 * @return alerts ordered oldest to newest
+	 */
+	public synchronized ArrayNode snapshot ( ObjectMapper jacksonMapper, long sinceMs ) {
+
+		ArrayNode alerts = jacksonMapper.createArrayNode();
+
+		int oldest = (head - size + capacity) % capacity;
+		for ( int i = 0; i < size; i++ ) {
+			int slot = (oldest + i) % capacity;
+			if ( timestamps[slot] < sinceMs ) {
+				continue;
+			}
+			addItem( alerts.addObject(), slot );
+		}
+
+		return alerts;
+	}
+
+	private void addItem ( ObjectNode item, int slot ) {
+
+		item.put( AlertItem.id.json, ids[slot] );
+		item.put( AlertItem.type.json, types[slot] );
+		if ( hosts[slot] != null ) {
+			item.put( AlertItem.host.json, hosts[slot] );
+		}
+		if ( services[slot] != null ) {
+			item.put( AlertItem.service.json, services[slot] );
+		}
+		if ( collected[slot] != NOT_SET ) {
+			item.put( AlertItem.collected.json, collected[slot] );
+		}
+		if ( limits[slot] != NOT_SET ) {
+			item.put( AlertItem.limit.json, limits[slot] );
+		}
+		if ( descriptions[slot] != null ) {
+			item.put( AlertItem.description.json, descriptions[slot] );
+		}
+		item.put( AlertItem.formatedTime.json, TIME_FORMAT.format( Instant.ofEpochMilli( timestamps[slot] ) ) );
+		item.put( AlertItem.timestamp.json, timestamps[slot] );
+		item.put( AlertItem.count.json, counts[slot] );
+	}
+
+	private String textOrNull ( JsonNode alertItem, AlertItem field ) {
+		JsonNode value = alertItem.get( field.json );
+		if ( value == null || value.isNull() ) {
+			return null;
+		}
+		return value.asText();
+	}
+
+	private String share ( String value ) {
+		if ( value == null ) {
+			return null;
+		}
+
+		// values still referenced by slots are unaffected by a reset
+		if ( sharedStrings.size() > capacity ) {
+			logger.debug( "Resetting shared strings: {}", sharedStrings.size() );
+			sharedStrings = new HashMap<>();
+		}
+
+		String shared = sharedStrings.putIfAbsent( value, value );
+		return shared != null ? shared : value;
+	}
+
+	public synchronized int size () {
+		return size;
+	}
+
+	public int getCapacity () {
+		return capacity;
+	}
+
+	/**
+	 *
+	 * @return alerts added since startup, including those overwritten
+	 */
+	public synchronized long getTotalAdded () {
+		return totalAdded;
+	}
+
+	@Override
+	public String toString () {
+		return "AlertHistory capacity: " + capacity + " size: " + size() + " total: " + getTotalAdded();
+	}
+
+}
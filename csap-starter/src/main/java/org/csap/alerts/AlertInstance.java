@@ -29,25 +29,51 @@ public class AlertInstance {
 
 		static public boolean isSameId ( JsonNode a, JsonNode b ) {
 
-			String first = a.get( AlertItem.id.json ).asText() +
-					a.get( AlertItem.type.json ).asText();
-			if ( a.has( AlertItem.host.json ) ) {
-				first += a.get( AlertItem.host.json ).asText() +
-						a.get( AlertItem.service.json ).asText();
-			}
-			
-
-			String second = b.get( AlertItem.id.json ).asText() + b.get( AlertItem.type.json ).asText();
-			
 			// support for extended compares if host and service are added (CSAP admin)
-			if ( b.has( AlertItem.host.json ) ) {
-				second += b.get( AlertItem.host.json ).asText() +
-						b.get( AlertItem.service.json ).asText();
+			boolean isSame = text( a, id ).equals( text( b, id ) )
+					&& text( a, type ).equals( text( b, type ) )
+					&& text( a, host ).equals( text( b, host ) )
+					&& text( a, service ).equals( text( b, service ) );
+
+			logger.debug( "a: {}, b: {}, isSame: {} ", a, b, isSame );
+
+			return isSame;
+		}
+
+		private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+		private static final long FNV_PRIME = 0x100000001b3L;
+
+		/**
+		 * 
+		 * 64 bit FNV-1a hash of the fields used by isSameId, computed without
+		 * building intermediate strings.
+		 * 
+		 */
+		static public long fingerprint ( JsonNode alert ) {
+
+			long hash = FNV_OFFSET;
+			for ( AlertItem field : IDENTITY_FIELDS ) {
+				String value = text( alert, field );
+				for ( int i = 0; i < value.length(); i++ ) {
+					hash ^= value.charAt( i );
+					hash *= FNV_PRIME;
+				}
+				// field separator
+				hash ^= 0xff;
+				hash *= FNV_PRIME;
 			}
-			
-			logger.debug("first: {}, second: {} ", first, second) ;
 
-			return first.equals( second );
+			return hash;
+		}
+
+		private static final AlertItem[] IDENTITY_FIELDS = { id, type, host, service };
+
+		private static String text ( JsonNode alert, AlertItem field ) {
+			JsonNode value = alert.get( field.json );
+			if ( value == null ) {
+				return "";
+			}
+			return value.asText();
 		}
 	}
 
@@ -69,8 +95,26 @@ public class AlertInstance {
 	private long occurencesMin = Long.MIN_VALUE;
 	private long meanTime = Long.MAX_VALUE;
 
-	private boolean pendingFirstCollection = true;
-	private Sample lastCollectedSample = null;
+	// percentile limits, in percentileUnits
+	private long p50 = Long.MAX_VALUE;
+	private long p90 = Long.MAX_VALUE;
+	private long p99 = Long.MAX_VALUE;
+	private long p999 = Long.MAX_VALUE;
+	private String percentileUnits = TimeUnit.MILLISECONDS.name();
+	private long[] percentileNanos = { Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE };
+
+	public final static double[] PERCENTILES = { 50, 90, 99, 99.9 };
+	public final static String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p999" };
+
+	// written by collection, read by health check threads
+	private volatile boolean pendingFirstCollection = true;
+	private volatile Sample lastCollectedSample = null;
+	private volatile LatencyHistogram.Snapshot lastHistogramTotals = null;
+	private volatile LatencyHistogram.Snapshot lastCollectedHistogram = null;
+
+	// exact invocations of monitored methods, -1 if not monitored
+	private volatile long lastInvocationTotal = -1;
+	private volatile long lastCollectedInvocations = -1;
 	
 	private CustomHealth customHealth = null;
 
@@ -94,6 +138,81 @@ public class AlertInstance {
 		setMeanTimeNano( CsapSimpleCache.parseTimeUnit( getMeanUnits(), TimeUnit.MILLISECONDS ).toNanos( getMeanTime() ) );
 		setMaxTimeNano( CsapSimpleCache.parseTimeUnit( getMaxUnits(), TimeUnit.MILLISECONDS ).toNanos( getMaxTime() ) );
 
+		TimeUnit percentileTimeUnit = CsapSimpleCache.parseTimeUnit( getPercentileUnits(), TimeUnit.MILLISECONDS );
+		long[] limits = { p50, p90, p99, p999 };
+		for ( int i = 0; i < limits.length; i++ ) {
+			percentileNanos[i] = limits[i] == Long.MAX_VALUE ? Long.MAX_VALUE : percentileTimeUnit.toNanos( limits[i] );
+		}
+
+	}
+
+	/**
+	 * 
+	 * @return true if any of p50, p90, p99, p999 are set: a latency histogram
+	 *         is recorded for the stopwatch
+	 */
+	public boolean isPercentileLimited () {
+		for ( long limit : percentileNanos ) {
+			if ( limit < Long.MAX_VALUE ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 
+	 * @return limits in nanos, ordered as PERCENTILES
+	 */
+	public long[] getPercentileNanos () {
+		return percentileNanos;
+	}
+
+	/**
+	 * Called on collection: stores histogram counts since the previous
+	 * collection
+	 */
+	public void collectHistogram ( LatencyHistogram histogram ) {
+		LatencyHistogram.Snapshot totals = histogram.snapshot();
+		lastCollectedHistogram = totals.minus( lastHistogramTotals );
+		lastHistogramTotals = totals;
+	}
+
+	public LatencyHistogram.Snapshot getLastCollectedHistogram () {
+		return lastCollectedHistogram;
+	}
+
+	/**
+	 * Called on collection for monitored methods: stopwatch counts are
+	 * sampled and exclude failures, occurrence limits use the exact
+	 * invocations. The first collection only sets the baseline.
+	 */
+	public void collectInvocations ( long invocationTotal ) {
+		if ( lastInvocationTotal < 0 ) {
+			lastCollectedInvocations = -1;
+		} else if ( invocationTotal < lastInvocationTotal ) {
+			// handle recreated after simons were cleared
+			lastCollectedInvocations = invocationTotal;
+		} else {
+			lastCollectedInvocations = invocationTotal - lastInvocationTotal;
+		}
+		lastInvocationTotal = invocationTotal;
+	}
+
+	/**
+	 * Method no longer monitored: stopwatch counts are used
+	 */
+	public void resetInvocations () {
+		lastInvocationTotal = -1;
+		lastCollectedInvocations = -1;
+	}
+
+	public long getLastCollectedInvocations () {
+		return lastCollectedInvocations;
+	}
+
+	public long getLastInvocationTotal () {
+		return lastInvocationTotal;
 	}
 
 	/**
@@ -249,6 +368,59 @@ public class AlertInstance {
 		this.maxUnits = maxUnits;
 	}
 
+	public long getP50 () {
+		return p50;
+	}
+
+	/**
+	 * samples with a 50th percentile larger then specified will trigger health
+	 * alert. Related: percentile-units
+	 */
+	public void setP50 ( long p50 ) {
+		this.p50 = p50;
+	}
+
+	public long getP90 () {
+		return p90;
+	}
+
+	public void setP90 ( long p90 ) {
+		this.p90 = p90;
+	}
+
+	public long getP99 () {
+		return p99;
+	}
+
+	public void setP99 ( long p99 ) {
+		this.p99 = p99;
+	}
+
+	public long getP999 () {
+		return p999;
+	}
+
+	/**
+	 * 99.9th percentile
+	 */
+	public void setP999 ( long p999 ) {
+		this.p999 = p999;
+	}
+
+	public String getPercentileUnits () {
+		return percentileUnits;
+	}
+
+	/**
+	 * 
+	 * units for p50, p90, p99, p999. Default: MILLISECONDS
+	 * 
+	 * @see java.util.concurrent.TimeUnit
+	 */
+	public void setPercentileUnits ( String percentileUnits ) {
+		this.percentileUnits = percentileUnits;
+	}
+
 	public boolean isIgnoreNull () {
 		return ignoreNull;
 	}
@@ -269,6 +441,10 @@ public class AlertInstance {
 			result += " meanTime: " + SimonUtils.presentNanoTime( getMeanTimeNano() );
 		if ( maxTime < Long.MAX_VALUE )
 			result += " maxTime: " + SimonUtils.presentNanoTime( getMaxTimeNano() );
+		for ( int i = 0; i < PERCENTILES.length; i++ ) {
+			if ( percentileNanos[i] < Long.MAX_VALUE )
+				result += " " + PERCENTILE_NAMES[i] + ": " + SimonUtils.presentNanoTime( percentileNanos[i] );
+		}
 		// result += " collection: " + csapSimpleCache.getMaxAgeFormatted();
 		result += " collection: " + getCollectTime() + " " + getCollectUnits();
 
@@ -306,6 +482,10 @@ public class AlertInstance {
 			item.put( "meanTime", SimonUtils.presentNanoTime( getMeanTimeNano() ) );
 		if ( maxTime < Long.MAX_VALUE )
 			item.put( "maxTime", SimonUtils.presentNanoTime( getMaxTimeNano() ) );
+		for ( int i = 0; i < PERCENTILES.length; i++ ) {
+			if ( percentileNanos[i] < Long.MAX_VALUE )
+				item.put( PERCENTILE_NAMES[i], SimonUtils.presentNanoTime( percentileNanos[i] ) );
+		}
 
 		return item;
 	}
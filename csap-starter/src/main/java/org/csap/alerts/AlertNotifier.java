@@ -0,0 +1,323 @@
+package org.csap.alerts;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.csap.alerts.AlertInstance.AlertItem;
+import org.csap.alerts.AlertSettings.NotifySettings;
+import org.csap.helpers.CsapSimpleCache;
+import org.csap.integations.CsapInformation;
+import org.javasimon.SimonManager;
+import org.javasimon.Split;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.MimeMessageHelper;
+import org.thymeleaf.context.Context;
+import org.thymeleaf.spring4.SpringTemplateEngine;
+import org.thymeleaf.templatemode.TemplateMode;
+import org.thymeleaf.templateresolver.ClassLoaderTemplateResolver;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ *
+ * Sends alert emails off the health collection thread.
+ *
+ * Alerts are queued, bounded by notify.queue-size: when full the oldest alert
+ * is dropped and counted in csap.health.notify.dropped and the health report.
+ * Every report interval the queue is checked; once the notify frequency has
+ * elapsed the queued alerts are coalesced by alert id into a single digest
+ * email. Digests are rendered and sent on notify.email-threads sender threads,
+ * so a slow smtp host delays at most that many digests; when all senders are
+ * busy, alerts stay queued for the next interval.
+ *
+ * @author pnightin
+ *
+ */
+public class AlertNotifier {
+
+	final static Logger logger = LoggerFactory.getLogger( AlertNotifier.class );
+
+	public final static String EMAIL_TEMPLATE = "csap/alerts/email";
+
+	private ObjectMapper jacksonMapper = new ObjectMapper();
+
+	private final AlertSettings alertConfig;
+	private final CsapInformation csapInformation;
+	private final JavaMailSender mailSender;
+	private final CsapSimpleCache emailTimer;
+
+	private final ArrayBlockingQueue<ObjectNode> pendingAlerts;
+	private final ScheduledExecutorService notifyDispatcher;
+	private final ExecutorService notifySenders;
+
+	// single engine with caching always enabled: template is parsed once
+	private final SpringTemplateEngine emailTemplateEngine;
+
+	private volatile ObjectNode latestReport = null;
+
+	// digests in flight, at most one per sender
+	private final Semaphore senderPermits;
+
+	private final AtomicLong alertsDropped = new AtomicLong();
+	private final AtomicLong droppedReported = new AtomicLong();
+	private final AtomicLong emailsSent = new AtomicLong();
+	private final AtomicLong emailsFailed = new AtomicLong();
+
+	public AlertNotifier( AlertSettings alertConfig, CsapInformation csapInformation,
+			JavaMailSender mailSender, CsapSimpleCache emailTimer ) {
+
+		this.alertConfig = alertConfig;
+		this.csapInformation = csapInformation;
+		this.mailSender = mailSender;
+		this.emailTimer = emailTimer;
+
+		NotifySettings notify = alertConfig.getNotify();
+
+		pendingAlerts = new ArrayBlockingQueue<>( Math.max( 1, notify.getQueueSize() ) );
+
+		BasicThreadFactory notifyFactory = new BasicThreadFactory.Builder()
+			.namingPattern( AlertNotifier.class.getSimpleName() + "-%d" )
+			.daemon( true )
+			.priority( Thread.NORM_PRIORITY )
+			.build();
+
+		notifyDispatcher = Executors.newSingleThreadScheduledExecutor( notifyFactory );
+
+		int senderCount = Math.max( 1, notify.getEmailThreads() );
+		senderPermits = new Semaphore( senderCount );
+		notifySenders = Executors.newFixedThreadPool( senderCount, notifyFactory );
+
+		ClassLoaderTemplateResolver emailResolver = new ClassLoaderTemplateResolver();
+		emailResolver.setPrefix( "templates/" );
+		emailResolver.setSuffix( ".html" );
+		emailResolver.setTemplateMode( TemplateMode.HTML );
+		emailResolver.setCharacterEncoding( "UTF-8" );
+		emailResolver.setCacheable( true );
+
+		emailTemplateEngine = new SpringTemplateEngine();
+		emailTemplateEngine.setTemplateResolver( emailResolver );
+
+		long dispatchSeconds = alertConfig.getReport().getIntervalSeconds();
+		notifyDispatcher.scheduleWithFixedDelay( this::dispatch, dispatchSeconds, dispatchSeconds, TimeUnit.SECONDS );
+
+		logger.info( "Email notifications: queue: {}, threads: {}, dispatch check: {} seconds",
+			notify.getQueueSize(), notify.getEmailThreads(), dispatchSeconds );
+	}
+
+	/**
+	 *
+	 * Called on the health thread - never blocks.
+	 *
+	 */
+	public void submit ( ObjectNode healthReport, List<ObjectNode> alerts ) {
+
+		latestReport = healthReport;
+
+		// copies: throttle updates counts on the originals
+		for ( ObjectNode alert : alerts ) {
+			ObjectNode pending = alert.deepCopy();
+			while (!pendingAlerts.offer( pending )) {
+				// full: newest alerts are more useful than the oldest
+				if ( pendingAlerts.poll() != null ) {
+					alertsDropped.incrementAndGet();
+					SimonManager.getCounter( CsapGlobalId.NOTIFY_DROPPED.id ).increase();
+				}
+			}
+		}
+
+		logger.debug( "pending: {}, dropped: {}", pendingAlerts.size(), alertsDropped.get() );
+	}
+
+	void dispatch () {
+
+		boolean isDispatched = false;
+		try {
+			long dropped = alertsDropped.get();
+			long newDrops = dropped - droppedReported.getAndSet( dropped );
+			if ( newDrops > 0 ) {
+				logger.warn( "Notification queue is full (notify.queue-size: {}): {} oldest alerts dropped, total: {}",
+					alertConfig.getNotify().getQueueSize(), newDrops, dropped );
+			}
+
+			if ( pendingAlerts.isEmpty() ) {
+				logger.debug( "No items in backlog" );
+				return;
+			}
+
+			if ( !emailTimer.isExpired() ) {
+				logger.debug( "Notification not sent because interval is not met: {}. Last notification was sent: {}",
+					emailTimer.getMaxAgeFormatted(),
+					emailTimer.getCurrentAgeFormatted() );
+				return;
+			}
+
+			if ( !senderPermits.tryAcquire() ) {
+				logger.info( "All {} senders are busy - deferring {} alerts", alertConfig.getNotify().getEmailThreads(),
+					pendingAlerts.size() );
+				return;
+			}
+			isDispatched = true;
+
+			List<ObjectNode> queued = new ArrayList<>( pendingAlerts.size() );
+			pendingAlerts.drainTo( queued );
+
+			Collection<ObjectNode> digest = coalesce( queued );
+			int omitted = queued.size() - digest.size();
+			ObjectNode report = latestReport;
+
+			emailTimer.reset();
+
+			notifySenders.execute( () -> send( digest, omitted, report ) );
+
+		} catch (Exception e) {
+			if ( isDispatched ) {
+				senderPermits.release();
+			}
+			logger.error( "Failed to dispatch notification", e );
+		}
+	}
+
+	/**
+	 *
+	 * Alerts with the same id, type, host and service are merged: latest is kept
+	 * and counts are summed. Digest is limited to notify.email-max-alerts,
+	 * keeping the most recent.
+	 *
+	 */
+	private Collection<ObjectNode> coalesce ( List<ObjectNode> queued ) {
+
+		Map<Long, ObjectNode> byIdentity = new LinkedHashMap<>();
+
+		for ( ObjectNode alert : queued ) {
+			long fingerprint = AlertItem.fingerprint( alert );
+			ObjectNode previous = byIdentity.remove( fingerprint );
+			if ( previous != null ) {
+				alert.put( AlertItem.count.json,
+					alert.path( AlertItem.count.json ).asInt( 1 ) + previous.path( AlertItem.count.json ).asInt( 1 ) );
+			}
+			byIdentity.put( fingerprint, alert );
+		}
+
+		int excess = byIdentity.size() - alertConfig.getNotify().getEmailMaxAlerts();
+		Iterator<ObjectNode> oldestFirst = byIdentity.values().iterator();
+		while (excess-- > 0 && oldestFirst.hasNext()) {
+			oldestFirst.next();
+			oldestFirst.remove();
+		}
+
+		return byIdentity.values();
+	}
+
+	private void send ( Collection<ObjectNode> digest, int omitted, ObjectNode healthReport ) {
+
+		Split sendTimer = SimonManager.getStopwatch( CsapGlobalId.NOTIFY_SEND.id ).start();
+		try {
+
+			// Set up variables for template processing
+			Context context = new Context();
+			context.setVariable( "appUrl", csapInformation.getLoadBalancerUrl() );
+			context.setVariable( "healthUrl", csapInformation.getFullHealthUrl() );
+			context.setVariable( "life", csapInformation.getLifecycle() );
+			context.setVariable( "service", csapInformation.getName() );
+			context.setVariable( "host", csapInformation.getHostName() );
+			context.setVariable( "dateTime", LocalDateTime.now().format( DateTimeFormatter.ofPattern( "h:mm:ss a, MMMM d" ) ) );
+			context.setVariable( "limits", digest );
+			context.setVariable( "omitted", omitted );
+
+			String emailBody = emailTemplateEngine.process( EMAIL_TEMPLATE, context );
+
+			logger.info( "{} Type {} : \n\t to: {}\n\t message: {}",
+				csapInformation.getName(), "Health", alertConfig.getNotify(),
+				digest );
+
+			byte[] reportAttachment = jacksonMapper
+				.writerWithDefaultPrettyPrinter()
+				.writeValueAsBytes( healthReport );
+
+			mailSender.send( mimeMessage -> {
+				MimeMessageHelper messageHelper = new MimeMessageHelper( mimeMessage, true, "UTF-8" );
+				messageHelper.setTo( alertConfig.getNotify().getEmails() );
+				messageHelper.setFrom( "csap@yourCompany.com" );
+				messageHelper.setSubject( "CSAP Notification: " + csapInformation.getName() + " - " + csapInformation.getLifecycle() );
+				messageHelper.setText( emailBody, true );
+
+				messageHelper.addAttachment( "report.json", new ByteArrayResource( reportAttachment ) );
+			} );
+
+			emailsSent.incrementAndGet();
+
+		} catch (Exception e) {
+			emailsFailed.incrementAndGet();
+			SimonManager.getCounter( CsapGlobalId.NOTIFY_FAIL.id ).increase();
+			logger.error( "Failed to send message", e );
+		} finally {
+			sendTimer.stop();
+			senderPermits.release();
+		}
+	}
+
+	public void shutdown () {
+		notifyDispatcher.shutdownNow();
+		notifySenders.shutdownNow();
+	}
+
+	public int getPendingCount () {
+		return pendingAlerts.size();
+	}
+
+	public long getAlertsDropped () {
+		return alertsDropped.get();
+	}
+
+	public long getEmailsSent () {
+		return emailsSent.get();
+	}
+
+	public long getEmailsFailed () {
+		return emailsFailed.get();
+	}
+
+	public int getSending () {
+		return Math.max( 1, alertConfig.getNotify().getEmailThreads() ) - senderPermits.availablePermits();
+	}
+
+	/**
+	 * health report section
+	 */
+	public ObjectNode toJson () {
+
+		ObjectNode status = jacksonMapper.createObjectNode();
+		status.put( "pending", getPendingCount() );
+		status.put( "dropped", getAlertsDropped() );
+		status.put( "sending", getSending() );
+		status.put( "sent", getEmailsSent() );
+		status.put( "failed", getEmailsFailed() );
+
+		return status;
+	}
+
+	@Override
+	public String toString () {
+		return "pending: " + getPendingCount() + ", dropped: " + getAlertsDropped() + ", sending: " + getSending()
+				+ ", sent: " + getEmailsSent() + ", failed: " + getEmailsFailed();
+	}
+
+}
@@ -1,31 +1,44 @@
 package org.csap.alerts;
 
-import java.text.SimpleDateFormat;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
-import javax.inject.Inject;
 
 import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.csap.alerts.AlertInstance.AlertItem;
 import org.csap.alerts.MonitorMbean.Report;
 import org.csap.helpers.CsapSimpleCache;
+import org.csap.helpers.GcPauseRecorder;
 import org.csap.integations.CsapInformation;
 import org.csap.integations.CsapPerformance;
 import org.csap.integations.CsapPerformance.CustomHealth;
+import org.csap.integations.ExecutorMetrics;
+import org.csap.integations.InstrumentationOverhead;
+import org.csap.integations.MonitorHandle;
+import org.csap.integations.SamplingProfiler;
 import org.javasimon.Counter;
 import org.javasimon.CounterSample;
 import org.javasimon.Sample;
@@ -40,13 +53,9 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
-import org.springframework.core.io.ByteArrayResource;
 import org.springframework.mail.javamail.JavaMailSender;
 import org.springframework.mail.javamail.JavaMailSenderImpl;
-import org.springframework.mail.javamail.MimeMessageHelper;
 import org.springframework.stereotype.Service;
-import org.thymeleaf.context.Context;
-import org.thymeleaf.spring4.SpringTemplateEngine;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
@@ -71,6 +80,26 @@ public class AlertProcessor {
 			scheduledExecutorService.shutdownNow();
 
 		}
+
+		if ( healthCheckPool != null ) {
+			healthCheckPool.shutdownNow();
+		}
+
+		if ( collectionWheel != null ) {
+			collectionWheel.shutdown();
+		}
+
+		if ( latencyRecorderAdded.get() ) {
+			SimonManager.callback().removeCallback( latencyRecorder );
+		}
+
+		if ( alertNotifier != null ) {
+			alertNotifier.shutdown();
+		}
+
+		if ( metricHistory != null ) {
+			metricHistory.shutdown();
+		}
 	}
 
 	@Autowired
@@ -80,7 +109,6 @@ public class AlertProcessor {
 	private AlertInstance failRunAlert = new AlertInstance( CsapGlobalId.HEALTH_REPORT_FAIL.id, 0, null );
 
 	private CsapSimpleCache emailTimer;
-	private CsapSimpleCache throttleTimer;
 
 	@PostConstruct
 	public void initialize () {
@@ -94,16 +122,24 @@ public class AlertProcessor {
 			AlertSettings.class,
 			"Email Notifications" );
 
-		throttleTimer = CsapSimpleCache.builder(
-			alertConfig.getThrottle().getFrequency(),
-			CsapSimpleCache.parseTimeUnit(
-				alertConfig.getThrottle().getTimeUnit(),
-				TimeUnit.HOURS ),
-			AlertSettings.class,
-			"Alert Throttle" );
+		alertThrottle = new AlertThrottle(
+			alertConfig.getThrottle().getCount(),
+			alertConfig.getThrottle().getWindowMs() );
+
+		alertHistory = new AlertHistory( alertConfig.getRememberCount() );
+
+		if ( alertConfig.getNotify().getEmails() == null ) {
+			logger.info( EMAIL_DISABLED );
+		} else {
+			// sender is created once, and used only by the notifier threads
+			alertNotifier = new AlertNotifier( alertConfig, csapInformation, csapMailSender(), emailTimer );
+		}
 
 		initializeHealthJobs();
 
+		// gc pauses: csap.jvm.gc.*.pause stopwatches may be used in limits
+		GcPauseRecorder.install();
+
 		// add health report job
 		scheduledExecutorService
 			.scheduleAtFixedRate( this::buildHealthReport,
@@ -111,17 +147,19 @@ public class AlertProcessor {
 				alertConfig.getReport().getIntervalSeconds(),
 				TimeUnit.SECONDS );
 
-		// add alert jobs - each configured alert is triggered based on
-		// configuration
+		// add alert jobs - alerts with the same collection interval are
+		// sampled together
+		collectionWheel = new CollectionWheel( this::collectAlertSample );
 		for ( AlertInstance alertInstance : alertConfig.getLimits() ) {
-			logger.debug( "Scheduling job every {} seconds : {}", alertInstance.getCollectionSeconds(), alertInstance );
+			logger.debug( "Scheduling collection every {} seconds : {}", alertInstance.getCollectionSeconds(), alertInstance );
+			registerHistogram( alertInstance );
+			collectionWheel.register( alertInstance );
+		}
+		collectionWheel.start();
 
-			scheduledExecutorService
-				.scheduleAtFixedRate(
-					() -> collectAlertSample( alertInstance ),
-					alertInstance.getCollectionSeconds(),
-					alertInstance.getCollectionSeconds(),
-					TimeUnit.SECONDS );
+		if ( alertConfig.getHistory().isEnabled() ) {
+			metricHistory = new MetricHistory( alertConfig.getHistory(), latencyRecorder );
+			metricHistory.start();
 		}
 
 		// add context alets
@@ -130,8 +168,36 @@ public class AlertProcessor {
 		alertConfig.getAllAlertInstances().add( getFailRunAlert() );
 	}
 
+	/**
+	 *
+	 * Adds a limit after startup, eg. @ServiceAgreement
+	 *
+	 * @return false if a limit with the same id is already defined
+	 */
+	public boolean addAlertInstance ( AlertInstance alertInstance ) {
+
+		boolean isDefined = alertConfig.getAllAlertInstances().stream()
+			.anyMatch( alert -> alert.getId().equals( alertInstance.getId() ) );
+
+		if ( isDefined ) {
+			logger.info( "Skipping {}: already defined", alertInstance.getId() );
+			return false;
+		}
+
+		alertInstance.updateTimersFromUnits();
+		alertConfig.getLimits().add( alertInstance );
+		alertConfig.getAllAlertInstances().add( alertInstance );
+
+		registerHistogram( alertInstance );
+		collectionWheel.register( alertInstance );
+
+		logger.debug( "Added: {}", alertInstance );
+		return true;
+	}
+
 	public void collectAlertSample ( AlertInstance alert ) {
 
+		long[] overhead = InstrumentationOverhead.startCycle();
 		try {
 			if ( alertConfig.isDebug() ) {
 				logger.info( "Collection sample: {} ", alert.getId() );
@@ -144,14 +210,78 @@ public class AlertProcessor {
 			}
 			// Store sample for reports
 			alert.setLastCollectedSample( s.sampleIncrement( alert.getSampleName() ) );
+
+			// monitored methods: exact invocations, including failures
+			MonitorHandle monitor = MonitorHandle.findByName( alert.getId() );
+			if ( monitor != null ) {
+				alert.collectInvocations( monitor.getInvocations() );
+			} else {
+				alert.resetInvocations();
+			}
+
+			if ( alert.isPercentileLimited() ) {
+				LatencyHistogram histogram = latencyRecorder.get( alert.getId() );
+				if ( histogram != null ) {
+					alert.collectHistogram( histogram );
+				}
+			}
 		} catch (Exception e) {
 			logger.error( "Failed to collect", e );
+		} finally {
+			InstrumentationOverhead.endCycle( overhead, ALERTS_OVERHEAD );
 		}
 
 	}
 
+	public final static String ALERTS_OVERHEAD = InstrumentationOverhead.COLLECTION + ".alerts";
+
+	// includes CustomHealth checks
+	public final static String REPORT_OVERHEAD = InstrumentationOverhead.COLLECTION + ".report";
+
 	private ScheduledExecutorService scheduledExecutorService = null;
 
+	// percentile limits: splits recorded via simon callback
+	private LatencyRecorder latencyRecorder = new LatencyRecorder();
+	private AtomicBoolean latencyRecorderAdded = new AtomicBoolean( false );
+
+	private void registerHistogram ( AlertInstance alertInstance ) {
+
+		if ( !alertInstance.isPercentileLimited() ) {
+			return;
+		}
+
+		registerLatency( alertInstance.getId() );
+	}
+
+	/**
+	 *
+	 * Splits added to the stopwatch are recorded in a histogram, used for
+	 * percentile limits and exported quantiles
+	 */
+	public LatencyHistogram registerLatency ( String stopwatchName ) {
+
+		LatencyHistogram histogram = latencyRecorder.register( stopwatchName );
+
+		// only added when needed: callbacks are invoked on every stop
+		if ( latencyRecorderAdded.compareAndSet( false, true ) ) {
+			SimonManager.callback().addCallback( latencyRecorder );
+		}
+
+		return histogram;
+	}
+
+	public LatencyRecorder getLatencyRecorder () {
+		return latencyRecorder;
+	}
+	private ExecutorService healthCheckPool = null;
+	private CollectionWheel collectionWheel = null;
+
+	// checks submitted but not yet completed - a hung check is not resubmitted
+	private Set<String> checksInProgress = ConcurrentHashMap.newKeySet();
+
+	public final static String CHECK_TIMEOUT = "Timeout";
+	public final static String LIMITS_CHECK = "limits";
+
 	AtomicInteger counterCollections = new AtomicInteger();
 
 	protected void initializeHealthJobs () {
@@ -173,7 +303,24 @@ public class AlertProcessor {
 		scheduledExecutorService = Executors
 			.newScheduledThreadPool( 1, schedFactory );
 
+		ExecutorMetrics.monitor( AlertProcessor.class.getSimpleName(), (ThreadPoolExecutor) scheduledExecutorService );
+
 		logger.info( "Adding Job: {}", scheduleName );
+
+		BasicThreadFactory checkFactory = new BasicThreadFactory.Builder()
+			.namingPattern( AlertProcessor.class.getSimpleName() + "_checks-%d" )
+			.daemon( true )
+			.priority( Thread.NORM_PRIORITY )
+			.build();
+
+		// limits and custom health checks, results merged on collection thread
+		healthCheckPool = Executors.newFixedThreadPool(
+			Math.max( 1, alertConfig.getReport().getCheckThreads() ),
+			checkFactory );
+		ExecutorMetrics.monitor( AlertProcessor.class.getSimpleName() + ".checks", (ThreadPoolExecutor) healthCheckPool );
+
+		logger.info( "Health checks: {} threads, timeout: {}ms",
+			alertConfig.getReport().getCheckThreads(), alertConfig.getReport().getCheckTimeoutMs() );
 	}
 
 	@Bean
@@ -196,15 +343,21 @@ public class AlertProcessor {
 		return sender;
 	}
 
-	@Inject
-	SpringTemplateEngine springTemplateEngine;
-
 	public static String EMAIL_DISABLED = "Email notifications disabled";
 
 	private ObjectMapper jacksonMapper = new ObjectMapper();
 
-	private ArrayNode alertHistory = jacksonMapper.createArrayNode();
-	private ArrayNode alertsThrottled = jacksonMapper.createArrayNode();
+	private AlertHistory alertHistory;
+	private AlertThrottle alertThrottle;
+	private AlertNotifier alertNotifier = null;
+	private MetricHistory metricHistory = null;
+
+	/**
+	 * @return null if csap.performance.alert.history.enabled is false
+	 */
+	public MetricHistory getMetricHistory () {
+		return metricHistory;
+	}
 
 	/**
 	 * Called every 30 seconds: if healthy - then no email
@@ -213,17 +366,9 @@ public class AlertProcessor {
 	 */
 	public void addReport ( ObjectNode healthReport ) {
 
-		logger.debug( "backlog Size: {} ", alertsForEmail.size() );
-		while (alertsForEmail.size() > alertConfig.getNotify().getEmailMaxAlerts()) {
-			alertsForEmail.remove( 0 );
-		}
-
-		if ( alertConfig.isDebug() && alertHistory.size() > alertConfig.getRememberCount() ) {
-			logger.info( "Current alert count: {} is larger then configured: {} - oldest items are being purged",
-				alertHistory.size(), alertConfig.getRememberCount() );
-		}
-		while (alertHistory.size() > alertConfig.getRememberCount()) {
-			alertHistory.remove( 0 );
+		if ( alertConfig.isDebug() && alertHistory.size() == alertHistory.getCapacity() ) {
+			logger.info( "Current alert count: {} has reached configured: {} - oldest items are being overwritten",
+				alertHistory.getTotalAdded(), alertConfig.getRememberCount() );
 		}
 
 		try {
@@ -234,140 +379,52 @@ public class AlertProcessor {
 			// String foundTime = LocalDateTime.now().format(
 			// DateTimeFormatter.ofPattern( "h:mm:ss a" ) ) ;
 			long now = System.currentTimeMillis();
-			String foundTime = LocalDateTime.now().format( DateTimeFormatter.ofPattern( "HH:mm:ss , MMM d" ) );
+			String foundTime = LocalDateTime.now().format( TIME_DAY_FORMAT );
 			activeAlerts.forEach( item -> {
 				item.put( AlertInstance.AlertItem.formatedTime.json, foundTime );
 				item.put( AlertInstance.AlertItem.timestamp.json, now );
 				item.put( AlertInstance.AlertItem.count.json, 1 );
 			} );
 
-			// increment counters and dates - or add
-			activeAlerts.forEach( activeAlert -> {
-				int matchCount = 0;
-				int lastMatchIndex = 0;
-				int index = 0;
-				for ( JsonNode throttledEvent : getAlertsThrottled() ) {
-					if ( AlertInstance.AlertItem.isSameId( activeAlert, throttledEvent ) ) {
-						matchCount++;
-						lastMatchIndex = index;
-					}
-					index++;
-				}
-				if ( matchCount >= alertConfig.getThrottle().getCount() ) {
-					// update the count
-					int oldCount = getAlertsThrottled()
-						.get( lastMatchIndex )
-						.get( AlertInstance.AlertItem.count.json )
-						.asInt();
-					activeAlert.put( AlertInstance.AlertItem.count.json, 1 + oldCount );
-
-					// remove the oldest
-					getAlertsThrottled().remove( lastMatchIndex );
-
-				}
-				// add the newest
-				getAlertsThrottled().add( activeAlert );
-
-			} );
-
-			if ( getThrottleTimer().isExpired() ) {
-				// Always add in memory browsing
-				alertHistory.addAll( getAlertsThrottled() );
-				getThrottleTimer().reset();
-				getAlertsThrottled().removeAll();
-			}
-
-			// Email support
-			if ( alertConfig.getNotify().getEmails() == null ) {
+			// Email support: queued for the notifier threads, never blocks
+			if ( alertNotifier == null ) {
 				logger.debug( "Email notifications are disabled." );
-			} else {
-				sendAlertEmail( healthReport, activeAlerts );
+			} else if ( !activeAlerts.isEmpty() ) {
+				alertNotifier.submit( healthReport, activeAlerts );
 			}
 
-		} catch (Exception e) {
-
-			logger.error( "Failed to send message", e );
-		}
-
-		return;
-	}
-
-	private List<JsonNode> alertsForEmail = new ArrayList<>();
-
-	private void sendAlertEmail ( ObjectNode healthReport, ArrayList<ObjectNode> limits ) {
-		if ( csapMailSender() == null ) {
-			logger.warn( "Java Mail is disabled - update spring.mail in application.yml" );
-			return;
-		}
-		alertsForEmail.addAll( limits );
-
-		if ( alertsForEmail.size() == 0 ) {
-			logger.debug( "No items in backlog" );
-			return;
-		}
-
-		if ( !getEmailTimer().isExpired() ) {
-			int collectionCount = healthReport.get( Report.collectionCount.json ).asInt();
+			// increment counters and dates - or add
+			activeAlerts.forEach( activeAlert -> getAlertThrottle().add( activeAlert, now ) );
 
-			if ( collectionCount % 120 == 0 ) {
-				// do not overload with messages - only output 1 per hour
-				logger.info( "Notification not sent because interval is not met: {}. Last notification was sent: {}",
-					getEmailTimer().getMaxAgeFormatted(),
-					getEmailTimer().getCurrentAgeFormatted() );
-			} else {
+			// Always add in memory browsing
+			getAlertThrottle().expire( now, alertHistory );
 
-				logger.debug( "Notification not sent because interval is not met: {}. Last notification was sent: {}",
-					getEmailTimer().getMaxAgeFormatted(),
-					getEmailTimer().getCurrentAgeFormatted() );
-			}
+		} catch (Exception e) {
 
-			return;
+			logger.error( "Failed to process report", e );
 		}
 
-		// Set up variables for template processing
-		Context context = new Context();
-		context.setVariable( "appUrl", csapInformation.getLoadBalancerUrl() );
-		context.setVariable( "healthUrl", csapInformation.getFullHealthUrl() );
-		context.setVariable( "life", csapInformation.getLifecycle() );
-		context.setVariable( "service", csapInformation.getName() );
-		context.setVariable( "host", csapInformation.getHostName() );
-		context.setVariable( "dateTime", LocalDateTime.now().format( DateTimeFormatter.ofPattern( "h:mm:ss a, MMMM d" ) ) );
-
-		context.setVariable( "limits", alertsForEmail );
-		String testBody = springTemplateEngine.process( "csap/alerts/email", context );
-
-		logger.info( "{} Type {} : \n\t to: {}\n\t message: {}",
-			csapInformation.getName(), "Health", alertConfig.getNotify(),
-			alertsForEmail );
-
-		csapMailSender().send( mimeMessage -> {
-			MimeMessageHelper messageHelper = new MimeMessageHelper( mimeMessage, true, "UTF-8" );
-			messageHelper.setTo( alertConfig.getNotify().getEmails() );
-			// messageHelper.setCc( CsapUser.currentUsersEmailAddress()
-			// );
-			messageHelper.setFrom( "csap@yourCompany.com" );
-			messageHelper.setSubject( "CSAP Notification: " + csapInformation.getName() + " - " + csapInformation.getLifecycle() );
-			messageHelper.setText( testBody, true );
-
-			messageHelper.addAttachment( "report.json",
-				new ByteArrayResource( jacksonMapper
-					.writerWithDefaultPrettyPrinter()
-					.writeValueAsString( healthReport )
-					.getBytes() ) );
-		} );
-
-		getEmailTimer().reset();
-		alertsForEmail.clear();
+		return;
 	}
 
-	private ArrayNode getAlertHistory () {
+	public AlertHistory getAlertHistory () {
 		return alertHistory;
 	}
 
 	public ArrayNode getAllAlerts () {
-		ArrayNode all = jacksonMapper.createArrayNode();
-		all.addAll( getAlertHistory() );
-		all.addAll( getAlertsThrottled() );
+		return getAllAlerts( 0 );
+	}
+
+	/**
+	 *
+	 * @param sinceMs
+	 *            alerts triggered before are excluded
+	 * @return history followed by alerts in the current throttle interval
+	 */
+	public ArrayNode getAllAlerts ( long sinceMs ) {
+		ArrayNode all = getAlertHistory().snapshot( jacksonMapper, sinceMs );
+
+		getAlertThrottle().addTo( all, sinceMs );
 
 		return all;
 	}
@@ -376,26 +433,32 @@ public class AlertProcessor {
 		return emailTimer;
 	}
 
-	public CsapSimpleCache getThrottleTimer () {
-		return throttleTimer;
+	public CollectionWheel getCollectionWheel () {
+		return collectionWheel;
 	}
 
-	public ArrayNode getAlertsThrottled () {
-		return alertsThrottled;
+	public AlertThrottle getAlertThrottle () {
+		return alertThrottle;
+	}
+
+	/**
+	 *
+	 * @return null if notify.emails is not configured
+	 */
+	public AlertNotifier getAlertNotifier () {
+		return alertNotifier;
 	}
 
 	volatile ObjectNode healthReport = null;
 
-	SimpleDateFormat timeDayFormat = new SimpleDateFormat( "HH:mm:ss , MMM d" );
+	private final static DateTimeFormatter TIME_DAY_FORMAT = DateTimeFormatter.ofPattern( "HH:mm:ss , MMM d" );
 
 	private void buildHealthReport () {
+		long[] overhead = InstrumentationOverhead.startCycle();
 		ObjectNode latestReport = jacksonMapper.createObjectNode();
 		latestReport.put( Report.collectionCount.json, counterCollections.incrementAndGet() );
-		latestReport.put( Report.lastCollected.json, timeDayFormat.format( new Date() ) );
-		latestReport.put( Report.healthy.json, true );
-		latestReport.putArray( Report.undefined.json );
-		latestReport.putArray( Report.pending.json );
-		latestReport.putArray( Report.limitsExceeded.json );
+		latestReport.put( Report.lastCollected.json, LocalDateTime.now().format( TIME_DAY_FORMAT ) );
+		addReportSections( latestReport );
 
 		boolean isHealthy = false;
 
@@ -408,23 +471,29 @@ public class AlertProcessor {
 			collectionTimer.stop();
 
 			isHealthy = latestReport.get( Report.healthy.json ).asBoolean();
+
+			latestReport.set( Report.gc.json, GcPauseRecorder.toJson() );
+			if ( alertNotifier != null ) {
+				latestReport.set( Report.notifications.json, alertNotifier.toJson() );
+			}
 		} catch (Exception e) {
 			addFailure( latestReport, failRunAlert, e.getClass().getSimpleName(), 1, 0, false );
 			logger.error( "Failed running health report", e );
 		}
 
 		if ( isHealthy ) {
-			SimonManager.getCounter( CsapGlobalId.HEALTH_REPORT_PASS.id ).increase();
+			CsapMeter.get( CsapGlobalId.HEALTH_REPORT_PASS.id ).increment();
 			if ( alertConfig.isDebug() ) {
 				logger.info( "\n *** HealthReport: \n {}", printReport( latestReport ) );
 			}
 		} else {
-			SimonManager.getCounter( CsapGlobalId.HEALTH_REPORT_FAIL.id ).increase();
+			CsapMeter.get( CsapGlobalId.HEALTH_REPORT_FAIL.id ).increment();
 			logger.warn( "\n *** HealthReport: \n {}", printReport( latestReport ) );
 		}
 
 		addReport( latestReport );
 		healthReport = latestReport;
+		InstrumentationOverhead.endCycle( overhead, REPORT_OVERHEAD );
 		return;
 	}
 
@@ -437,8 +506,206 @@ public class AlertProcessor {
 		}
 	}
 
+	private void addReportSections ( ObjectNode report ) {
+		report.put( Report.healthy.json, true );
+		report.putArray( Report.undefined.json );
+		report.putArray( Report.pending.json );
+		report.putArray( Report.limitsExceeded.json );
+	}
+
+	/**
+	 *
+	 * Limits (as a single check) and each CustomHealth are run on the check
+	 * pool. Each check writes to its own report which is merged here; checks
+	 * not completed within report.check-timeout-ms of starting are failed with
+	 * type {@link #CHECK_TIMEOUT}. Checks queued behind others (more checks than
+	 * report.check-threads) wait up to one timeout per wave of checks before
+	 * they are failed. Latency of each check is recorded in
+	 * csap.health.check.(name)
+	 *
+	 */
 	private void checkConfiguredLimits ( ObjectNode healthReport ) {
 
+		long timeoutMs = alertConfig.getReport().getCheckTimeoutMs();
+
+		Map<AlertInstance, HealthCheck> checks = new LinkedHashMap<>();
+
+		checks.put( failRunAlert, submitCheck( LIMITS_CHECK, () -> {
+			ObjectNode limitsReport = jacksonMapper.createObjectNode();
+			addReportSections( limitsReport );
+			checkLimits( limitsReport );
+			return limitsReport;
+		} ) );
+
+		for ( AlertInstance alert : alertConfig.getAllAlertInstances() ) {
+			if ( alert.getCustomHealth() != null ) {
+				checks.put( alert, submitCheck(
+					alert.getCustomHealth().getComponentName(),
+					() -> checkCustomHealth( alert ) ) );
+			}
+		}
+
+		int threads = Math.max( 1, alertConfig.getReport().getCheckThreads() );
+		long waves = (checks.size() + threads - 1) / threads;
+		long queuedDeadline = System.currentTimeMillis() + timeoutMs * Math.max( 1, waves );
+
+		for ( Map.Entry<AlertInstance, HealthCheck> check : checks.entrySet() ) {
+
+			AlertInstance alert = check.getKey();
+			HealthCheck healthCheck = check.getValue();
+
+			if ( healthCheck == null ) {
+				CsapMeter.get( CsapGlobalId.HEALTH_CHECK_TIMEOUT.id ).increment();
+				addFailure( healthReport, alert, CHECK_TIMEOUT, "Previous check has not completed" );
+				continue;
+			}
+
+			try {
+				mergeReport( healthReport, healthCheck.await( timeoutMs, queuedDeadline ) );
+			} catch (TimeoutException e) {
+				healthCheck.cancel();
+				CsapMeter.get( CsapGlobalId.HEALTH_CHECK_TIMEOUT.id ).increment();
+				addFailure( healthReport, alert, CHECK_TIMEOUT, e.getMessage() );
+				logger.warn( "Health check timed out: {}, {}", alert.getId(), e.getMessage() );
+			} catch (ExecutionException e) {
+				addFailure( healthReport, alert, e.getCause().getClass().getSimpleName(), 1, 0, false );
+				logger.error( "Failed health check: {}", alert.getId(), e.getCause() );
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+
+		return;
+	}
+
+	/**
+	 *
+	 * @return null if the previous run of the check has not completed
+	 */
+	private HealthCheck submitCheck ( String name, Callable<ObjectNode> check ) {
+
+		if ( !checksInProgress.add( name ) ) {
+			logger.warn( "Health check is still running: {}", name );
+			return null;
+		}
+
+		try {
+			HealthCheck healthCheck = new HealthCheck( name, check );
+			healthCheck.result = healthCheckPool.submit( healthCheck );
+			return healthCheck;
+		} catch (RejectedExecutionException e) {
+			checksInProgress.remove( name );
+			throw e;
+		}
+	}
+
+	private final static int CHECK_QUEUED = 0;
+	private final static int CHECK_RUNNING = 1;
+	private final static int CHECK_CANCELLED = 2;
+	private final static long CHECK_QUEUED_POLL_MS = 50;
+
+	/**
+	 *
+	 * A check on the pool: the timeout starts when the check runs, not when it
+	 * is queued. The check name is released when it completes, or when it is
+	 * cancelled before running.
+	 *
+	 */
+	private class HealthCheck implements Callable<ObjectNode> {
+
+		final String name;
+		final Callable<ObjectNode> check;
+		final AtomicInteger state = new AtomicInteger( CHECK_QUEUED );
+
+		volatile long startedMs = 0;
+		Future<ObjectNode> result;
+
+		HealthCheck( String name, Callable<ObjectNode> check ) {
+			this.name = name;
+			this.check = check;
+		}
+
+		@Override
+		public ObjectNode call ()
+				throws Exception {
+
+			if ( !state.compareAndSet( CHECK_QUEUED, CHECK_RUNNING ) ) {
+				// cancelled while queued
+				return null;
+			}
+
+			startedMs = System.currentTimeMillis();
+			Split checkTimer = null;
+			try {
+				checkTimer = SimonManager.getStopwatch( CsapGlobalId.HEALTH_CHECK.id + "." + name ).start();
+				return check.call();
+			} finally {
+				if ( checkTimer != null ) {
+					checkTimer.stop();
+				}
+				checksInProgress.remove( name );
+			}
+		}
+
+		/**
+		 *
+		 * @param queuedDeadline
+		 *            checks that have not started by then are failed
+		 */
+		ObjectNode await ( long timeoutMs, long queuedDeadline )
+				throws InterruptedException, ExecutionException, TimeoutException {
+
+			while (true) {
+				long started = startedMs;
+				long deadline = started == 0 ? queuedDeadline : started + timeoutMs;
+				long remainingMs = deadline - System.currentTimeMillis();
+
+				if ( remainingMs <= 0 ) {
+					throw new TimeoutException( started == 0
+							? "Check did not start: all " + alertConfig.getReport().getCheckThreads() + " check threads are busy"
+							: "Check did not complete in " + timeoutMs + "ms" );
+				}
+
+				try {
+					// queued: poll until started, then wait for the rest of its timeout
+					return result.get( started == 0 ? Math.min( remainingMs, CHECK_QUEUED_POLL_MS ) : remainingMs,
+						TimeUnit.MILLISECONDS );
+				} catch (TimeoutException e) {
+					continue;
+				}
+			}
+		}
+
+		void cancel () {
+			if ( state.compareAndSet( CHECK_QUEUED, CHECK_CANCELLED ) ) {
+				checksInProgress.remove( name );
+				result.cancel( false );
+			} else {
+				result.cancel( true );
+			}
+		}
+	}
+
+	private void mergeReport ( ObjectNode healthReport, ObjectNode checkReport ) {
+
+		checkReport.fields().forEachRemaining( field -> {
+			JsonNode current = healthReport.get( field.getKey() );
+
+			if ( field.getKey().equals( Report.healthy.json ) ) {
+				if ( !field.getValue().asBoolean() ) {
+					healthReport.put( Report.healthy.json, false );
+				}
+			} else if ( current != null && current.isArray() && field.getValue().isArray() ) {
+				((ArrayNode) current).addAll( (ArrayNode) field.getValue() );
+			} else {
+				healthReport.set( field.getKey(), field.getValue() );
+			}
+		} );
+	}
+
+	private void checkLimits ( ObjectNode healthReport ) {
+
 		// stopWatches
 		for ( AlertInstance alert : alertConfig.getLimits() ) {
 			logger.debug( "Checking: {}", alert );
@@ -465,36 +732,55 @@ public class AlertProcessor {
 			} else {
 				if ( latestSimon instanceof Stopwatch ) {
 					isStopWatchHeathy( healthReport, alert );
+					addPercentiles( healthReport, alert );
 				} else if ( latestSimon instanceof Counter ) {
 					isCounterHeathy( healthReport, alert );
 				}
 			}
 
 		}
+	}
 
-		for ( AlertInstance alert : alertConfig.getAllAlertInstances() ) {
+	private void addPercentiles ( ObjectNode healthReport, AlertInstance alertInstance ) {
 
-			if ( alert.getCustomHealth() != null ) {
-				String alertComponentName = alert.getCustomHealth().getComponentName();
-				logger.debug( "Invoking Custom Health API for: {}", alertComponentName, alert.getCustomHealth().getClass().getName() );
-				try {
-					boolean isHealthy = alert.getCustomHealth().isHealthy( healthReport );
-					if ( !isHealthy ) {
-						SimonManager.getCounter( alert.getId() ).increase();
-					} else {
-						SimonManager.getCounter( alertComponentName + ".passed" ).increase();
-					}
-
-				} catch (Exception e) {
-					addFailure( healthReport, alert, e.getClass().getSimpleName(), 1, 0, false );
-					logger.error( "Failed to execute custom health	: {}", alertComponentName, e );
-				}
+		LatencyHistogram.Snapshot histogram = alertInstance.getLastCollectedHistogram();
+		if ( histogram == null ) {
+			return;
+		}
+
+		ObjectNode percentiles = (ObjectNode) healthReport.get( Report.percentiles.json );
+		if ( percentiles == null ) {
+			percentiles = healthReport.putObject( Report.percentiles.json );
+		}
+		percentiles.set( alertInstance.getId(), histogram.toJson( jacksonMapper ) );
+	}
+
+	/**
+	 *
+	 * CustomHealth is passed its own report, merged into the health report on
+	 * completion
+	 */
+	private ObjectNode checkCustomHealth ( AlertInstance alert ) {
+
+		ObjectNode customReport = jacksonMapper.createObjectNode();
+		addReportSections( customReport );
+
+		String alertComponentName = alert.getCustomHealth().getComponentName();
+		logger.debug( "Invoking Custom Health API for: {}", alertComponentName, alert.getCustomHealth().getClass().getName() );
+		try {
+			boolean isHealthy = alert.getCustomHealth().isHealthy( customReport );
+			if ( !isHealthy ) {
+				SimonManager.getCounter( alert.getId() ).increase();
+			} else {
+				SimonManager.getCounter( alertComponentName + ".passed" ).increase();
 			}
-			;
 
+		} catch (Exception e) {
+			addFailure( customReport, alert, e.getClass().getSimpleName(), 1, 0, false );
+			logger.error( "Failed to execute custom health	: {}", alertComponentName, e );
 		}
 
-		return;
+		return customReport;
 	}
 
 	private void isCounterHeathy ( ObjectNode healthReport, AlertInstance alertInstance ) {
@@ -545,17 +831,26 @@ public class AlertProcessor {
 		if ( alertInstance.getLastCollectedSample() != null ) {
 			StopwatchSample sample = (StopwatchSample) alertInstance.getLastCollectedSample();
 
-			if ( sample.getCounter() < alertInstance.getOccurencesMin() ) {
+			// monitored methods: stopwatch has timed, successful calls only
+			long occurences = sample.getCounter();
+			boolean isOccurencesKnown = true;
+			if ( alertInstance.getLastInvocationTotal() >= 0 ) {
+				// -1 on the first collection: baseline only
+				occurences = alertInstance.getLastCollectedInvocations();
+				isOccurencesKnown = occurences >= 0;
+			}
+
+			if ( isOccurencesKnown && occurences < alertInstance.getOccurencesMin() ) {
 
 				addFailure( healthReport, alertInstance,
-					"Occurences - Min", sample.getCounter(), alertInstance.getOccurencesMin(), false );
+					"Occurences - Min", occurences, alertInstance.getOccurencesMin(), false );
 
 			}
 
-			if ( sample.getCounter() > alertInstance.getOccurencesMax() ) {
+			if ( isOccurencesKnown && occurences > alertInstance.getOccurencesMax() ) {
 				errorsFound = true;
 				addFailure( healthReport, alertInstance,
-					"Occurences - Max", sample.getCounter(), alertInstance.getOccurencesMax(), false );
+					"Occurences - Max", occurences, alertInstance.getOccurencesMax(), false );
 
 			}
 
@@ -574,6 +869,19 @@ public class AlertProcessor {
 			}
 		}
 
+		// percentiles of the last collection interval
+		LatencyHistogram.Snapshot histogram = alertInstance.getLastCollectedHistogram();
+		if ( histogram != null && histogram.getCount() > 0 ) {
+			long[] limits = alertInstance.getPercentileNanos();
+			for ( int i = 0; i < limits.length; i++ ) {
+				long collected = histogram.valueAt( AlertInstance.PERCENTILES[i] );
+				if ( collected > limits[i] ) {
+					addFailure( healthReport, alertInstance,
+						"Time - " + AlertInstance.PERCENTILE_NAMES[i], collected, limits[i], true );
+				}
+			}
+		}
+
 		// Also check latest samples for MAX - will report in next health
 		// report, versus wating for completion of interval
 		// -- do not double report errors
@@ -582,10 +890,16 @@ public class AlertProcessor {
 				alertInstance.getId() )
 				.sampleIncrementNoReset( alertInstance.getSampleName() );
 
-			if ( sampleFromCurrentInterval.getCounter() > alertInstance.getOccurencesMax() ) {
+			long currentOccurences = sampleFromCurrentInterval.getCounter();
+			MonitorHandle monitor = MonitorHandle.findByName( alertInstance.getId() );
+			if ( monitor != null && alertInstance.getLastInvocationTotal() >= 0 ) {
+				currentOccurences = monitor.getInvocations() - Math.max( 0, alertInstance.getLastInvocationTotal() );
+			}
+
+			if ( currentOccurences > alertInstance.getOccurencesMax() ) {
 
 				addFailure( healthReport, alertInstance,
-					"Occurences - Max", sampleFromCurrentInterval.getCounter(),
+					"Occurences - Max", currentOccurences,
 					alertInstance.getOccurencesMax(), false );
 
 			}
@@ -634,6 +948,10 @@ public class AlertProcessor {
 
 		if ( alertInstance.isEnabled() ) {
 			healthReport.put( Report.healthy.json, false );
+			if ( isTime ) {
+				// capture what the jvm is doing while latency is degraded
+				SamplingProfiler.onLatencyAlert( alertInstance.getId() );
+			}
 		} else {
 			logger.debug( "Alert has been suppressed in black box: {} ", alertInstance.getId() );
 		}
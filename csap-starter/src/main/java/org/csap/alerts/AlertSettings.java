@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
@@ -34,6 +35,7 @@ public class AlertSettings {
 	public NotifySettings notify = new NotifySettings();
 	public ThrottleSettings throttle = new ThrottleSettings();
 	public ReportSettings report = new ReportSettings();
+	public HistorySettings history = new HistorySettings();
 
 	/**
 	 * @return the alertLimits
@@ -63,7 +65,11 @@ public class AlertSettings {
 			alertLimit.updateTimersFromUnits();
 		}
 
-		allAlertInstances = new ArrayList<>();
+		// limits may be added after startup (@ServiceAgreement), while being
+		// checked on other threads
+		limits = new CopyOnWriteArrayList<>( getLimits() );
+
+		allAlertInstances = new CopyOnWriteArrayList<>();
 		allAlertInstances.addAll( getLimits() ) ;
 		// look for custom component implementations
 		Map<String, CustomHealth> customHealthMap = springContext.getBeansOfType( CustomHealth.class );
@@ -138,7 +144,7 @@ public class AlertSettings {
 
 	public String toString () {
 		return getReport() + "\n\t\t In-Memory cache size: " + getRememberCount()
-				+ "\n\t\t " + getThrottle() + "\n\t\t Email: " + getNotify() + "\n\t\t Limits: " + getLimits();
+				+ "\n\t\t " + getThrottle() + "\n\t\t " + getHistory() + "\n\t\t Email: " + getNotify() + "\n\t\t Limits: " + getLimits();
 	}
 
 	public int getRememberCount () {
@@ -166,6 +172,10 @@ public class AlertSettings {
 		private int emailTimeOutMs = 300;
 		private int frequency = 4;
 
+		// alerts waiting for the next email, oldest are dropped when full
+		private int queueSize = 500;
+		private int emailThreads = 2;
+
 		public int getFrequency () {
 			return frequency;
 		}
@@ -178,7 +188,8 @@ public class AlertSettings {
 
 		public String toString () {
 			return "Addresses: " + addresses + ",  Frequency: " + frequency + " " + timeUnit
-					+ "\n\t\t server: " + getEmailHost() + ":" + getEmailPort() + " max: " + getEmailTimeOutMs() + "ms";
+					+ "\n\t\t server: " + getEmailHost() + ":" + getEmailPort() + " max: " + getEmailTimeOutMs() + "ms"
+					+ " queue: " + getQueueSize() + " threads: " + getEmailThreads();
 		}
 
 		public void setFrequency ( int frequency ) {
@@ -228,12 +239,51 @@ public class AlertSettings {
 		public void setEmailMaxAlerts ( int emailMaxAlerts ) {
 			this.emailMaxAlerts = emailMaxAlerts;
 		}
+
+		public int getQueueSize () {
+			return queueSize;
+		}
+
+		public void setQueueSize ( int queueSize ) {
+			this.queueSize = queueSize;
+		}
+
+		public int getEmailThreads () {
+			return emailThreads;
+		}
+
+		public void setEmailThreads ( int emailThreads ) {
+			this.emailThreads = emailThreads;
+		}
 	}
 
 	public class ReportSettings {
 		private int frequency = 30;
 		private String timeUnit = "SECONDS";
 
+		private int checkThreads = 4;
+		private long checkTimeoutMs = 10000;
+
+		public int getCheckThreads () {
+			return checkThreads;
+		}
+
+		public void setCheckThreads ( int checkThreads ) {
+			this.checkThreads = checkThreads;
+		}
+
+		/**
+		 * Limits and each CustomHealth must complete within; otherwise they are
+		 * failed with type Timeout
+		 */
+		public long getCheckTimeoutMs () {
+			return checkTimeoutMs;
+		}
+
+		public void setCheckTimeoutMs ( long checkTimeoutMs ) {
+			this.checkTimeoutMs = checkTimeoutMs;
+		}
+
 		public long getIntervalSeconds () {
 			long numSeconds = CsapSimpleCache.parseTimeUnit( getTimeUnit(), TimeUnit.SECONDS ).toSeconds( getFrequency() );
 			return numSeconds;
@@ -256,7 +306,8 @@ public class AlertSettings {
 		}
 
 		public String toString () {
-			return "Report interval: " + frequency + " " + timeUnit;
+			return "Report interval: " + frequency + " " + timeUnit
+					+ ", check threads: " + checkThreads + " timeout: " + checkTimeoutMs + "ms";
 		}
 	}
 
@@ -291,6 +342,16 @@ public class AlertSettings {
 			return count;
 		}
 
+		/**
+		 * Each alert id, type, host and service starts its own throttle
+		 * window with its first alert.
+		 * 
+		 * @return
+		 */
+		public long getWindowMs () {
+			return CsapSimpleCache.parseTimeUnit( getTimeUnit(), TimeUnit.HOURS ).toMillis( getFrequency() );
+		}
+
 		public void setCount ( int throttleCount ) {
 			this.count = throttleCount;
 		}
@@ -317,4 +378,81 @@ public class AlertSettings {
 		this.report = report;
 	}
 
+	public class HistorySettings {
+		private boolean enabled = true;
+		private int fineSeconds = 10;
+		private int fineSlots = 360;
+		private int coarseSeconds = 60;
+		private int coarseSlots = 1440;
+		private int maxSeries = 500;
+
+		public boolean isEnabled () {
+			return enabled;
+		}
+
+		public void setEnabled ( boolean enabled ) {
+			this.enabled = enabled;
+		}
+
+		public int getFineSeconds () {
+			return fineSeconds;
+		}
+
+		public void setFineSeconds ( int fineSeconds ) {
+			this.fineSeconds = Math.max( 1, fineSeconds );
+		}
+
+		public int getFineSlots () {
+			return fineSlots;
+		}
+
+		public void setFineSlots ( int fineSlots ) {
+			this.fineSlots = Math.max( 1, fineSlots );
+		}
+
+		/**
+		 * rounded to a multiple of fineSeconds: coarse slots are rolled up from
+		 * fine samples
+		 */
+		public int getCoarseSeconds () {
+			return Math.max( 1, coarseSeconds / fineSeconds ) * fineSeconds;
+		}
+
+		public void setCoarseSeconds ( int coarseSeconds ) {
+			this.coarseSeconds = coarseSeconds;
+		}
+
+		public int getCoarseSlots () {
+			return coarseSlots;
+		}
+
+		public void setCoarseSlots ( int coarseSlots ) {
+			this.coarseSlots = Math.max( 1, coarseSlots );
+		}
+
+		/**
+		 * simons beyond the limit are not tracked
+		 */
+		public int getMaxSeries () {
+			return maxSeries;
+		}
+
+		public void setMaxSeries ( int maxSeries ) {
+			this.maxSeries = maxSeries;
+		}
+
+		public String toString () {
+			return "History: " + (enabled ? "" : "disabled, ") + fineSlots + " x " + fineSeconds + "s, "
+					+ coarseSlots + " x " + getCoarseSeconds() + "s, maximum series: " + maxSeries;
+		}
+	}
+
+	public HistorySettings getHistory () {
+		return history;
+	}
+
+	public void setHistory ( HistorySettings history ) {
+		this.history = history;
+	}
+
 }
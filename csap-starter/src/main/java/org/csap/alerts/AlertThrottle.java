@@ -0,0 +1,214 @@
+package org.csap.alerts;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.csap.alerts.AlertInstance.AlertItem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ *
+ * Throttles alerts using a 64 bit fingerprint of the alert identity (id, type,
+ * host, service).
+ *
+ * Each identity gets a window of the configured length starting with its first
+ * alert. Up to maxPerWindow alerts are kept; additional alerts replace the
+ * latest one and increment its count. When the window expires the alerts are
+ * moved to {@link AlertHistory}.
+ *
+ * Lookups are a single hash probe, expiry only visits expired windows.
+ *
+ * @see AlertSettings.ThrottleSettings
+ *
+ * @author pnightin
+ *
+ */
+public class AlertThrottle {
+
+	final static Logger logger = LoggerFactory.getLogger( AlertThrottle.class );
+
+	private final int maxPerWindow;
+	private final long windowMs;
+
+	private final Map<Long, Identity> identities = new HashMap<>();
+
+	// ordered by window start, which is also expiry order
+	private Identity oldest = null;
+	private Identity newest = null;
+
+	private int size = 0;
+	private int identityCount = 0;
+
+	public AlertThrottle( int maxPerWindow, long windowMs ) {
+		this.maxPerWindow = Math.max( 1, maxPerWindow );
+		this.windowMs = windowMs;
+	}
+
+	private class Identity {
+		final long fingerprint;
+		final JsonNode firstAlert;
+		final long windowStart;
+		final ObjectNode[] alerts = new ObjectNode[maxPerWindow];
+		int alertCount = 0;
+
+		// fingerprint collisions
+		Identity sameFingerprint = null;
+
+		Identity newer = null;
+
+		Identity( long fingerprint, ObjectNode alert, long windowStart ) {
+			this.fingerprint = fingerprint;
+			this.firstAlert = alert;
+			this.windowStart = windowStart;
+		}
+	}
+
+	/**
+	 *
+	 * @param alert
+	 *            json using AlertItem fields, count is updated
+	 */
+	public synchronized void add ( ObjectNode alert, long now ) {
+
+		long fingerprint = AlertItem.fingerprint( alert );
+
+		Identity identity = find( fingerprint, alert );
+		if ( identity == null ) {
+			identity = new Identity( fingerprint, alert, now );
+			Identity first = identities.put( fingerprint, identity );
+			identity.sameFingerprint = first;
+
+			if ( newest == null ) {
+				oldest = identity;
+			} else {
+				newest.newer = identity;
+			}
+			newest = identity;
+			identityCount++;
+		}
+
+		if ( identity.alertCount < maxPerWindow ) {
+			identity.alerts[identity.alertCount++] = alert;
+			size++;
+		} else {
+			// replace the latest, carrying the count forward
+			int latest = maxPerWindow - 1;
+			int oldCount = identity.alerts[latest].path( AlertItem.count.json ).asInt( 1 );
+			alert.put( AlertItem.count.json, 1 + oldCount );
+			identity.alerts[latest] = alert;
+		}
+	}
+
+	private Identity find ( long fingerprint, JsonNode alert ) {
+
+		for ( Identity identity = identities.get( fingerprint ); identity != null; identity = identity.sameFingerprint ) {
+			if ( AlertItem.isSameId( identity.firstAlert, alert ) ) {
+				return identity;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 *
+	 * Move alerts with expired windows into history
+	 *
+	 * @return number of alerts moved
+	 */
+	public synchronized int expire ( long now, AlertHistory history ) {
+
+		int numMoved = 0;
+
+		while (oldest != null && (now - oldest.windowStart) >= windowMs) {
+			Identity expired = oldest;
+
+			for ( int i = 0; i < expired.alertCount; i++ ) {
+				history.add( expired.alerts[i] );
+			}
+			numMoved += expired.alertCount;
+			size -= expired.alertCount;
+
+			remove( expired );
+			identityCount--;
+
+			oldest = expired.newer;
+			if ( oldest == null ) {
+				newest = null;
+			}
+		}
+
+		if ( numMoved > 0 ) {
+			logger.debug( "Moved {} alerts to history, remaining: {}", numMoved, size );
+		}
+
+		return numMoved;
+	}
+
+	private void remove ( Identity expired ) {
+
+		Identity first = identities.get( expired.fingerprint );
+		if ( first == expired ) {
+			if ( expired.sameFingerprint == null ) {
+				identities.remove( expired.fingerprint );
+			} else {
+				identities.put( expired.fingerprint, expired.sameFingerprint );
+			}
+			return;
+		}
+
+		for ( Identity previous = first; previous != null; previous = previous.sameFingerprint ) {
+			if ( previous.sameFingerprint == expired ) {
+				previous.sameFingerprint = expired.sameFingerprint;
+				return;
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param sinceMs
+	 *            alerts with an older timestamp are skipped
+	 */
+	public synchronized void addTo ( ArrayNode target, long sinceMs ) {
+
+		for ( Identity identity = oldest; identity != null; identity = identity.newer ) {
+			for ( int i = 0; i < identity.alertCount; i++ ) {
+				ObjectNode alert = identity.alerts[i];
+				if ( alert.path( AlertItem.timestamp.json ).asLong() >= sinceMs ) {
+					target.add( alert.deepCopy() );
+				}
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return alerts held in active windows
+	 */
+	public synchronized int size () {
+		return size;
+	}
+
+	/**
+	 *
+	 * @return alert identities with an active window
+	 */
+	public synchronized int getIdentityCount () {
+		return identityCount;
+	}
+
+	public int getMaxPerWindow () {
+		return maxPerWindow;
+	}
+
+	public long getWindowMs () {
+		return windowMs;
+	}
+
+}
@@ -1,17 +1,30 @@
 package org.csap.alerts;
 
+import java.io.IOException;
 import java.security.Principal;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Random;
 import java.util.concurrent.TimeUnit;
 
+import javax.servlet.http.HttpServletResponse;
+
 import org.csap.docs.CsapDoc;
+import org.csap.helpers.CsapSimpleCache;
+import org.csap.helpers.JvmStatsCollector;
+import org.csap.helpers.JvmStatsCollector.CollectionResults;
+import org.csap.integations.CallTreeRecorder;
 import org.csap.integations.CsapSecurityConfiguration;
 import org.csap.integations.CsapPerformance.CustomHealth;
+import org.csap.integations.MonitorHandle;
 import org.javasimon.Counter;
 import org.javasimon.CounterSample;
 import org.javasimon.Simon;
@@ -31,6 +44,7 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -165,49 +179,297 @@ public class AlertsController {
 
 	public final String SAMPLE_UI = "csapUI";
 
-	@CsapDoc(notes = "Get the metrics", baseUrl = "/csap")
+	public final static String[] METRIC_FIELDS = { "count", "mean", "min", "max", "total" };
+
+	@CsapDoc(notes = {
+			"Get the metrics: rows are written as they are collected.",
+			"filters: comma separated, names containing any of them; * matches any characters, eg. http.route.*.5xx",
+			"sort: name, count, mean, min, max or total (descending), top: number of rows, fields: count,mean,min,max,total"
+	}, baseUrl = "/csap")
 	@GetMapping(value = "/metrics", produces = MediaType.APPLICATION_JSON_VALUE)
+	public void metrics (
+							@RequestParam(value = "sampleName", required = false, defaultValue = SAMPLE_UI) String sampleName,
+							@RequestParam(value = "unit", required = false, defaultValue = "MILLISECONDS") String units,
+							@RequestParam(value = "filters", required = false, defaultValue = "") String filters,
+							@RequestParam(value = "sort", required = false, defaultValue = "") String sort,
+							@RequestParam(value = "top", required = false, defaultValue = "0") int top,
+							@RequestParam(value = "fields", required = false, defaultValue = "") String fields,
+							HttpServletResponse response )
+			throws IOException {
+
+		logger.debug( "sampleName: {}, units: {}, filters: {}, sort: {}, top: {}", sampleName, units, filters, sort, top );
+
+		if ( filters.length() > MetricNameFilter.MAX_LENGTH ) {
+			response.sendError( HttpServletResponse.SC_BAD_REQUEST,
+				"filters exceed " + MetricNameFilter.MAX_LENGTH + " characters" );
+			return;
+		}
+
+		TimeUnit timeUnit = CsapSimpleCache.parseTimeUnit( units, TimeUnit.MILLISECONDS );
+		MetricNameFilter nameFilter = new MetricNameFilter( filters );
+		int[] fieldIndexes = fieldIndexes( fields );
+
+		Comparator<MetricRow> order = rowOrder( sort );
+		if ( top > 0 && order == null ) {
+			order = rowOrder( "count" );
+		}
+
+		response.setContentType( MediaType.APPLICATION_JSON_VALUE );
+		try (JsonGenerator json = jacksonMapper.getFactory().createGenerator( response.getOutputStream() )) {
+
+			json.writeStartObject();
+			json.writeFieldName( "healthReport" );
+			jacksonMapper.writeTree( json, alertProcessor.getHealthReport() );
+
+			if ( !fields.isEmpty() ) {
+				json.writeArrayFieldStart( "fields" );
+				for ( int index : fieldIndexes ) {
+					json.writeString( METRIC_FIELDS[index] );
+				}
+				json.writeEndArray();
+			}
+
+			json.writeArrayFieldStart( "rows" );
+
+			if ( order == null ) {
+				// registry order, no rows held
+				for ( String name : SimonManager.getSimonNames() ) {
+					if ( !nameFilter.matches( name ) ) {
+						continue;
+					}
+					MetricRow row = MetricRow.build( name, sampleName, timeUnit );
+					if ( row != null ) {
+						row.write( json, fieldIndexes );
+					}
+				}
+			} else {
+				for ( MetricRow row : sortedRows( nameFilter, sampleName, timeUnit, order, top ) ) {
+					row.write( json, fieldIndexes );
+				}
+			}
+
+			json.writeEndArray();
+			json.writeEndObject();
+		}
+	}
+
+	// scrape owned: only current values and cumulative totals are exported,
+	// so results do not depend on other collections
+	private JvmStatsCollector scrapeJvmCollector = new JvmStatsCollector();
+
+	@CsapDoc(notes = {
+			"OpenMetrics (prometheus) text exposition: stopwatches as summaries, quantiles are since start; counters as counters or gauges",
+			"jvm: include JvmStatsCollector results: current values as gauges, gc time, http requests, bytes and sessions as counters"
+	}, baseUrl = "/csap")
+	@GetMapping(value = "/metrics/openmetrics")
+	public void openMetrics (
+								@RequestParam(value = "jvm", required = false, defaultValue = "true") boolean includeJvm,
+								HttpServletResponse response )
+			throws IOException {
+
+		response.setContentType( OpenMetricsWriter.CONTENT_TYPE );
+
+		OpenMetricsWriter openMetrics = new OpenMetricsWriter( response.getWriter(), alertProcessor.getLatencyRecorder() );
+
+		if ( includeJvm ) {
+			CollectionResults jvmResults;
+			synchronized (scrapeJvmCollector) {
+				jvmResults = scrapeJvmCollector.performCollection();
+			}
+			openMetrics.writeJvm( jvmResults );
+		}
+
+		openMetrics.writeSimons();
+		openMetrics.finish();
+	}
+
+	@CsapDoc(notes = {
+			"Rolling history of a stopwatch or counter: 10 second resolution for recent minutes, 1 minute beyond",
+			"Stopwatches with percentile alert limits include p95 per point, and percentiles over the minutes requested",
+			"name: simon name, if not specified the tracked names are returned"
+	}, baseUrl = "/csap")
+	@GetMapping(value = "/metrics/history", produces = MediaType.APPLICATION_JSON_VALUE)
 	@ResponseBody
-	public ObjectNode metrics (
-								@RequestParam(value = "sampleName", required = false, defaultValue = SAMPLE_UI) String sampleName,
-								@RequestParam(value = "unit", required = false, defaultValue = "MILLISECONDS") String units,
-								@RequestParam(value = "filters", required = false, defaultValue = "") String filters ) {
+	public ObjectNode metricHistory (
+										@RequestParam(value = "name", required = false) String name,
+										@RequestParam(value = "minutes", required = false, defaultValue = "15") int minutes ) {
 
-		logger.debug( "sampleName: {}, units: {}", sampleName, units );
 		ObjectNode results = jacksonMapper.createObjectNode();
 
-		results.set( "healthReport", alertProcessor.getHealthReport() );
+		MetricHistory history = alertProcessor.getMetricHistory();
+		if ( history == null ) {
+			results.put( "error", "csap.performance.alert.history.enabled is false" );
+			return results;
+		}
+
+		if ( name == null ) {
+			results.put( "settings", history.toString() );
+			ArrayNode names = results.putArray( "names" );
+			history.getSeriesNames().forEach( names::add );
+			return results;
+		}
+
+		ObjectNode series = history.query( name, minutes );
+		if ( series == null ) {
+			results.put( "error", name + " is not tracked" );
+			return results;
+		}
+
+		return series;
+	}
+
+	@CsapDoc(notes = {
+			"Slowest requests retained by csap.performance.call-tree, with the monitored calls made by each",
+			"top: number of requests"
+	}, baseUrl = "/csap")
+	@GetMapping(value = "/metrics/slowRequests", produces = MediaType.APPLICATION_JSON_VALUE)
+	@ResponseBody
+	public ObjectNode slowRequests (
+										@RequestParam(value = "top", required = false, defaultValue = "10") int top ) {
+
+		CallTreeRecorder recorder = CallTreeRecorder.getActive();
+		if ( recorder == null ) {
+			ObjectNode results = jacksonMapper.createObjectNode();
+			results.put( "error", "csap.performance.call-tree.enabled is false" );
+			return results;
+		}
+
+		return recorder.slowestAsJson( top );
+	}
+
+	/**
+	 * 
+	 * top &gt; 0: bounded heap, only top rows are held
+	 */
+	private List<MetricRow> sortedRows (
+											MetricNameFilter nameFilter, String sampleName, TimeUnit timeUnit,
+											Comparator<MetricRow> order, int top ) {
+
+		if ( top <= 0 ) {
+			List<MetricRow> rows = new ArrayList<>();
+			for ( String name : SimonManager.getSimonNames() ) {
+				if ( nameFilter.matches( name ) ) {
+					MetricRow row = MetricRow.build( name, sampleName, timeUnit );
+					if ( row != null ) {
+						rows.add( row );
+					}
+				}
+			}
+			rows.sort( order );
+			return rows;
+		}
+
+		// head of the queue is the last of the top rows
+		PriorityQueue<MetricRow> topRows = new PriorityQueue<>( top + 1, order.reversed() );
+		for ( String name : SimonManager.getSimonNames() ) {
+			if ( !nameFilter.matches( name ) ) {
+				continue;
+			}
+			MetricRow row = MetricRow.build( name, sampleName, timeUnit );
+			if ( row == null ) {
+				continue;
+			}
+			topRows.add( row );
+			if ( topRows.size() > top ) {
+				topRows.poll();
+			}
+		}
+
+		List<MetricRow> rows = new ArrayList<>( topRows );
+		rows.sort( order );
+		return rows;
+	}
+
+	private int[] fieldIndexes ( String fields ) {
 
-		ArrayNode rows = results.putArray( "rows" );
+		if ( fields.isEmpty() ) {
+			return new int[] { 0, 1, 2, 3, 4 };
+		}
+
+		List<String> allFields = Arrays.asList( METRIC_FIELDS );
+		return Arrays.stream( fields.split( "," ) )
+			.map( String::trim )
+			.mapToInt( allFields::indexOf )
+			.filter( index -> index >= 0 )
+			.toArray();
+	}
+
+	private Comparator<MetricRow> rowOrder ( String sort ) {
+
+		switch (sort) {
+		case "name":
+			return Comparator.comparing( row -> row.name );
+		case "count":
+		case "mean":
+		case "min":
+		case "max":
+		case "total":
+			int index = Arrays.asList( METRIC_FIELDS ).indexOf( sort );
+			Comparator<MetricRow> byValue = Comparator.comparingLong( row -> row.values[index] );
+			return byValue.reversed();
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * 
+	 * Single row: values ordered as METRIC_FIELDS, counters only have count
+	 * 
+	 */
+	private static class MetricRow {
+
+		final String name;
+		final long[] values;
+		final boolean isStopwatch;
+		final Object sampleRate;
+
+		private MetricRow( String name, long[] values, boolean isStopwatch, Object sampleRate ) {
+			this.name = name;
+			this.values = values;
+			this.isStopwatch = isStopwatch;
+			this.sampleRate = sampleRate;
+		}
 
-		SimonManager.getSimonNames().forEach( name -> {
+		static MetricRow build ( String name, String sampleName, TimeUnit timeUnit ) {
 
 			Simon s = SimonManager.getSimon( name );
 			if ( s instanceof Stopwatch ) {
 				StopwatchSample sample = ((Stopwatch) s).sampleIncrementNoReset( sampleName );
+				long[] values = {
+						sample.getCounter(),
+						timeUnit.convert( Math.round( sample.getMean() ), TimeUnit.NANOSECONDS ),
+						timeUnit.convert( sample.getMin(), TimeUnit.NANOSECONDS ),
+						timeUnit.convert( sample.getMax(), TimeUnit.NANOSECONDS ),
+						timeUnit.convert( sample.getTotal(), TimeUnit.NANOSECONDS ) };
 
-				ObjectNode columns = rows.addObject();
-				columns.put( "name", name );
-				ArrayNode data = columns.putArray( "data" );
-
-				data.add( sample.getCounter() );
-				data.add( TimeUnit.NANOSECONDS.toMillis( Math.round( sample.getMean() ) ) );
-				data.add( TimeUnit.NANOSECONDS.toMillis( sample.getMin() ) );
-				data.add( TimeUnit.NANOSECONDS.toMillis( sample.getMax() ) );
-				data.add( TimeUnit.NANOSECONDS.toMillis( sample.getTotal() ) );
+				return new MetricRow( name, values, true, s.getAttribute( MonitorHandle.SAMPLE_RATE_ATTRIBUTE ) );
 
 			} else if ( s instanceof Counter ) {
-
 				CounterSample sample = ((Counter) s).sampleIncrementNoReset( sampleName );
-				ObjectNode columns = rows.addObject();
-				columns.put( "name", name );
-				ArrayNode data = columns.putArray( "data" );
-				data.add( sample.getCounter() );
+				return new MetricRow( name, new long[] { sample.getCounter(), 0, 0, 0, 0 }, false, null );
 			}
 
-		} );
+			return null;
+		}
 
-		return results;
+		void write ( JsonGenerator json, int[] fieldIndexes )
+				throws IOException {
+
+			json.writeStartObject();
+			json.writeStringField( "name", name );
+			json.writeArrayFieldStart( "data" );
+			for ( int index : fieldIndexes ) {
+				if ( isStopwatch || index == 0 ) {
+					json.writeNumber( values[index] );
+				}
+			}
+			json.writeEndArray();
+			if ( sampleRate != null ) {
+				json.writeNumberField( MonitorHandle.SAMPLE_RATE_ATTRIBUTE, (Integer) sampleRate );
+			}
+			json.writeEndObject();
+		}
 	}
 
 	@CsapDoc(notes = "Health data showing alerts. Default hours is 4 - and testing is 0", baseUrl = "/csap")
@@ -221,7 +483,13 @@ public class AlertsController {
 		ArrayNode alertsTriggered;
 
 		if ( testCount == 0 ) {
-			alertsTriggered = alertProcessor.getAllAlerts();
+			// history is filtered while building the snapshot
+			long sinceMs = 0;
+			if ( hours > 0 ) {
+				sinceMs = System.currentTimeMillis() - TimeUnit.HOURS.toMillis( hours );
+			}
+			results.set( "triggered", alertProcessor.getAllAlerts( sinceMs ) );
+			return results;
 		} else {
 			results.put( "testCount", testCount );
 			alertsTriggered = jacksonMapper.createArrayNode();
@@ -269,12 +537,12 @@ public class AlertsController {
 		return results;
 	}
 
-	SimpleDateFormat timeDayFormat = new SimpleDateFormat( "HH:mm:ss , MMM d" );
+	private final static DateTimeFormatter TIME_DAY_FORMAT = DateTimeFormatter
+		.ofPattern( "HH:mm:ss , MMM d" )
+		.withZone( ZoneId.systemDefault() );
 
 	private String getFormatedTime ( long tstamp ) {
-
-		Date d = new Date( tstamp );
-		return timeDayFormat.format( d );
+		return TIME_DAY_FORMAT.format( Instant.ofEpochMilli( tstamp ) );
 	}
 
 }
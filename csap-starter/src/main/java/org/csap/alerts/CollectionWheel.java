@@ -0,0 +1,222 @@
+package org.csap.alerts;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.javasimon.SimonManager;
+import org.javasimon.Split;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * Hashed timing wheel with a 1 second tick used to collect alert samples.
+ *
+ * AlertInstances with the same collection interval share a group; a group is
+ * placed in the slot of its next due tick and all members are sampled in one
+ * pass. Due ticks are absolute (from start), so collection does not drift; if
+ * the thread falls behind, missed ticks are processed on the next run.
+ *
+ * Tick lag is recorded in csap.health.collection.lag. Batches are recorded in
+ * the csap.health.collection.batch meter for ticks that sampled alerts: count
+ * is collection passes, .total the instances sampled, .max the largest batch
+ *
+ * @author pnightin
+ *
+ */
+public class CollectionWheel {
+
+	final static Logger logger = LoggerFactory.getLogger( CollectionWheel.class );
+
+	private final static long TICK_NANOS = TimeUnit.SECONDS.toNanos( 1 );
+	private final static int WHEEL_SIZE = 512;
+
+	private final Consumer<AlertInstance> collector;
+
+	private final CsapMeter batchMeter = CsapMeter.get( CsapGlobalId.COLLECTION_BATCH.id );
+
+	@SuppressWarnings("unchecked")
+	private final List<CollectionGroup>[] wheel = new List[WHEEL_SIZE];
+
+	private final Map<Long, CollectionGroup> groupsBySeconds = new HashMap<>();
+
+	private ScheduledExecutorService tickExecutor = null;
+
+	private long startNanos = 0;
+
+	// last tick processed
+	private long currentTick = 0;
+
+	private class CollectionGroup {
+		final long periodSeconds;
+		final List<AlertInstance> members = new CopyOnWriteArrayList<>();
+		long dueTick;
+
+		CollectionGroup( long periodSeconds, long dueTick ) {
+			this.periodSeconds = periodSeconds;
+			this.dueTick = dueTick;
+		}
+	}
+
+	public CollectionWheel( Consumer<AlertInstance> collector ) {
+		this.collector = collector;
+		for ( int i = 0; i < WHEEL_SIZE; i++ ) {
+			wheel[i] = new ArrayList<>();
+		}
+	}
+
+	/**
+	 *
+	 * May be called before or after start; first collection is after one
+	 * interval.
+	 *
+	 */
+	public synchronized void register ( AlertInstance alertInstance ) {
+
+		long periodSeconds = Math.max( 1, alertInstance.getCollectionSeconds() );
+
+		CollectionGroup group = groupsBySeconds.get( periodSeconds );
+		if ( group == null ) {
+			group = new CollectionGroup( periodSeconds, currentTick + periodSeconds );
+			groupsBySeconds.put( periodSeconds, group );
+			slot( group.dueTick ).add( group );
+			logger.debug( "Added collection group: {} seconds", periodSeconds );
+		}
+
+		group.members.add( alertInstance );
+	}
+
+	public synchronized void unregister ( AlertInstance alertInstance ) {
+
+		CollectionGroup group = groupsBySeconds.get( Math.max( 1, alertInstance.getCollectionSeconds() ) );
+		if ( group != null ) {
+			group.members.remove( alertInstance );
+		}
+	}
+
+	public synchronized void start () {
+
+		BasicThreadFactory wheelFactory = new BasicThreadFactory.Builder()
+			.namingPattern( CollectionWheel.class.getSimpleName() + "-%d" )
+			.daemon( true )
+			.priority( Thread.NORM_PRIORITY )
+			.build();
+
+		tickExecutor = Executors.newSingleThreadScheduledExecutor( wheelFactory );
+
+		startNanos = System.nanoTime();
+		tickExecutor.scheduleAtFixedRate( this::tick, 1, 1, TimeUnit.SECONDS );
+
+		logger.info( "Collection groups: {}, alerts: {}", groupsBySeconds.keySet(), getAlertCount() );
+	}
+
+	public void shutdown () {
+		if ( tickExecutor != null ) {
+			tickExecutor.shutdownNow();
+		}
+	}
+
+	private List<CollectionGroup> slot ( long tick ) {
+		return wheel[(int) (tick % WHEEL_SIZE)];
+	}
+
+	private void tick () {
+
+		try {
+			long elapsedNanos = System.nanoTime() - startNanos;
+			long targetTick = elapsedNanos / TICK_NANOS;
+
+			// time since the tick was due
+			long lagNanos = elapsedNanos - (targetTick * TICK_NANOS);
+			if ( targetTick - currentTick > 1 ) {
+				lagNanos += (targetTick - currentTick - 1) * TICK_NANOS;
+			}
+			SimonManager.getStopwatch( CsapGlobalId.COLLECTION_LAG.id ).addSplit( Split.create( lagNanos ) );
+
+			collectThrough( targetTick );
+
+		} catch (Exception e) {
+			logger.error( "Failed to collect", e );
+		}
+	}
+
+	/**
+	 *
+	 * Samples groups due up to targetTick; called by the tick thread
+	 *
+	 * @return instances sampled
+	 */
+	int collectThrough ( long targetTick ) {
+
+		int batchSize = 0;
+		for ( CollectionGroup group : advanceTo( targetTick ) ) {
+			for ( AlertInstance alertInstance : group.members ) {
+				collector.accept( alertInstance );
+				batchSize++;
+			}
+		}
+
+		// most ticks have nothing due
+		if ( batchSize > 0 ) {
+			batchMeter.record( batchSize );
+		}
+
+		return batchSize;
+	}
+
+	/**
+	 *
+	 * @return groups due, rescheduled to their next interval
+	 */
+	private synchronized List<CollectionGroup> advanceTo ( long targetTick ) {
+
+		List<CollectionGroup> due = new ArrayList<>();
+
+		while (currentTick < targetTick) {
+			currentTick++;
+
+			Iterator<CollectionGroup> slotGroups = slot( currentTick ).iterator();
+			while (slotGroups.hasNext()) {
+				CollectionGroup group = slotGroups.next();
+				if ( group.dueTick > currentTick ) {
+					// later rotation of the wheel
+					continue;
+				}
+				slotGroups.remove();
+				due.add( group );
+			}
+		}
+
+		for ( CollectionGroup group : due ) {
+			// skip intervals missed while behind, keeping alignment
+			do {
+				group.dueTick += group.periodSeconds;
+			} while (group.dueTick <= currentTick);
+			slot( group.dueTick ).add( group );
+		}
+
+		return due;
+	}
+
+	public synchronized int getGroupCount () {
+		return groupsBySeconds.size();
+	}
+
+	public synchronized int getAlertCount () {
+		int count = 0;
+		for ( CollectionGroup group : groupsBySeconds.values() ) {
+			count += group.members.size();
+		}
+		return count;
+	}
+
+}
@@ -7,7 +7,11 @@ public enum CsapGlobalId {
 	
 	// csap related
 	HEALTH_REPORT("health.report.all"), HEALTH_REPORT_PASS("health.report.pass"), HEALTH_REPORT_FAIL("health.report.fail"), 
-	UNDEFINED_ALERTS("health.report.alert.undefined") ;
+	UNDEFINED_ALERTS("health.report.alert.undefined"),
+	HEALTH_CHECK("health.check"), HEALTH_CHECK_TIMEOUT("health.check.timeout"),
+	COLLECTION_LAG("health.collection.lag"), COLLECTION_BATCH("health.collection.batch"),
+	METRICS_OVERFLOW("metrics.overflow"), EXECUTOR("executor"), OVERHEAD("overhead"), JVM_GC("jvm.gc"), HTTP_ALLOCATED("http.allocated"),
+	NOTIFY_SEND("health.notify.send"), NOTIFY_FAIL("health.notify.fail"), NOTIFY_DROPPED("health.notify.dropped") ;
 	
 	
 	public String id;
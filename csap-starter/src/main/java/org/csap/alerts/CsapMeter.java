@@ -0,0 +1,213 @@
+package org.csap.alerts;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.javasimon.SimonManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * Count (and optionally value) meter for high frequency updates: counts use a
+ * striped LongAdder, min and max use compare and set - no locks on update.
+ *
+ * Every second the change is published to the java simon counter with the same
+ * name, so the simon console, /csap/metrics and alert limits use it as any
+ * other counter. When values are recorded, the interval total, min and max are
+ * published to name.total, name.min and name.max.
+ *
+ * Gauges registered with {@link #gauge(String, LongSupplier)} are read by the
+ * same publisher, so values kept in atomics are not published on update.
+ *
+ * @author pnightin
+ *
+ */
+public class CsapMeter {
+
+	final static Logger logger = LoggerFactory.getLogger( CsapMeter.class );
+
+	public final static long PUBLISH_SECONDS = 1;
+
+	private static Map<String, CsapMeter> meters = new ConcurrentHashMap<>();
+	private static Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+	private static ScheduledExecutorService publishExecutor = null;
+
+	private final String name;
+
+	private final LongAdder count = new LongAdder();
+	private final LongAdder total = new LongAdder();
+	private final AtomicLong min = new AtomicLong( Long.MAX_VALUE );
+	private final AtomicLong max = new AtomicLong( Long.MIN_VALUE );
+	private volatile boolean isValueRecorded = false;
+
+	private long publishedCount = 0;
+	private long publishedTotal = 0;
+
+	private CsapMeter( String name ) {
+		this.name = name;
+	}
+
+	/**
+	 *
+	 * Lookup is a map read: cache the meter for fixed names.
+	 *
+	 */
+	public static CsapMeter get ( String name ) {
+
+		CsapMeter meter = meters.get( name );
+		if ( meter == null ) {
+			meter = meters.computeIfAbsent( name, CsapMeter::new );
+			startPublishing();
+		}
+
+		return meter;
+	}
+
+	private static synchronized void startPublishing () {
+
+		if ( publishExecutor != null ) {
+			return;
+		}
+
+		BasicThreadFactory publishFactory = new BasicThreadFactory.Builder()
+			.namingPattern( CsapMeter.class.getSimpleName() + "-%d" )
+			.daemon( true )
+			.priority( Thread.NORM_PRIORITY )
+			.build();
+
+		publishExecutor = Executors.newSingleThreadScheduledExecutor( publishFactory );
+		publishExecutor.scheduleAtFixedRate( CsapMeter::publishAll, PUBLISH_SECONDS, PUBLISH_SECONDS, TimeUnit.SECONDS );
+	}
+
+	public static void publishAll () {
+		try {
+			for ( CsapMeter meter : meters.values() ) {
+				meter.publish();
+			}
+			for ( Map.Entry<String, LongSupplier> gauge : gauges.entrySet() ) {
+				OpenMetricsWriter.gauge( gauge.getKey() ).set( gauge.getValue().getAsLong() );
+			}
+		} catch (Exception e) {
+			logger.error( "Failed to publish meters", e );
+		}
+	}
+
+	/**
+	 * meter is no longer published; simon counters are left as is
+	 */
+	public static void remove ( String name ) {
+		CsapMeter meter = meters.remove( name );
+		if ( meter != null ) {
+			meter.publish();
+		}
+	}
+
+	/**
+	 *
+	 * value is published every second to the gauge with the name; replaces a
+	 * gauge registered with the same name
+	 */
+	public static void gauge ( String name, LongSupplier value ) {
+		gauges.put( name, value );
+		startPublishing();
+	}
+
+	public static int size () {
+		return meters.size();
+	}
+
+	public void increment () {
+		count.increment();
+	}
+
+	public void add ( long amount ) {
+		count.add( amount );
+	}
+
+	/**
+	 *
+	 * count is incremented, value added to total and min/max
+	 */
+	public void record ( long value ) {
+
+		count.increment();
+		total.add( value );
+
+		long current;
+		while (value < (current = min.get())) {
+			if ( min.compareAndSet( current, value ) ) {
+				break;
+			}
+		}
+
+		while (value > (current = max.get())) {
+			if ( max.compareAndSet( current, value ) ) {
+				break;
+			}
+		}
+
+		if ( !isValueRecorded ) {
+			isValueRecorded = true;
+		}
+	}
+
+	synchronized void publish () {
+
+		long currentCount = count.sum();
+		long countDelta = currentCount - publishedCount;
+		publishedCount = currentCount;
+
+		// simon counter is created on first update
+		if ( countDelta > 0 ) {
+			SimonManager.getCounter( name ).increase( countDelta );
+		}
+
+		if ( !isValueRecorded ) {
+			return;
+		}
+
+		long currentTotal = total.sum();
+		long totalDelta = currentTotal - publishedTotal;
+		publishedTotal = currentTotal;
+		if ( totalDelta != 0 ) {
+			SimonManager.getCounter( name + ".total" ).increase( totalDelta );
+		}
+
+		// interval min and max
+		long intervalMin = min.getAndSet( Long.MAX_VALUE );
+		long intervalMax = max.getAndSet( Long.MIN_VALUE );
+		if ( intervalMax != Long.MIN_VALUE ) {
+			OpenMetricsWriter.gauge( name + ".min" ).set( intervalMin );
+			OpenMetricsWriter.gauge( name + ".max" ).set( intervalMax );
+		}
+	}
+
+	public String getName () {
+		return name;
+	}
+
+	/**
+	 * @return exact count, including updates not yet published
+	 */
+	public long getCount () {
+		return count.sum();
+	}
+
+	public long getTotal () {
+		return total.sum();
+	}
+
+	@Override
+	public String toString () {
+		return name + " count: " + getCount();
+	}
+
+}
@@ -0,0 +1,252 @@
+package org.csap.alerts;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.javasimon.utils.SimonUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ *
+ * Log linear histogram of nano second latencies: each power of 2 is split into
+ * 32 linear buckets, so reported values are within ~3% of recorded values.
+ *
+ * Recording is a single atomic increment. Counts are cumulative; readers take
+ * a {@link Snapshot} and subtract the previous one to get an interval.
+ * Intervals can be stored sparse - only buckets used - and merged again.
+ *
+ * @author pnightin
+ *
+ */
+public class LatencyHistogram {
+
+	private final static int SUB_BUCKET_BITS = 5;
+	private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	// group 0 holds 0..31 exactly, groups 1..58 cover remaining long range
+	private final static int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final String name;
+	private final AtomicLongArray counts = new AtomicLongArray( BUCKET_COUNT );
+
+	public LatencyHistogram( String name ) {
+		this.name = name;
+	}
+
+	public void record ( long nanos ) {
+		counts.incrementAndGet( bucketIndex( Math.max( 0, nanos ) ) );
+	}
+
+	static int bucketIndex ( long value ) {
+
+		if ( value < SUB_BUCKETS ) {
+			return (int) value;
+		}
+
+		int highestBit = 63 - Long.numberOfLeadingZeros( value );
+		int shift = highestBit - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+
+		return (shift + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * @return largest value that maps to the bucket
+	 */
+	static long bucketUpperValue ( int index ) {
+
+		int group = index / SUB_BUCKETS;
+		long subBucket = index % SUB_BUCKETS;
+
+		if ( group == 0 ) {
+			return subBucket;
+		}
+
+		int shift = group - 1;
+		long lower = (SUB_BUCKETS + subBucket) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+	public Snapshot snapshot () {
+
+		long[] copy = new long[BUCKET_COUNT];
+		for ( int i = 0; i < BUCKET_COUNT; i++ ) {
+			copy[i] = counts.get( i );
+		}
+
+		return new Snapshot( copy );
+	}
+
+	public String getName () {
+		return name;
+	}
+
+	// sparse: bucket index in the high bits, count in the low bits
+	private final static int SPARSE_SHIFT = 40;
+	private final static long SPARSE_COUNT_MASK = (1L << SPARSE_SHIFT) - 1;
+
+	public static class Snapshot {
+
+		private final long[] counts;
+		private final long total;
+
+		private Snapshot( long[] counts ) {
+			this.counts = counts;
+			long sum = 0;
+			for ( long count : counts ) {
+				sum += count;
+			}
+			this.total = sum;
+		}
+
+		/**
+		 *
+		 * @return counts recorded since previous, previous may be null
+		 */
+		public Snapshot minus ( Snapshot previous ) {
+
+			if ( previous == null ) {
+				return this;
+			}
+
+			long[] delta = new long[counts.length];
+			for ( int i = 0; i < counts.length; i++ ) {
+				delta[i] = counts[i] - previous.counts[i];
+			}
+
+			return new Snapshot( delta );
+		}
+
+		public long getCount () {
+			return total;
+		}
+
+		/**
+		 *
+		 * @return buckets with counts, in bucket order
+		 */
+		public long[] toSparse () {
+
+			int used = 0;
+			for ( long count : counts ) {
+				if ( count > 0 ) {
+					used++;
+				}
+			}
+
+			long[] sparse = new long[used];
+			int position = 0;
+			for ( int i = 0; i < counts.length; i++ ) {
+				if ( counts[i] > 0 ) {
+					sparse[position++] = ((long) i << SPARSE_SHIFT) | Math.min( counts[i], SPARSE_COUNT_MASK );
+				}
+			}
+
+			return sparse;
+		}
+
+		/**
+		 *
+		 * @return sum of sparse counts, either may be null
+		 */
+		public static long[] mergeSparse ( long[] first, long[] second ) {
+
+			if ( first == null || first.length == 0 ) {
+				return second;
+			}
+			if ( second == null || second.length == 0 ) {
+				return first;
+			}
+
+			long[] merged = new long[first.length + second.length];
+			int size = 0;
+			int i = 0;
+			int j = 0;
+			while (i < first.length || j < second.length) {
+				long firstIndex = i < first.length ? first[i] >>> SPARSE_SHIFT : Long.MAX_VALUE;
+				long secondIndex = j < second.length ? second[j] >>> SPARSE_SHIFT : Long.MAX_VALUE;
+				if ( firstIndex == secondIndex ) {
+					long count = Math.min( SPARSE_COUNT_MASK,
+						(first[i++] & SPARSE_COUNT_MASK) + (second[j++] & SPARSE_COUNT_MASK) );
+					merged[size++] = (firstIndex << SPARSE_SHIFT) | count;
+				} else if ( firstIndex < secondIndex ) {
+					merged[size++] = first[i++];
+				} else {
+					merged[size++] = second[j++];
+				}
+			}
+
+			return size == merged.length ? merged : Arrays.copyOf( merged, size );
+		}
+
+		/**
+		 *
+		 * @param sparseCounts
+		 *            from {@link #toSparse()}, null entries are empty
+		 */
+		public static Snapshot ofSparse ( List<long[]> sparseCounts ) {
+
+			long[] counts = new long[BUCKET_COUNT];
+			for ( long[] sparse : sparseCounts ) {
+				if ( sparse == null ) {
+					continue;
+				}
+				for ( long bucket : sparse ) {
+					counts[(int) (bucket >>> SPARSE_SHIFT)] += bucket & SPARSE_COUNT_MASK;
+				}
+			}
+
+			return new Snapshot( counts );
+		}
+
+		/**
+		 *
+		 * @param percentile
+		 *            0 to 100, eg. 99.9
+		 * @return nanos, 0 if empty
+		 */
+		public long valueAt ( double percentile ) {
+
+			if ( total == 0 ) {
+				return 0;
+			}
+
+			long rank = Math.max( 1, (long) Math.ceil( (percentile / 100.0) * total ) );
+			long seen = 0;
+			for ( int i = 0; i < counts.length; i++ ) {
+				seen += counts[i];
+				if ( seen >= rank ) {
+					return bucketUpperValue( i );
+				}
+			}
+
+			return getMax();
+		}
+
+		public long getMax () {
+			for ( int i = counts.length - 1; i >= 0; i-- ) {
+				if ( counts[i] > 0 ) {
+					return bucketUpperValue( i );
+				}
+			}
+			return 0;
+		}
+
+		public ObjectNode toJson ( ObjectMapper jacksonMapper ) {
+
+			ObjectNode item = jacksonMapper.createObjectNode();
+			item.put( "count", getCount() );
+			item.put( "p50", SimonUtils.presentNanoTime( valueAt( 50 ) ) );
+			item.put( "p90", SimonUtils.presentNanoTime( valueAt( 90 ) ) );
+			item.put( "p99", SimonUtils.presentNanoTime( valueAt( 99 ) ) );
+			item.put( "p999", SimonUtils.presentNanoTime( valueAt( 99.9 ) ) );
+			item.put( "max", SimonUtils.presentNanoTime( getMax() ) );
+
+			return item;
+		}
+	}
+
+}
@@ -0,0 +1,57 @@
+package org.csap.alerts;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.javasimon.Split;
+import org.javasimon.Stopwatch;
+import org.javasimon.StopwatchSample;
+import org.javasimon.callback.CallbackSkeleton;
+
+/**
+ *
+ * Simon callback that records stopwatch splits into a {@link LatencyHistogram}
+ * for registered stopwatch names; other stopwatches are a single map miss.
+ *
+ * @author pnightin
+ *
+ */
+public class LatencyRecorder extends CallbackSkeleton {
+
+	private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+	public LatencyHistogram register ( String stopwatchName ) {
+		return histograms.computeIfAbsent( stopwatchName, LatencyHistogram::new );
+	}
+
+	public LatencyHistogram get ( String stopwatchName ) {
+		return histograms.get( stopwatchName );
+	}
+
+	public Map<String, LatencyHistogram> getHistograms () {
+		return histograms;
+	}
+
+	@Override
+	public void onStopwatchStop ( Split split, StopwatchSample sample ) {
+		record( split.getStopwatch(), split );
+	}
+
+	@Override
+	public void onStopwatchAdd ( Stopwatch stopwatch, Split split, StopwatchSample sample ) {
+		record( stopwatch, split );
+	}
+
+	private void record ( Stopwatch stopwatch, Split split ) {
+
+		if ( stopwatch == null ) {
+			return;
+		}
+
+		LatencyHistogram histogram = histograms.get( stopwatch.getName() );
+		if ( histogram != null ) {
+			histogram.record( split.runningFor() );
+		}
+	}
+
+}
@@ -0,0 +1,223 @@
+package org.csap.alerts;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.javasimon.Counter;
+import org.javasimon.Simon;
+import org.javasimon.SimonManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * Limits the number of metric names created from request data (userids,
+ * ...) under a prefix.
+ *
+ * Up to maxNames keys get their own metric. Other keys use prefix + "other"
+ * and increment csap.metrics.overflow, with no locks or scans on the request
+ * thread; untracked keys are counted in a bounded candidate table.
+ *
+ * Every maxNames overflows, one thread rebalances: candidates hotter than
+ * tracked keys during that window replace them (approximate space saving).
+ * The evicted key's count is folded into prefix + other and its simon is
+ * destroyed, so hot keys stay exact while memory and /csap/metrics stay flat.
+ *
+ * @author pnightin
+ *
+ */
+public class MetricCardinality {
+
+	final static Logger logger = LoggerFactory.getLogger( MetricCardinality.class );
+
+	public final static String OTHER = "other";
+
+	private static Map<String, MetricCardinality> guards = new ConcurrentHashMap<>();
+	private static volatile int defaultMaxNames = 100;
+
+	private final static CsapMeter overflowMeter = CsapMeter.get( CsapGlobalId.METRICS_OVERFLOW.id );
+
+	private final String prefix;
+
+	// tracked keys: hits since last rebalance
+	private final Map<String, LongAdder> tracked = new ConcurrentHashMap<>();
+	private final AtomicInteger trackedCount = new AtomicInteger();
+
+	// untracked keys seen since last rebalance, at most maxNames
+	private final Map<String, LongAdder> candidates = new ConcurrentHashMap<>();
+
+	private final AtomicLong overflows = new AtomicLong();
+	private final AtomicBoolean rebalancing = new AtomicBoolean( false );
+	private final LongAdder evictions = new LongAdder();
+
+	private MetricCardinality( String prefix ) {
+		this.prefix = prefix;
+	}
+
+	public static MetricCardinality forPrefix ( String prefix ) {
+		return guards.computeIfAbsent( prefix, MetricCardinality::new );
+	}
+
+	/**
+	 * Read on use: applies to guards created before settings are bound, eg.
+	 * static fields
+	 */
+	public static void setDefaultMaxNames ( int maxNames ) {
+		defaultMaxNames = maxNames;
+	}
+
+	public static Map<String, MetricCardinality> getGuards () {
+		return guards;
+	}
+
+	private static int maxNames () {
+		return Math.max( 1, defaultMaxNames );
+	}
+
+	/**
+	 *
+	 * @return prefix + key if the key is tracked, otherwise prefix + other
+	 */
+	public String name ( String key ) {
+
+		LongAdder hits = tracked.get( key );
+		if ( hits != null ) {
+			hits.increment();
+			return prefix + key;
+		}
+
+		if ( admit( key ) ) {
+			return prefix + key;
+		}
+
+		int maxNames = maxNames();
+		LongAdder candidate = candidates.get( key );
+		if ( candidate == null && candidates.size() < maxNames ) {
+			candidate = candidates.computeIfAbsent( key, k -> new LongAdder() );
+		}
+		if ( candidate != null ) {
+			candidate.increment();
+		}
+
+		overflowMeter.increment();
+		if ( overflows.incrementAndGet() % maxNames == 0 ) {
+			rebalance();
+		}
+
+		return prefix + OTHER;
+	}
+
+	private boolean admit ( String key ) {
+
+		int count;
+		while ((count = trackedCount.get()) < maxNames()) {
+			if ( trackedCount.compareAndSet( count, count + 1 ) ) {
+				LongAdder hits = new LongAdder();
+				hits.increment();
+				LongAdder existing = tracked.putIfAbsent( key, hits );
+				if ( existing != null ) {
+					// admitted by another thread
+					trackedCount.decrementAndGet();
+					existing.increment();
+				}
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Single thread at a time; others continue to use prefix + other
+	 */
+	private void rebalance () {
+
+		if ( !rebalancing.compareAndSet( false, true ) ) {
+			return;
+		}
+
+		try {
+			List<KeyHits> hottest = window( candidates );
+			candidates.clear();
+			List<KeyHits> coldest = window( tracked );
+
+			hottest.sort( ( a, b ) -> Long.compare( b.hits, a.hits ) );
+			coldest.sort( ( a, b ) -> Long.compare( a.hits, b.hits ) );
+
+			for ( int i = 0; i < hottest.size() && i < coldest.size(); i++ ) {
+				if ( hottest.get( i ).hits <= coldest.get( i ).hits ) {
+					break;
+				}
+
+				evict( coldest.get( i ) );
+				tracked.put( hottest.get( i ).key, new LongAdder() );
+			}
+		} catch (Exception e) {
+			logger.error( "Failed to rebalance: {}", prefix, e );
+		} finally {
+			rebalancing.set( false );
+		}
+	}
+
+	private static List<KeyHits> window ( Map<String, LongAdder> keys ) {
+
+		List<KeyHits> window = new ArrayList<>( keys.size() );
+		for ( Map.Entry<String, LongAdder> entry : keys.entrySet() ) {
+			window.add( new KeyHits( entry.getKey(), entry.getValue().sumThenReset() ) );
+		}
+		return window;
+	}
+
+	private void evict ( KeyHits evicted ) {
+
+		tracked.remove( evicted.key );
+		evictions.increment();
+
+		// pending meter updates are published before the count is folded
+		String evictedName = prefix + evicted.key;
+		CsapMeter.remove( evictedName );
+
+		Simon evictedSimon = SimonManager.getSimon( evictedName );
+		if ( evictedSimon instanceof Counter ) {
+			CsapMeter.get( prefix + OTHER ).add( ((Counter) evictedSimon).getCounter() );
+		}
+		SimonManager.destroySimon( evictedName );
+
+		logger.debug( "Evicted: {}, window hits: {}", evictedName, evicted.hits );
+	}
+
+	private static class KeyHits {
+
+		final String key;
+		final long hits;
+
+		KeyHits( String key, long hits ) {
+			this.key = key;
+			this.hits = hits;
+		}
+	}
+
+	public String getPrefix () {
+		return prefix;
+	}
+
+	public int getTrackedCount () {
+		return tracked.size();
+	}
+
+	public long getEvictions () {
+		return evictions.sum();
+	}
+
+	@Override
+	public String toString () {
+		return prefix + " tracked: " + getTrackedCount() + " max: " + maxNames() + " evictions: " + getEvictions();
+	}
+
+}
@@ -0,0 +1,426 @@
+package org.csap.alerts;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.csap.alerts.AlertSettings.HistorySettings;
+import org.javasimon.Counter;
+import org.javasimon.Simon;
+import org.javasimon.SimonManager;
+import org.javasimon.Stopwatch;
+import org.javasimon.StopwatchSample;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ *
+ * In memory history of stopwatches and counters: every fineSeconds each simon
+ * is sampled into a fine window (default 10s x 360), and rolled up into a
+ * coarse window (default 1 minute x 1440).
+ *
+ * Each series holds fixed size primitive arrays, slots are reused as time
+ * moves on - memory per series does not grow. Stopwatches hold count, total
+ * and max per slot; counters hold the increase per slot, or the last value if
+ * the counter is set or decremented.
+ *
+ * Stopwatches with a {@link LatencyHistogram} (percentile alert limits) also
+ * hold the histogram delta per slot, sparse: percentiles over any range are
+ * computed by merging slots, eg. p95 over the last 15 minutes.
+ *
+ * @author pnightin
+ *
+ */
+public class MetricHistory {
+
+	final static Logger logger = LoggerFactory.getLogger( MetricHistory.class );
+
+	public final static String SAMPLE_KEY = "csapHistory";
+
+	private final HistorySettings settings;
+	private final LatencyRecorder latencyRecorder;
+	private final Window fine;
+	private final Window coarse;
+
+	private final Map<String, Series> allSeries = new ConcurrentHashMap<>();
+	private long collections = 0;
+	private boolean isMaxSeriesLogged = false;
+
+	private ScheduledExecutorService historyExecutor = null;
+
+	private ObjectMapper jacksonMapper = new ObjectMapper();
+
+	public MetricHistory( HistorySettings settings, LatencyRecorder latencyRecorder ) {
+		this.settings = settings;
+		this.latencyRecorder = latencyRecorder;
+		fine = new Window( settings.getFineSeconds(), settings.getFineSlots() );
+		coarse = new Window( settings.getCoarseSeconds(), settings.getCoarseSlots() );
+	}
+
+	public void start () {
+
+		BasicThreadFactory historyFactory = new BasicThreadFactory.Builder()
+			.namingPattern( MetricHistory.class.getSimpleName() + "-%d" )
+			.daemon( true )
+			.priority( Thread.NORM_PRIORITY )
+			.build();
+
+		historyExecutor = Executors.newSingleThreadScheduledExecutor( historyFactory );
+
+		long fineMs = TimeUnit.SECONDS.toMillis( fine.seconds );
+		long initialDelay = fineMs - (System.currentTimeMillis() % fineMs);
+		historyExecutor.scheduleAtFixedRate( this::collect, initialDelay, fineMs, TimeUnit.MILLISECONDS );
+
+		logger.info( "{}", settings );
+	}
+
+	public void shutdown () {
+		if ( historyExecutor != null ) {
+			historyExecutor.shutdownNow();
+		}
+	}
+
+	private void collect () {
+		try {
+			collect( System.currentTimeMillis() );
+		} catch (Exception e) {
+			logger.error( "Failed collecting history", e );
+		}
+	}
+
+	synchronized void collect ( long now ) {
+
+		collections++;
+
+		int fineIndex = fine.moveTo( now );
+		int coarseIndex = coarse.moveTo( now );
+		boolean isCoarseStart = coarse.isSlotStart;
+
+		for ( String name : SimonManager.getSimonNames() ) {
+
+			Simon simon = SimonManager.getSimon( name );
+			if ( !(simon instanceof Stopwatch) && !(simon instanceof Counter) ) {
+				continue;
+			}
+
+			Series series = allSeries.get( name );
+			if ( series == null || series.simon != simon ) {
+				if ( series == null && allSeries.size() >= settings.getMaxSeries() ) {
+					if ( !isMaxSeriesLogged ) {
+						logger.warn( "History maximum series reached: {}, not tracking: {}", settings.getMaxSeries(), name );
+						isMaxSeriesLogged = true;
+					}
+					continue;
+				}
+				series = new Series( simon, fine.slots, coarse.slots );
+				allSeries.put( name, series );
+			}
+
+			LatencyHistogram histogram = null;
+			if ( series.isStopwatch && latencyRecorder != null ) {
+				histogram = latencyRecorder.get( name );
+			}
+
+			series.collect( fineIndex, coarseIndex, isCoarseStart, histogram );
+			series.lastCollection = collections;
+		}
+
+		// destroyed simons
+		allSeries.values().removeIf( series -> series.lastCollection != collections );
+	}
+
+	/**
+	 *
+	 * Slot start times, shared by all series
+	 *
+	 */
+	private static class Window {
+
+		final int seconds;
+		final int slots;
+		final long[] times;
+
+		int current = -1;
+		boolean isSlotStart = false;
+
+		Window( int seconds, int slots ) {
+			this.seconds = seconds;
+			this.slots = slots;
+			times = new long[slots];
+		}
+
+		int moveTo ( long now ) {
+
+			long slotMs = TimeUnit.SECONDS.toMillis( seconds );
+			long slotTime = now - (now % slotMs);
+			int index = (int) ((slotTime / slotMs) % slots);
+
+			isSlotStart = times[index] != slotTime;
+			times[index] = slotTime;
+			current = index;
+
+			return index;
+		}
+
+		long getResolutionMs () {
+			return TimeUnit.SECONDS.toMillis( seconds );
+		}
+
+	}
+
+	/**
+	 *
+	 * Stopwatch: count, total nanos, max micros, and histogram deltas if
+	 * recorded. Counter: value only.
+	 *
+	 */
+	private static class Series {
+
+		final Simon simon;
+		final boolean isStopwatch;
+
+		final int[][] counts;
+		final long[][] values;
+		final int[][] maxMicros;
+
+		// sparse LatencyHistogram deltas, created when a histogram is first seen
+		long[][][] histograms = null;
+		LatencyHistogram.Snapshot lastHistogram = null;
+
+		boolean isGauge = false;
+		long lastCounter = 0;
+		long lastCollection = 0;
+
+		Series( Simon simon, int fineSlots, int coarseSlots ) {
+			this.simon = simon;
+			isStopwatch = simon instanceof Stopwatch;
+
+			values = new long[][] { new long[fineSlots], new long[coarseSlots] };
+			if ( isStopwatch ) {
+				counts = new int[][] { new int[fineSlots], new int[coarseSlots] };
+				maxMicros = new int[][] { new int[fineSlots], new int[coarseSlots] };
+				// first increment is since creation
+				((Stopwatch) simon).sampleIncrement( SAMPLE_KEY );
+			} else {
+				counts = null;
+				maxMicros = null;
+				lastCounter = ((Counter) simon).getCounter();
+			}
+		}
+
+		synchronized void collect ( int fineIndex, int coarseIndex, boolean isCoarseStart, LatencyHistogram histogram ) {
+
+			if ( isStopwatch ) {
+				StopwatchSample sample = ((Stopwatch) simon).sampleIncrement( SAMPLE_KEY );
+				int count = (int) Math.min( Integer.MAX_VALUE, sample.getCounter() );
+				int max = count == 0 ? 0 : (int) Math.min( Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMicros( sample.getMax() ) );
+
+				counts[0][fineIndex] = count;
+				values[0][fineIndex] = sample.getTotal();
+				maxMicros[0][fineIndex] = max;
+
+				if ( isCoarseStart ) {
+					counts[1][coarseIndex] = 0;
+					values[1][coarseIndex] = 0;
+					maxMicros[1][coarseIndex] = 0;
+				}
+				counts[1][coarseIndex] = (int) Math.min( Integer.MAX_VALUE, (long) counts[1][coarseIndex] + count );
+				values[1][coarseIndex] += sample.getTotal();
+				maxMicros[1][coarseIndex] = Math.max( maxMicros[1][coarseIndex], max );
+
+				if ( histogram != null ) {
+					collectHistogram( fineIndex, coarseIndex, isCoarseStart, histogram );
+				}
+				return;
+			}
+
+			Counter counter = (Counter) simon;
+			long current = counter.getCounter();
+			isGauge = counter.getDecrementSum() != 0 || current != counter.getIncrementSum();
+
+			if ( isGauge ) {
+				values[0][fineIndex] = current;
+				values[1][coarseIndex] = current;
+			} else {
+				long delta = Math.max( 0, current - lastCounter );
+				values[0][fineIndex] = delta;
+				values[1][coarseIndex] = isCoarseStart ? delta : values[1][coarseIndex] + delta;
+			}
+			lastCounter = current;
+		}
+
+		private void collectHistogram ( int fineIndex, int coarseIndex, boolean isCoarseStart, LatencyHistogram histogram ) {
+
+			LatencyHistogram.Snapshot totals = histogram.snapshot();
+			if ( histograms == null ) {
+				histograms = new long[][][] { new long[counts[0].length][], new long[counts[1].length][] };
+				// as stopwatch: first increment is since creation
+				lastHistogram = totals;
+			}
+
+			long[] delta = totals.minus( lastHistogram ).toSparse();
+			lastHistogram = totals;
+
+			histograms[0][fineIndex] = delta;
+			histograms[1][coarseIndex] = isCoarseStart ? delta
+					: LatencyHistogram.Snapshot.mergeSparse( histograms[1][coarseIndex], delta );
+		}
+
+		String getType () {
+			if ( isStopwatch ) {
+				return "stopwatch";
+			}
+			return isGauge ? "gauge" : "counter";
+		}
+	}
+
+	public Set<String> getSeriesNames () {
+		return new TreeSet<>( allSeries.keySet() );
+	}
+
+	public boolean isTracked ( String name ) {
+		return allSeries.containsKey( name );
+	}
+
+	/**
+	 *
+	 * Stopwatch points: [time, count, mean ms, max ms], with p95 ms appended
+	 * if a histogram is recorded; counter points: [time, value]. The fine
+	 * window is used if it covers the minutes requested. Percentiles in the
+	 * summary are over all slots in range.
+	 *
+	 * @return null if name is not tracked
+	 */
+	public ObjectNode query ( String name, int minutes ) {
+
+		Series series = allSeries.get( name );
+		if ( series == null ) {
+			return null;
+		}
+
+		long rangeMs = TimeUnit.MINUTES.toMillis( Math.max( 1, minutes ) );
+
+		int windowIndex;
+		Window window;
+		synchronized (this) {
+			windowIndex = rangeMs <= fine.getResolutionMs() * fine.slots ? 0 : 1;
+			window = windowIndex == 0 ? fine : coarse;
+		}
+
+		ObjectNode result = jacksonMapper.createObjectNode();
+		result.put( "name", name );
+		result.put( "type", series.getType() );
+		result.put( "resolutionSeconds", window.seconds );
+		result.put( "minutes", minutes );
+		ArrayNode points = result.putArray( "points" );
+
+		long totalCount = 0;
+		long totalNanos = 0;
+		int maxMicros = 0;
+		long totalValue = 0;
+		List<long[]> rangeHistograms = null;
+
+		synchronized (this) {
+			if ( window.current < 0 ) {
+				return result;
+			}
+
+			long oldest = window.times[window.current] - rangeMs;
+
+			synchronized (series) {
+				for ( int i = 1; i <= window.slots; i++ ) {
+					int index = (window.current + i) % window.slots;
+					long time = window.times[index];
+					if ( time == 0 || time <= oldest ) {
+						continue;
+					}
+
+					ArrayNode point = points.addArray();
+					point.add( time );
+
+					if ( series.isStopwatch ) {
+						int count = series.counts[windowIndex][index];
+						long nanos = series.values[windowIndex][index];
+						int max = series.maxMicros[windowIndex][index];
+						point.add( count );
+						point.add( count == 0 ? 0 : nanosToMs( nanos / count ) );
+						point.add( max / 1000.0 );
+
+						totalCount += count;
+						totalNanos += nanos;
+						maxMicros = Math.max( maxMicros, max );
+
+						if ( series.histograms != null ) {
+							long[] slotHistogram = series.histograms[windowIndex][index];
+							if ( slotHistogram == null ) {
+								// before the histogram was registered
+								point.addNull();
+							} else {
+								LatencyHistogram.Snapshot slot = LatencyHistogram.Snapshot
+									.ofSparse( Collections.singletonList( slotHistogram ) );
+								point.add( nanosToMs( slot.valueAt( 95 ) ) );
+							}
+
+							if ( rangeHistograms == null ) {
+								rangeHistograms = new ArrayList<>();
+							}
+							rangeHistograms.add( slotHistogram );
+						}
+					} else {
+						long value = series.values[windowIndex][index];
+						point.add( value );
+						totalValue = series.isGauge ? value : totalValue + value;
+					}
+				}
+			}
+		}
+
+		ObjectNode summary = result.putObject( "summary" );
+		if ( series.isStopwatch ) {
+			summary.put( "count", totalCount );
+			summary.put( "meanMs", totalCount == 0 ? 0 : nanosToMs( totalNanos / totalCount ) );
+			summary.put( "maxMs", maxMicros / 1000.0 );
+			if ( rangeHistograms != null ) {
+				LatencyHistogram.Snapshot range = LatencyHistogram.Snapshot.ofSparse( rangeHistograms );
+				for ( int i = 0; i < SUMMARY_PERCENTILES.length; i++ ) {
+					summary.put( SUMMARY_PERCENTILE_NAMES[i] + "Ms", nanosToMs( range.valueAt( SUMMARY_PERCENTILES[i] ) ) );
+				}
+			}
+		} else if ( series.isGauge ) {
+			summary.put( "last", totalValue );
+		} else {
+			summary.put( "total", totalValue );
+		}
+
+		return result;
+	}
+
+	private final static double[] SUMMARY_PERCENTILES = { 50, 90, 95, 99, 99.9 };
+	private final static String[] SUMMARY_PERCENTILE_NAMES = { "p50", "p90", "p95", "p99", "p999" };
+
+	private static double nanosToMs ( long nanos ) {
+		return Math.round( nanos / 1000.0 ) / 1000.0;
+	}
+
+	public HistorySettings getSettings () {
+		return settings;
+	}
+
+	@Override
+	public String toString () {
+		return settings + ", series: " + allSeries.size();
+	}
+
+}
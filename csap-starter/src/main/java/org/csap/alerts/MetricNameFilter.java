@@ -0,0 +1,100 @@
+package org.csap.alerts;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * /csap/metrics filters: comma separated terms, a name matches if it contains
+ * any term; * in a term matches any characters, eg. http.route.*.5xx
+ *
+ * Request data is never compiled as a regular expression: matching is linear
+ * in the name for plain terms, and bounded by name times term length with *.
+ *
+ * @author pnightin
+ *
+ */
+public class MetricNameFilter {
+
+	public final static int MAX_LENGTH = 500;
+
+	private final List<String> terms = new ArrayList<>();
+
+	/**
+	 *
+	 * @throws IllegalArgumentException if longer than MAX_LENGTH
+	 */
+	public MetricNameFilter( String filters ) {
+
+		if ( filters.length() > MAX_LENGTH ) {
+			throw new IllegalArgumentException( "filters exceed " + MAX_LENGTH + " characters" );
+		}
+
+		for ( String term : filters.split( "," ) ) {
+			term = term.trim();
+			if ( !term.isEmpty() ) {
+				terms.add( term );
+			}
+		}
+	}
+
+	public boolean matches ( String name ) {
+
+		if ( terms.isEmpty() ) {
+			return true;
+		}
+
+		for ( String term : terms ) {
+			if ( term.indexOf( '*' ) < 0 ? name.contains( term ) : containsGlob( name, term ) ) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * term may occur anywhere in name
+	 */
+	static boolean containsGlob ( String name, String term ) {
+		return globMatches( name, "*" + term + "*" );
+	}
+
+	/**
+	 * whole name: greedy, backtracking only to the last *
+	 */
+	static boolean globMatches ( String name, String glob ) {
+
+		int globIndex = 0;
+		int nameIndex = 0;
+		int starIndex = -1;
+		int starMatch = 0;
+
+		while (nameIndex < name.length()) {
+			if ( globIndex < glob.length() && glob.charAt( globIndex ) == '*' ) {
+				starIndex = globIndex++;
+				starMatch = nameIndex;
+			} else if ( globIndex < glob.length() && glob.charAt( globIndex ) == name.charAt( nameIndex ) ) {
+				globIndex++;
+				nameIndex++;
+			} else if ( starIndex >= 0 ) {
+				globIndex = starIndex + 1;
+				nameIndex = ++starMatch;
+			} else {
+				return false;
+			}
+		}
+
+		while (globIndex < glob.length() && glob.charAt( globIndex ) == '*') {
+			globIndex++;
+		}
+
+		return globIndex == glob.length();
+	}
+
+	@Override
+	public String toString () {
+		return terms.toString();
+	}
+
+}
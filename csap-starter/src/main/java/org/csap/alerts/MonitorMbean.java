@@ -31,7 +31,8 @@ public class MonitorMbean {
 		undefined( "undefined" ), pending( "pendingFirstInterval" ),
 		healthy( "isHealthy" ),
 		collectionCount( "collectionCount" ), limitsExceeded( "limitsExceeded" ),
-		lastCollected("lastCollected");
+		lastCollected("lastCollected"), percentiles( "latencyPercentiles" ),
+		gc( "gc" ), notifications( "notifications" );
 
 		public String json;
 
@@ -67,6 +68,13 @@ public class MonitorMbean {
 		return alertProcessor.getHealthReport().toString();
 
 	}
+
+	@ManagedMetric(category = "PERFORMANCE ", displayName = "AlertsStored", description = "Alerts held in memory, limited by remember-count", metricType = MetricType.GAUGE)
+	public int getAlertsStored () {
+
+		return alertProcessor.getAlertHistory().size();
+
+	}
 	
 
 }
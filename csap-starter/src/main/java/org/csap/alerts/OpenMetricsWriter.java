@@ -0,0 +1,374 @@
+package org.csap.alerts;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.ToLongFunction;
+
+import org.csap.helpers.JvmStatsCollector.CollectionResults;
+import org.javasimon.Counter;
+import org.javasimon.Simon;
+import org.javasimon.SimonManager;
+import org.javasimon.Stopwatch;
+
+/**
+ *
+ * OpenMetrics (prometheus) text exposition of simons and jvm stats, written
+ * directly to the response writer: numbers are formatted into a reused buffer
+ * and sanitized names are stored as a simon attribute, so a scrape does not
+ * build strings per series.
+ *
+ * Stopwatches are summaries in seconds, with quantiles when a
+ * {@link LatencyHistogram} is recorded; quantiles are cumulative since the
+ * histogram was registered, as are _count and _sum.
+ *
+ * Counters are gauges if created with {@link #gauge(String)}. Otherwise the
+ * type is decided on the first scrape - counter if only incremented so far -
+ * and kept in a simon attribute: a family never changes type.
+ *
+ * Family names never end with a sample suffix (_total, _count, ...): those
+ * simons get _value appended, eg. meter.total is meter_total_value, so sample
+ * names do not collide with other families.
+ *
+ * @author pnightin
+ *
+ */
+public class OpenMetricsWriter {
+
+	public final static String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+	public final static String NAME_ATTRIBUTE = "openMetricsName";
+	public final static String TYPE_ATTRIBUTE = "openMetricsType";
+
+	public final static String COUNTER = "counter";
+	public final static String GAUGE = "gauge";
+
+	private final static String[] RESERVED_SUFFIXES = { "_total", "_created", "_count", "_sum", "_bucket", "_gcount",
+			"_gsum", "_info" };
+
+	private final static double[] QUANTILES = { 50, 90, 99, 99.9 };
+	private final static String[] QUANTILE_LABELS = { "{quantile=\"0.5\"} ", "{quantile=\"0.9\"} ", "{quantile=\"0.99\"} ",
+			"{quantile=\"0.999\"} " };
+
+	// not windowed: from the latency histogram, since it was registered
+	private final static String QUANTILE_HELP = " - quantiles since start";
+
+	private final Writer out;
+	private final LatencyRecorder latencyRecorder;
+
+	// families written: sanitized names may collide
+	private final Set<String> written = new HashSet<>();
+
+	private final char[] digits = new char[20];
+
+	public OpenMetricsWriter( Writer out, LatencyRecorder latencyRecorder ) {
+		this.out = out;
+		this.latencyRecorder = latencyRecorder;
+	}
+
+	/**
+	 *
+	 * Counters that are set or decremented: exported as a gauge from first use
+	 */
+	public static Counter gauge ( String name ) {
+
+		Counter counter = SimonManager.getCounter( name );
+		if ( counter.getAttribute( TYPE_ATTRIBUTE ) == null ) {
+			counter.setAttribute( TYPE_ATTRIBUTE, GAUGE );
+		}
+
+		return counter;
+	}
+
+	public void writeSimons ()
+			throws IOException {
+
+		for ( String name : SimonManager.getSimonNames() ) {
+
+			Simon simon = SimonManager.getSimon( name );
+
+			if ( simon instanceof Stopwatch ) {
+				writeStopwatch( (Stopwatch) simon );
+			} else if ( simon instanceof Counter ) {
+				writeCounter( (Counter) simon );
+			}
+		}
+	}
+
+	private void writeStopwatch ( Stopwatch stopwatch )
+			throws IOException {
+
+		String family = familyName( stopwatch, "_seconds" );
+		if ( family == null ) {
+			return;
+		}
+
+		LatencyHistogram histogram = latencyRecorder == null ? null : latencyRecorder.get( stopwatch.getName() );
+		if ( histogram == null ) {
+			writeHeader( family, "summary", stopwatch.getName() );
+		} else {
+			writeHeader( family, "summary", stopwatch.getName() + QUANTILE_HELP );
+			LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+			for ( int i = 0; i < QUANTILES.length; i++ ) {
+				out.write( family );
+				out.write( QUANTILE_LABELS[i] );
+				writeSeconds( snapshot.valueAt( QUANTILES[i] ) );
+				out.write( '\n' );
+			}
+		}
+
+		out.write( family );
+		out.write( "_count " );
+		writeLong( stopwatch.getCounter() );
+		out.write( '\n' );
+
+		out.write( family );
+		out.write( "_sum " );
+		writeSeconds( stopwatch.getTotal() );
+		out.write( '\n' );
+	}
+
+	private void writeCounter ( Counter counter )
+			throws IOException {
+
+		String family = familyName( counter, "" );
+		if ( family == null ) {
+			return;
+		}
+
+		String type = (String) counter.getAttribute( TYPE_ATTRIBUTE );
+		long value = counter.getCounter();
+		if ( type == null ) {
+			type = counter.getDecrementSum() == 0 && value == counter.getIncrementSum() ? COUNTER : GAUGE;
+			counter.setAttribute( TYPE_ATTRIBUTE, type );
+		}
+
+		writeHeader( family, type, counter.getName() );
+		out.write( family );
+		out.write( COUNTER.equals( type ) ? "_total " : " " );
+		writeLong( value );
+		out.write( '\n' );
+	}
+
+	private final static String[] JVM_GAUGES = {
+			"csap_jvm_heap_used_megabytes", "csap_jvm_heap_max_megabytes",
+			"csap_jvm_cpu_percent", "csap_jvm_threads", "csap_jvm_threads_peak", "csap_jvm_open_files",
+			"csap_http_connections", "csap_http_threads_busy", "csap_http_threads", "csap_sessions_active" };
+
+	private final static String[] JVM_GAUGE_HELP = {
+			"HeapMemoryUsage used", "HeapMemoryUsage max",
+			"ProcessCpuLoad", "ThreadCount", "PeakThreadCount", "OpenFileDescriptorCount",
+			"tomcat connectionCount", "tomcat currentThreadsBusy", "tomcat currentThreadCount", "tomcat activeSessions" };
+
+	@SuppressWarnings("unchecked")
+	private final static ToLongFunction<CollectionResults>[] JVM_GAUGE_VALUES = new ToLongFunction[] {
+			(ToLongFunction<CollectionResults>) CollectionResults::getHeapUsed,
+			(ToLongFunction<CollectionResults>) CollectionResults::getHeapMax,
+			(ToLongFunction<CollectionResults>) CollectionResults::getCpuPercent,
+			(ToLongFunction<CollectionResults>) CollectionResults::getJvmThreadCount,
+			(ToLongFunction<CollectionResults>) CollectionResults::getJvmThreadMax,
+			(ToLongFunction<CollectionResults>) CollectionResults::getOpenFiles,
+			(ToLongFunction<CollectionResults>) CollectionResults::getHttpConn,
+			(ToLongFunction<CollectionResults>) CollectionResults::getThreadsBusy,
+			(ToLongFunction<CollectionResults>) CollectionResults::getThreadCount,
+			(ToLongFunction<CollectionResults>) CollectionResults::getSessionsActive };
+
+	private final static String[] JVM_COUNTERS = {
+			"csap_jvm_gc_minor_milliseconds", "csap_jvm_gc_major_milliseconds",
+			"csap_http_requests", "csap_http_processing_milliseconds",
+			"csap_http_received_bytes", "csap_http_sent_bytes", "csap_sessions_created" };
+
+	private final static String[] JVM_COUNTER_HELP = {
+			"minor gc time", "major gc time",
+			"tomcat requestCount", "tomcat processingTime",
+			"tomcat bytesReceived", "tomcat bytesSent", "tomcat sessionCounter" };
+
+	@SuppressWarnings("unchecked")
+	private final static ToLongFunction<CollectionResults>[] JVM_COUNTER_VALUES = new ToLongFunction[] {
+			(ToLongFunction<CollectionResults>) CollectionResults::getMinorGcTotalMs,
+			(ToLongFunction<CollectionResults>) CollectionResults::getMajorGcTotalMs,
+			(ToLongFunction<CollectionResults>) CollectionResults::getHttpRequestTotal,
+			(ToLongFunction<CollectionResults>) CollectionResults::getHttpProcessingTotalMs,
+			(ToLongFunction<CollectionResults>) CollectionResults::getHttpBytesReceivedTotal,
+			(ToLongFunction<CollectionResults>) CollectionResults::getHttpBytesSentTotal,
+			(ToLongFunction<CollectionResults>) CollectionResults::getSessionsCreatedTotal };
+
+	/**
+	 *
+	 * Current values are gauges; times, requests, bytes and sessions are
+	 * cumulative counters, so rates do not depend on when the collector was
+	 * last used. Gc pauses, allocated and promoted bytes are exported from the
+	 * csap.jvm.gc simons.
+	 */
+	public void writeJvm ( CollectionResults results )
+			throws IOException {
+
+		for ( int i = 0; i < JVM_GAUGES.length; i++ ) {
+			if ( !written.add( JVM_GAUGES[i] ) ) {
+				continue;
+			}
+			writeHeader( JVM_GAUGES[i], GAUGE, JVM_GAUGE_HELP[i] );
+			out.write( JVM_GAUGES[i] );
+			out.write( ' ' );
+			writeLong( JVM_GAUGE_VALUES[i].applyAsLong( results ) );
+			out.write( '\n' );
+		}
+
+		for ( int i = 0; i < JVM_COUNTERS.length; i++ ) {
+			if ( !written.add( JVM_COUNTERS[i] ) ) {
+				continue;
+			}
+			writeHeader( JVM_COUNTERS[i], COUNTER, JVM_COUNTER_HELP[i] );
+			out.write( JVM_COUNTERS[i] );
+			out.write( "_total " );
+			writeLong( JVM_COUNTER_VALUES[i].applyAsLong( results ) );
+			out.write( '\n' );
+		}
+
+		if ( results.getPoolAllocatedBytesTotal().isEmpty() || !written.add( POOL_ALLOCATED_NAME ) ) {
+			return;
+		}
+		writeHeader( POOL_ALLOCATED_NAME, COUNTER, "bytes allocated per thread pool" );
+		for ( Map.Entry<String, Long> pool : results.getPoolAllocatedBytesTotal().entrySet() ) {
+			out.write( POOL_ALLOCATED_NAME );
+			out.write( "_total{pool=\"" );
+			writeEscaped( pool.getKey() );
+			out.write( "\"} " );
+			writeLong( pool.getValue() );
+			out.write( '\n' );
+		}
+	}
+
+	private final static String POOL_ALLOCATED_NAME = "csap_jvm_pool_allocated_bytes";
+
+	public void finish ()
+			throws IOException {
+		out.write( "# EOF\n" );
+		out.flush();
+	}
+
+	/**
+	 *
+	 * @return null if the family was already written
+	 */
+	private String familyName ( Simon simon, String unitSuffix ) {
+
+		String family = (String) simon.getAttribute( NAME_ATTRIBUTE );
+		if ( family == null ) {
+			family = sanitize( simon.getName() ) + unitSuffix;
+			for ( String reserved : RESERVED_SUFFIXES ) {
+				if ( family.endsWith( reserved ) ) {
+					family += "_value";
+					break;
+				}
+			}
+			simon.setAttribute( NAME_ATTRIBUTE, family );
+		}
+
+		if ( !written.add( family ) ) {
+			return null;
+		}
+
+		return family;
+	}
+
+	/**
+	 *
+	 * csap.health.check.limits becomes csap_health_check_limits
+	 */
+	public static String sanitize ( String simonName ) {
+
+		StringBuilder name = new StringBuilder( simonName.length() + 1 );
+
+		if ( simonName.isEmpty() || Character.isDigit( simonName.charAt( 0 ) ) ) {
+			name.append( '_' );
+		}
+
+		for ( int i = 0; i < simonName.length(); i++ ) {
+			char c = simonName.charAt( i );
+			boolean isValid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+			name.append( isValid ? c : '_' );
+		}
+
+		return name.toString();
+	}
+
+	private void writeHeader ( String family, String type, String help )
+			throws IOException {
+
+		out.write( "# TYPE " );
+		out.write( family );
+		out.write( ' ' );
+		out.write( type );
+		out.write( "\n# HELP " );
+		out.write( family );
+		out.write( ' ' );
+		writeEscaped( help );
+		out.write( '\n' );
+	}
+
+	/**
+	 * help and label values
+	 */
+	private void writeEscaped ( String text )
+			throws IOException {
+
+		for ( int i = 0; i < text.length(); i++ ) {
+			char c = text.charAt( i );
+			if ( c == '"' ) {
+				out.write( "\\\"" );
+			} else if ( c == '\\' ) {
+				out.write( "\\\\" );
+			} else if ( c == '\n' ) {
+				out.write( "\\n" );
+			} else {
+				out.write( c );
+			}
+		}
+	}
+
+	private void writeLong ( long value )
+			throws IOException {
+
+		if ( value == Long.MIN_VALUE ) {
+			out.write( Long.toString( value ) );
+			return;
+		}
+
+		if ( value < 0 ) {
+			out.write( '-' );
+			value = -value;
+		}
+
+		int position = digits.length;
+		do {
+			digits[--position] = (char) ('0' + (value % 10));
+			value /= 10;
+		} while (value > 0);
+
+		out.write( digits, position, digits.length - position );
+	}
+
+	/**
+	 * nanos written as seconds with 9 decimals, no double formatting
+	 */
+	private void writeSeconds ( long nanos )
+			throws IOException {
+
+		if ( nanos < 0 ) {
+			out.write( '-' );
+			nanos = -nanos;
+		}
+
+		writeLong( nanos / 1_000_000_000L );
+		out.write( '.' );
+
+		long fraction = nanos % 1_000_000_000L;
+		for ( long scale = 100_000_000L; scale > 0; scale /= 10 ) {
+			out.write( (char) ('0' + (fraction / scale) % 10) );
+		}
+	}
+
+}
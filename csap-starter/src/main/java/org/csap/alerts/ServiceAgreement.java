@@ -10,17 +10,24 @@ import java.util.concurrent.TimeUnit;
 
 /**
  * 
- * CSAP will monitor any spring bean with @CsapMonitor
+ * Limits for methods of a @CsapMonitor bean. On a class, applies to every
+ * public method; on a method, overrides the class. Registered on startup as
+ * alert limits using the timer name (prefix.method()), unless id is specified.
+ * 
+ * Limits in csap.performance.alert.limits with the same id take precedence.
  * 
  * @author pnightin
  *
  */
-@Target(ElementType.TYPE)
+@Target({ElementType.TYPE, ElementType.METHOD})
 @Retention(RetentionPolicy.RUNTIME)
 @Documented
 public @interface ServiceAgreement {
 	
-	String id() default "CLASSNAME" ;
+	public static String CLASS_NAME="CLASSNAME" ;
+	
+	// CLASSNAME uses the @CsapMonitor timer name, only used on methods
+	String id() default CLASS_NAME ;
 
 	long occurencesMin() default Long.MIN_VALUE ;
 	long occurencesMax() default Long.MAX_VALUE ;
@@ -30,5 +37,11 @@ public @interface ServiceAgreement {
 	
 	long meanTime() default Long.MAX_VALUE ;
 	TimeUnit meanTimeUnit() default TimeUnit.MILLISECONDS ;
+	
+	long p99() default Long.MAX_VALUE ;
+	TimeUnit p99Unit() default TimeUnit.MILLISECONDS ;
+	
+	int collectTime() default 30 ;
+	TimeUnit collectUnit() default TimeUnit.SECONDS ;
 
 }
@@ -0,0 +1,111 @@
+package org.csap.alerts;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+
+import org.csap.CsapMonitor;
+import org.csap.integations.CsapPerformance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ *
+ * Registers {@link ServiceAgreement} limits of @CsapMonitor beans once all
+ * singletons are created.
+ *
+ * @author pnightin
+ *
+ */
+@Component
+public class ServiceAgreementScanner implements SmartInitializingSingleton {
+
+	final static Logger logger = LoggerFactory.getLogger( ServiceAgreementScanner.class );
+
+	@Autowired
+	ApplicationContext springContext;
+
+	@Autowired
+	AlertProcessor alertProcessor;
+
+	@Override
+	public void afterSingletonsInstantiated () {
+
+		Map<String, Object> monitoredBeans = springContext.getBeansWithAnnotation( CsapMonitor.class );
+
+		int numRegistered = 0;
+		for ( Object bean : monitoredBeans.values() ) {
+			numRegistered += registerAgreements( AopUtils.getTargetClass( bean ) );
+		}
+
+		logger.info( "@ServiceAgreement limits registered: {}, @CsapMonitor beans: {}", numRegistered, monitoredBeans.size() );
+	}
+
+	private int registerAgreements ( Class<?> monitoredClass ) {
+
+		ServiceAgreement classAgreement = AnnotationUtils.findAnnotation( monitoredClass, ServiceAgreement.class );
+
+		int numRegistered = 0;
+		for ( Method method : ReflectionUtils.getUniqueDeclaredMethods( monitoredClass ) ) {
+
+			if ( method.getDeclaringClass() == Object.class
+					|| !Modifier.isPublic( method.getModifiers() )
+					|| Modifier.isStatic( method.getModifiers() ) ) {
+				continue;
+			}
+
+			ServiceAgreement agreement = AnnotationUtils.findAnnotation( method, ServiceAgreement.class );
+			String id = CsapPerformance.monitorTimerName( monitoredClass, method.getName() );
+
+			if ( agreement == null ) {
+				agreement = classAgreement;
+			} else if ( !agreement.id().equals( ServiceAgreement.CLASS_NAME ) ) {
+				id = agreement.id();
+			}
+
+			if ( agreement == null ) {
+				continue;
+			}
+
+			if ( alertProcessor.addAlertInstance( buildAlertInstance( id, agreement ) ) ) {
+				numRegistered++;
+			}
+		}
+
+		return numRegistered;
+	}
+
+	private AlertInstance buildAlertInstance ( String id, ServiceAgreement agreement ) {
+
+		AlertInstance alertInstance = new AlertInstance();
+		alertInstance.setId( id );
+
+		// methods may not be invoked before first collection
+		alertInstance.setIgnoreNull( true );
+
+		alertInstance.setOccurencesMin( agreement.occurencesMin() );
+		alertInstance.setOccurencesMax( agreement.occurencesMax() );
+
+		alertInstance.setMaxTime( agreement.maxTime() );
+		alertInstance.setMaxUnits( agreement.maxTimeUnit().name() );
+
+		alertInstance.setMeanTime( agreement.meanTime() );
+		alertInstance.setMeanUnits( agreement.meanTimeUnit().name() );
+
+		alertInstance.setP99( agreement.p99() );
+		alertInstance.setPercentileUnits( agreement.p99Unit().name() );
+
+		alertInstance.setCollectTime( agreement.collectTime() );
+		alertInstance.setCollectUnits( agreement.collectUnit().name() );
+
+		return alertInstance;
+	}
+
+}
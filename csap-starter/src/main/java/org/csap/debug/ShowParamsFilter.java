@@ -11,6 +11,7 @@ import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 
+import org.csap.integations.InstrumentationOverhead;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,6 +43,7 @@ public class ShowParamsFilter implements Filter {
 	public void doFilter(ServletRequest req, ServletResponse res,
 			FilterChain chain) throws ServletException, IOException {
 
+		InstrumentationOverhead.mark();
 		HttpServletRequest httpRequest = (HttpServletRequest) req;
 		StringBuilder builder = new StringBuilder( SEPARATOR );
 
@@ -60,6 +62,7 @@ public class ShowParamsFilter implements Filter {
 
 		builder.append( SEPARATOR );
 		logger.info( builder.toString() );
+		InstrumentationOverhead.accumulate();
 
 		chain.doFilter( req, res );
 
@@ -26,6 +26,7 @@ import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.BasicHeaderElementIterator;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.ssl.SSLContextBuilder;
+import org.csap.integations.CallTreeRecorder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.MediaType;
@@ -53,7 +54,7 @@ public class CsapRestTemplateFactory {
 			1, 3,
 			10, 10, 10 );
 
-		RestTemplate restTemplate = new RestTemplate( httpConnectionFactory );
+		RestTemplate restTemplate = instrumented( new RestTemplate( httpConnectionFactory ) );
 
 		return restTemplate;
 
@@ -68,7 +69,7 @@ public class CsapRestTemplateFactory {
 			maxConnectionsPerRoute, maxConnectionsTotal,
 			connectTimeOutSeconds, readTimeOutSeconds, idleCloseSeconds );
 
-		RestTemplate restTemplate = new RestTemplate( httpConnectionFactory );
+		RestTemplate restTemplate = instrumented( new RestTemplate( httpConnectionFactory ) );
 
 		return restTemplate;
 
@@ -95,9 +96,9 @@ public class CsapRestTemplateFactory {
 				maxConnectionsPerRoute, maxConnectionsTotal,
 				connectTimeOutSeconds, readTimeOutSeconds, idleCloseSeconds );
 
-			return new RestTemplate( httpConnectionFactory );
+			return instrumented( new RestTemplate( httpConnectionFactory ) );
 		} else {
-			return new RestTemplate( buildFactoryDisabledSslChecks( description, connectTimeOutSeconds, readTimeOutSeconds ) );
+			return instrumented( new RestTemplate( buildFactoryDisabledSslChecks( description, connectTimeOutSeconds, readTimeOutSeconds ) ) );
 		}
 
 	}
@@ -108,7 +109,7 @@ public class CsapRestTemplateFactory {
 			description,
 			1, 10, 10, 10, 10 );
 
-		RestTemplate restTemplate = new RestTemplate( httpConnectionFactory );
+		RestTemplate restTemplate = instrumented( new RestTemplate( httpConnectionFactory ) );
 
 		List<HttpMessageConverter<?>> messageConverters = new ArrayList<HttpMessageConverter<?>>();
 
@@ -134,7 +135,7 @@ public class CsapRestTemplateFactory {
 			maxConnectionsPerRoute, maxConnectionsTotal,
 			connectTimeOutSeconds, readTimeOutSeconds, idleCloseSeconds );
 
-		RestTemplate restTemplate = new RestTemplate( httpConnectionFactory );
+		RestTemplate restTemplate = instrumented( new RestTemplate( httpConnectionFactory ) );
 		// RestTemplate restTemplate = new RestTemplate( );
 
 		List<HttpMessageConverter<?>> messageConverters = new ArrayList<HttpMessageConverter<?>>();
@@ -152,6 +153,15 @@ public class CsapRestTemplateFactory {
 
 	}
 
+	/**
+	 * calls made during a monitored request are added to its call tree; no
+	 * interceptor, so request bodies are not buffered
+	 */
+	private RestTemplate instrumented ( RestTemplate restTemplate ) {
+		restTemplate.setRequestFactory( CallTreeRecorder.restRequestFactory( restTemplate.getRequestFactory() ) );
+		return restTemplate;
+	}
+
 	private ArrayList<PoolingHttpClientConnectionManager> allocatedPools = new ArrayList<>();
 
 	private HttpComponentsClientHttpRequestFactory getHttpConnection (
@@ -0,0 +1,325 @@
+package org.csap.helpers;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+import org.csap.alerts.CsapGlobalId;
+import org.csap.alerts.LatencyHistogram;
+import org.javasimon.Counter;
+import org.javasimon.SimonManager;
+import org.javasimon.Split;
+import org.javasimon.Stopwatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+
+/**
+ *
+ * Records every gc from GarbageCollectorMXBean notifications, rather than
+ * polling cumulative times:
+ *
+ * csap.jvm.gc.pause and csap.jvm.gc.collectorName.pause stopwatches - one
+ * split per gc, so alert limits can use max-time or percentiles, eg. p99: 200
+ *
+ * csap.jvm.gc.allocated.bytes - eden used before each gc less eden used after
+ * the previous one; csap.jvm.gc.promoted.bytes - old gen growth during minor
+ * gcs
+ *
+ * Major versus minor uses the gc action reported by the jvm, not the
+ * collector name.
+ *
+ * Concurrent collectors (ConcurrentMarkSweep, G1 concurrent, Shenandoah and
+ * ZGC cycles) report the whole cycle, including concurrent phases: those are
+ * recorded in csap.jvm.gc.collectorName.cycle, not as pauses or gc time.
+ * Their stop the world phases are not reported by notifications.
+ *
+ * Durations are reported by the jvm in whole milliseconds: pauses under 1ms
+ * are recorded as 0.
+ *
+ * @author pnightin
+ *
+ */
+public class GcPauseRecorder {
+
+	final static Logger logger = LoggerFactory.getLogger( GcPauseRecorder.class );
+
+	public final static String PREFIX = CsapGlobalId.JVM_GC.id + ".";
+	public final static String PAUSE = PREFIX + "pause";
+	public final static String ALLOCATED = PREFIX + "allocated.bytes";
+	public final static String PROMOTED = PREFIX + "promoted.bytes";
+
+	private static boolean isInstalled = false;
+
+	private static ObjectMapper jacksonMapper = new ObjectMapper();
+
+	private final static Map<String, GcCollector> collectors = new ConcurrentHashMap<>();
+
+	private final static Stopwatch allPauseTimer = SimonManager.getStopwatch( PAUSE );
+	private final static LatencyHistogram allPauses = new LatencyHistogram( PAUSE );
+	private final static Counter allocatedCounter = SimonManager.getCounter( ALLOCATED );
+	private final static Counter promotedCounter = SimonManager.getCounter( PROMOTED );
+
+	private final static LongAdder minorMs = new LongAdder();
+	private final static LongAdder majorMs = new LongAdder();
+	private final static LongAdder concurrentCycleMs = new LongAdder();
+	private final static LongAdder allocatedBytes = new LongAdder();
+	private final static LongAdder promotedBytes = new LongAdder();
+
+	// guarded by class: eden used after the previous gc
+	private static long lastEdenAfter = 0;
+
+	/**
+	 *
+	 * Idempotent
+	 *
+	 * @return false if gc notifications are not supported by the jvm
+	 */
+	public static synchronized boolean install () {
+
+		if ( isInstalled ) {
+			return true;
+		}
+
+		try {
+			for ( GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans() ) {
+				if ( gcBean instanceof NotificationEmitter ) {
+					((NotificationEmitter) gcBean).addNotificationListener(
+						( notification, handback ) -> handle( notification ),
+						notification -> GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION
+							.equals( notification.getType() ),
+						null );
+					isInstalled = true;
+				}
+			}
+		} catch (Throwable t) {
+			logger.warn( "GC notifications not available, gc times will be polled: {}", t.getMessage() );
+		}
+
+		logger.debug( "GC notifications installed: {}", isInstalled );
+		return isInstalled;
+	}
+
+	public static boolean isInstalled () {
+		return isInstalled;
+	}
+
+	private static void handle ( Notification notification ) {
+
+		try {
+			GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo
+				.from( (CompositeData) notification.getUserData() );
+
+			GcInfo gcInfo = info.getGcInfo();
+			long durationNanos = TimeUnit.MILLISECONDS.toNanos( gcInfo.getDuration() );
+			boolean isMajor = info.getGcAction().contains( "major" );
+			boolean isCycle = isConcurrentCycle( info.getGcName(), info.getGcAction() );
+
+			GcCollector collector = collectors.computeIfAbsent( info.getGcName(),
+				gcName -> new GcCollector( gcName, isCycle ) );
+			collector.record( info, durationNanos );
+
+			if ( isCycle ) {
+				concurrentCycleMs.add( gcInfo.getDuration() );
+			} else {
+				allPauseTimer.addSplit( Split.create( durationNanos ) );
+				allPauses.record( durationNanos );
+				(isMajor ? majorMs : minorMs).add( gcInfo.getDuration() );
+			}
+
+			recordOccupancy( gcInfo, isMajor );
+
+		} catch (Exception e) {
+			logger.debug( "Failed to process gc notification: {}", e.getMessage() );
+		}
+	}
+
+	private static synchronized void recordOccupancy ( GcInfo gcInfo, boolean isMajor ) {
+
+		long edenBefore = -1;
+		long edenAfter = -1;
+		long oldBefore = -1;
+		long oldAfter = -1;
+
+		for ( Map.Entry<String, MemoryUsage> pool : gcInfo.getMemoryUsageBeforeGc().entrySet() ) {
+			MemoryUsage after = gcInfo.getMemoryUsageAfterGc().get( pool.getKey() );
+			if ( after == null ) {
+				continue;
+			}
+			if ( isYoungPool( pool.getKey() ) ) {
+				edenBefore = pool.getValue().getUsed();
+				edenAfter = after.getUsed();
+			} else if ( isOldPool( pool.getKey() ) ) {
+				oldBefore = pool.getValue().getUsed();
+				oldAfter = after.getUsed();
+			}
+		}
+
+		if ( edenBefore >= 0 ) {
+			long allocated = Math.max( 0, edenBefore - lastEdenAfter );
+			allocatedBytes.add( allocated );
+			allocatedCounter.increase( allocated );
+			lastEdenAfter = edenAfter;
+		}
+
+		if ( !isMajor && oldBefore >= 0 && oldAfter > oldBefore ) {
+			promotedBytes.add( oldAfter - oldBefore );
+			promotedCounter.increase( oldAfter - oldBefore );
+		}
+	}
+
+	/**
+	 * duration is the whole cycle, mostly concurrent with the application
+	 */
+	static boolean isConcurrentCycle ( String gcName, String gcAction ) {
+		return gcName.equals( "ConcurrentMarkSweep" ) || gcName.contains( "Concurrent" ) || gcName.contains( "Cycles" )
+				|| gcAction.contains( "concurrent" ) || gcAction.contains( "cycle" );
+	}
+
+	static boolean isYoungPool ( String poolName ) {
+		return poolName.contains( "Eden" );
+	}
+
+	static boolean isOldPool ( String poolName ) {
+		return poolName.contains( "Old" ) || poolName.contains( "Tenured" );
+	}
+
+	/**
+	 * simon names do not allow spaces
+	 */
+	static String collectorName ( String gcName ) {
+
+		StringBuilder name = new StringBuilder( gcName.length() );
+		for ( int i = 0; i < gcName.length(); i++ ) {
+			char c = gcName.charAt( i );
+			name.append( Character.isLetterOrDigit( c ) ? c : '_' );
+		}
+
+		return name.toString();
+	}
+
+	/**
+	 *
+	 * Pauses, or concurrent cycles, of one collector, and occupancy of the
+	 * latest gc
+	 *
+	 */
+	private static class GcCollector {
+
+		final String gcName;
+		final boolean isCycle;
+		final Stopwatch durationTimer;
+		final LatencyHistogram durations;
+
+		// latest gc, replaced as a whole
+		volatile ObjectNode lastGc = null;
+
+		GcCollector( String gcName, boolean isCycle ) {
+			this.gcName = gcName;
+			this.isCycle = isCycle;
+			String name = PREFIX + collectorName( gcName ) + (isCycle ? ".cycle" : ".pause");
+			durationTimer = SimonManager.getStopwatch( name );
+			durations = new LatencyHistogram( name );
+		}
+
+		void record ( GarbageCollectionNotificationInfo info, long durationNanos ) {
+
+			durationTimer.addSplit( Split.create( durationNanos ) );
+			durations.record( durationNanos );
+
+			GcInfo gcInfo = info.getGcInfo();
+			ObjectNode gc = jacksonMapper.createObjectNode();
+			gc.put( "id", gcInfo.getId() );
+			gc.put( "action", info.getGcAction() );
+			gc.put( "cause", info.getGcCause() );
+			gc.put( "durationMs", gcInfo.getDuration() );
+			gc.put( "uptimeMs", gcInfo.getStartTime() );
+
+			ObjectNode before = gc.putObject( "beforeMb" );
+			ObjectNode after = gc.putObject( "afterMb" );
+			for ( Map.Entry<String, MemoryUsage> pool : gcInfo.getMemoryUsageBeforeGc().entrySet() ) {
+				before.put( pool.getKey(), toMb( pool.getValue().getUsed() ) );
+				MemoryUsage afterUsage = gcInfo.getMemoryUsageAfterGc().get( pool.getKey() );
+				if ( afterUsage != null ) {
+					after.put( pool.getKey(), toMb( afterUsage.getUsed() ) );
+				}
+			}
+
+			lastGc = gc;
+		}
+	}
+
+	private static double toMb ( long bytes ) {
+		return Math.round( bytes / 1024.0 / 10.24 ) / 100.0;
+	}
+
+	public static long getMinorMs () {
+		return minorMs.sum();
+	}
+
+	public static long getMajorMs () {
+		return majorMs.sum();
+	}
+
+	/**
+	 * @return concurrent collector cycles, not included in minor or major
+	 */
+	public static long getConcurrentCycleMs () {
+		return concurrentCycleMs.sum();
+	}
+
+	public static long getAllocatedBytes () {
+		return allocatedBytes.sum();
+	}
+
+	public static long getPromotedBytes () {
+		return promotedBytes.sum();
+	}
+
+	/**
+	 *
+	 * @return pauses of all collectors, cumulative
+	 */
+	public static LatencyHistogram.Snapshot pauseSnapshot () {
+		return allPauses.snapshot();
+	}
+
+	/**
+	 *
+	 * Health report section: pause percentiles since start, excluding
+	 * concurrent cycles, and occupancy of the latest gc, per collector
+	 */
+	public static ObjectNode toJson () {
+
+		ObjectNode report = jacksonMapper.createObjectNode();
+		report.put( "notifications", isInstalled );
+		report.put( "allocatedMb", toMb( allocatedBytes.sum() ) );
+		report.put( "promotedMb", toMb( promotedBytes.sum() ) );
+		report.put( "concurrentCycleMs", concurrentCycleMs.sum() );
+		report.set( "pauses", allPauses.snapshot().toJson( jacksonMapper ) );
+
+		ObjectNode collectorsJson = report.putObject( "collectors" );
+		for ( GcCollector collector : collectors.values() ) {
+			ObjectNode collectorJson = collectorsJson.putObject( collector.gcName );
+			collectorJson.set( collector.isCycle ? "cycles" : "pauses", collector.durations.snapshot().toJson( jacksonMapper ) );
+			if ( collector.lastGc != null ) {
+				collectorJson.set( "lastGc", collector.lastGc );
+			}
+		}
+
+		return report;
+	}
+
+}
@@ -0,0 +1,254 @@
+package org.csap.helpers;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ *
+ * Hot threads: cpu and user time of every thread is read at the start and end
+ * of a window; the top threads by cpu are reported with their stacks, and all
+ * threads are grouped by pool name, eg. http-nio-8080-exec, ajp-nio-8009-exec,
+ * jms listener containers.
+ *
+ * Overhead is bounded for services with many threads: cpu times are read in
+ * one bulk call when the jvm supports it, stacks are read only for the top
+ * threads, and only one sample runs at a time.
+ *
+ * @author pnightin
+ *
+ */
+public class HotThreadSampler {
+
+	final static Logger logger = LoggerFactory.getLogger( HotThreadSampler.class );
+
+	public final static long MAX_WINDOW_MS = TimeUnit.SECONDS.toMillis( 10 );
+	public final static int MAX_TOP = 50;
+	public final static int MAX_STACK_DEPTH = 100;
+
+	// trailing thread numbers: http-nio-8080-exec-12, pool-3-thread-7,
+	// jmsContainer-1
+	private final static Pattern THREAD_NUMBER = Pattern.compile( "[-_#. ]*\\d+$" );
+
+	private final static ReentrantLock sampleLock = new ReentrantLock();
+
+	private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+	private final com.sun.management.ThreadMXBean bulkBean;
+
+	private ObjectMapper jacksonMapper = new ObjectMapper();
+
+	public HotThreadSampler( ) {
+		bulkBean = threadBean instanceof com.sun.management.ThreadMXBean
+				? (com.sun.management.ThreadMXBean) threadBean
+				: null;
+	}
+
+	/**
+	 *
+	 * Blocks the calling thread for windowMs
+	 */
+	public ObjectNode sample ( long windowMs, int top, int stackDepth ) {
+
+		ObjectNode result = jacksonMapper.createObjectNode();
+
+		if ( !threadBean.isThreadCpuTimeSupported() || !threadBean.isThreadCpuTimeEnabled() ) {
+			result.put( "error", "ThreadMXBean cpu time is not supported or not enabled" );
+			return result;
+		}
+
+		if ( !sampleLock.tryLock() ) {
+			result.put( "error", "A hot thread sample is already in progress, try again later" );
+			return result;
+		}
+
+		try {
+			long window = Math.max( 10, Math.min( MAX_WINDOW_MS, windowMs ) );
+			int topCount = Math.max( 1, Math.min( MAX_TOP, top ) );
+			int depth = Math.max( 0, Math.min( MAX_STACK_DEPTH, stackDepth ) );
+
+			long[] startIds = threadBean.getAllThreadIds();
+			long[] startCpu = cpuTimes( startIds, false );
+			long[] startUser = cpuTimes( startIds, true );
+			long startNanos = System.nanoTime();
+
+			TimeUnit.MILLISECONDS.sleep( window );
+
+			long[] endIds = threadBean.getAllThreadIds();
+			long[] endCpu = cpuTimes( endIds, false );
+			long[] endUser = cpuTimes( endIds, true );
+			long elapsedNanos = Math.max( 1, System.nanoTime() - startNanos );
+
+			Map<Long, Integer> startIndex = new HashMap<>( startIds.length * 2 );
+			for ( int i = 0; i < startIds.length; i++ ) {
+				startIndex.put( startIds[i], i );
+			}
+
+			List<HotThread> threads = new ArrayList<>( endIds.length );
+			for ( int i = 0; i < endIds.length; i++ ) {
+				if ( endCpu[i] < 0 ) {
+					// terminated
+					continue;
+				}
+				Integer start = startIndex.get( endIds[i] );
+				long cpu = endCpu[i] - (start == null ? 0 : Math.max( 0, startCpu[start] ));
+				long user = endUser[i] - (start == null ? 0 : Math.max( 0, startUser[start] ));
+				threads.add( new HotThread( endIds[i], Math.max( 0, cpu ), Math.max( 0, user ) ) );
+			}
+
+			// names for grouping; stacks only for the top threads
+			long[] ids = new long[threads.size()];
+			for ( int i = 0; i < ids.length; i++ ) {
+				ids[i] = threads.get( i ).id;
+			}
+			ThreadInfo[] infos = threadBean.getThreadInfo( ids, 0 );
+			for ( int i = 0; i < infos.length; i++ ) {
+				if ( infos[i] != null ) {
+					threads.get( i ).name = infos[i].getThreadName();
+				}
+			}
+
+			threads.sort( Comparator.comparingLong( ( HotThread thread ) -> thread.cpuNanos ).reversed() );
+
+			int processors = Runtime.getRuntime().availableProcessors();
+			long totalCpu = threads.stream().mapToLong( thread -> thread.cpuNanos ).sum();
+
+			result.put( "windowMs", TimeUnit.NANOSECONDS.toMillis( elapsedNanos ) );
+			result.put( "threads", threads.size() );
+			result.put( "processors", processors );
+			result.put( "cpuPercentOfHost", percent( totalCpu, elapsedNanos * processors ) );
+			result.put( "note", "cpuPercent is of one core" );
+
+			addTopThreads( result.putArray( "top" ), threads.subList( 0, Math.min( topCount, threads.size() ) ),
+				depth, elapsedNanos );
+			addGroups( result.putArray( "groups" ), threads, elapsedNanos );
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			result.put( "error", "Interrupted while sampling" );
+		} finally {
+			sampleLock.unlock();
+		}
+
+		return result;
+	}
+
+	/**
+	 *
+	 * @return nanos per thread, -1 if terminated
+	 */
+	private long[] cpuTimes ( long[] ids, boolean isUser ) {
+
+		if ( bulkBean != null ) {
+			return isUser ? bulkBean.getThreadUserTime( ids ) : bulkBean.getThreadCpuTime( ids );
+		}
+
+		long[] times = new long[ids.length];
+		for ( int i = 0; i < ids.length; i++ ) {
+			times[i] = isUser ? threadBean.getThreadUserTime( ids[i] ) : threadBean.getThreadCpuTime( ids[i] );
+		}
+		return times;
+	}
+
+	private void addTopThreads ( ArrayNode topJson, List<HotThread> topThreads, int depth, long elapsedNanos ) {
+
+		long[] ids = new long[topThreads.size()];
+		for ( int i = 0; i < ids.length; i++ ) {
+			ids[i] = topThreads.get( i ).id;
+		}
+		ThreadInfo[] infos = threadBean.getThreadInfo( ids, depth );
+
+		for ( int i = 0; i < ids.length; i++ ) {
+			HotThread thread = topThreads.get( i );
+
+			ObjectNode threadJson = topJson.addObject();
+			threadJson.put( "name", thread.name );
+			threadJson.put( "id", thread.id );
+			threadJson.put( "pool", poolName( thread.name ) );
+			threadJson.put( "cpuPercent", percent( thread.cpuNanos, elapsedNanos ) );
+			threadJson.put( "userPercent", percent( thread.userNanos, elapsedNanos ) );
+
+			ThreadInfo info = infos[i];
+			if ( info == null ) {
+				threadJson.put( "state", "TERMINATED" );
+				continue;
+			}
+			threadJson.put( "state", info.getThreadState().toString() );
+			if ( info.getLockName() != null ) {
+				threadJson.put( "waitingOn", info.getLockName() );
+			}
+			ArrayNode stack = threadJson.putArray( "stack" );
+			for ( StackTraceElement element : info.getStackTrace() ) {
+				stack.add( element.toString() );
+			}
+		}
+	}
+
+	private void addGroups ( ArrayNode groupsJson, List<HotThread> threads, long elapsedNanos ) {
+
+		Map<String, long[]> groups = new HashMap<>();
+		for ( HotThread thread : threads ) {
+			long[] group = groups.computeIfAbsent( poolName( thread.name ), name -> new long[3] );
+			group[0]++;
+			group[1] += thread.cpuNanos;
+			group[2] += thread.userNanos;
+		}
+
+		groups.entrySet().stream()
+			.sorted( Comparator.comparingLong( ( Map.Entry<String, long[]> group ) -> group.getValue()[1] ).reversed() )
+			.forEach( group -> {
+				ObjectNode groupJson = groupsJson.addObject();
+				groupJson.put( "pool", group.getKey() );
+				groupJson.put( "threads", group.getValue()[0] );
+				groupJson.put( "cpuPercent", percent( group.getValue()[1], elapsedNanos ) );
+				groupJson.put( "userPercent", percent( group.getValue()[2], elapsedNanos ) );
+			} );
+	}
+
+	/**
+	 *
+	 * Thread name without trailing numbers: threads of the same pool share it
+	 */
+	public static String poolName ( String threadName ) {
+
+		if ( threadName == null ) {
+			return "unknown";
+		}
+
+		String pool = THREAD_NUMBER.matcher( threadName ).replaceFirst( "" );
+		return pool.isEmpty() ? threadName : pool;
+	}
+
+	private static double percent ( long nanos, long elapsedNanos ) {
+		return Math.round( nanos * 10000.0 / elapsedNanos ) / 100.0;
+	}
+
+	private static class HotThread {
+
+		final long id;
+		final long cpuNanos;
+		final long userNanos;
+		String name = null;
+
+		HotThread( long id, long cpuNanos, long userNanos ) {
+			this.id = id;
+			this.cpuNanos = cpuNanos;
+			this.userNanos = userNanos;
+		}
+	}
+
+}
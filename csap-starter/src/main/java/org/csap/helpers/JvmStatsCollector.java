@@ -1,31 +1,53 @@
 package org.csap.helpers;
 
-import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
 import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import javax.management.AttributeNotFoundException;
-import javax.management.InstanceNotFoundException;
-import javax.management.MBeanException;
+import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.MBeanServer;
-import javax.management.MBeanServerConnection;
-import javax.management.MalformedObjectNameException;
-import javax.management.ObjectInstance;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
 import javax.management.ObjectName;
-import javax.management.ReflectionException;
-import javax.management.openmbean.CompositeData;
+import javax.management.relation.MBeanServerNotificationFilter;
 
+import org.csap.alerts.LatencyHistogram;
+import org.csap.integations.AllocationTracker;
+import org.csap.integations.InstrumentationOverhead;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
-
 /**
  * Class to collect core JVM metrics
  * 
+ * MXBeans are resolved once; tomcat beans are queried once and their
+ * attributes read in a single call per bean. Beans are re-resolved only when
+ * a GarbageCollector or tomcat bean is registered or unregistered. Previous
+ * values for deltas are held in primitive fields, so collections are cheap
+ * enough for sub second intervals.
+ * 
+ * GC times, pauses and allocation rates come from GcPauseRecorder
+ * notifications; cumulative gc times are polled only if notifications are not
+ * supported.
+ * 
+ * When csap.performance.allocations is enabled, allocation rate is also
+ * reported per thread pool.
+ * 
+ * Cumulative totals - gc time, tomcat requests, processing time, bytes and
+ * sessions, pool allocated bytes - are also set on the results, for exports
+ * that compute rates themselves (OpenMetrics counters).
+ * 
  * @author pnightin
  *
  */
@@ -37,309 +59,526 @@ public class JvmStatsCollector {
 
 	}
 
-	ObjectMapper jacksonMapper = new ObjectMapper();
-
 	public String TOMCAT_JMX_NAME = "Tomcat"; // SpringBoot, wars are Catalina
 	public String CACHE_KEY = "JavaPerformance";
 	public static final long SECOND_IN_MS = 1000;
 	public static final long MINUTE_IN_MS = 60*1000;
 
-	public CollectionResults performCollection () {
+	public final static String JVM_OVERHEAD = InstrumentationOverhead.COLLECTION + ".jvm";
+
+	private final static MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+
+	// incremented when monitored beans are registered or unregistered
+	private final static AtomicLong beanGeneration = new AtomicLong( 0 );
+	private static boolean isListening = false;
+
+	private final static String[] REQUEST_ATTRIBUTES = { "requestCount", "processingTime", "bytesReceived", "bytesSent" };
+	private final static String[] SESSION_ATTRIBUTES = { "activeSessions", "sessionCounter" };
+	private final static String[] POOL_ATTRIBUTES = { "connectionCount", "currentThreadsBusy", "currentThreadCount" };
+
+	private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+	private final java.lang.management.OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+	private final com.sun.management.OperatingSystemMXBean cpuBean;
+	private final com.sun.management.UnixOperatingSystemMXBean filesBean;
+
+	// gc notifications: totals at the previous collection
+	private final boolean isGcNotified;
+	private long lastMinorMs = 0;
+	private long lastMajorMs = 0;
+	private long lastAllocated = 0;
+	private long lastPromoted = 0;
+	private LatencyHistogram.Snapshot lastPauses = null;
+	private long lastCollectionNanos = System.nanoTime();
+
+	// allocation tracking: thread id to pool and allocated bytes at the
+	// previous collection
+	private Map<Long, PoolThread> poolThreads = new HashMap<>();
+	private long lastPoolNanos = 0;
+	private Map<String, Long> poolAllocatedTotals = new TreeMap<>();
+
+	private long resolvedGeneration = -1;
+	private String resolvedTomcatName = null;
+
+	private GcBean[] gcBeans = new GcBean[0];
+	private TomcatBean[] requestBeans = new TomcatBean[0];
+	private TomcatBean[] sessionBeans = new TomcatBean[0];
+	private TomcatBean[] poolBeans = new TomcatBean[0];
+
+	{
+		cpuBean = osBean instanceof com.sun.management.OperatingSystemMXBean
+				? (com.sun.management.OperatingSystemMXBean) osBean
+				: null;
+		// When run on Windows - open files does not exist.
+		filesBean = osBean instanceof com.sun.management.UnixOperatingSystemMXBean
+				? (com.sun.management.UnixOperatingSystemMXBean) osBean
+				: null;
+		listenForBeanChanges();
+
+		isGcNotified = GcPauseRecorder.install();
+		if ( isGcNotified ) {
+			lastMinorMs = GcPauseRecorder.getMinorMs();
+			lastMajorMs = GcPauseRecorder.getMajorMs();
+			lastAllocated = GcPauseRecorder.getAllocatedBytes();
+			lastPromoted = GcPauseRecorder.getPromotedBytes();
+			lastPauses = GcPauseRecorder.pauseSnapshot();
+		}
+	}
 
-		MBeanServerConnection mbeanConn = (MBeanServer) ManagementFactory
-			.getPlatformMBeanServer();
+	public synchronized CollectionResults performCollection () {
 
 		CollectionResults results = new CollectionResults();
-		
+		long[] overhead = InstrumentationOverhead.startCycle();
+
 		try {
-			collectJavaCoreMetrics( mbeanConn, results );
-			collectJavaHeapMetrics( mbeanConn, results );
-			collectTomcatConnections( mbeanConn, results );
-			collectTomcatRequestData( mbeanConn, results );
+			resolveBeans();
+			collectJavaCoreMetrics( results );
+			collectJavaHeapMetrics( results );
+			collectTomcatConnections( results );
+			collectTomcatRequestData( results );
+			collectPoolAllocations( results );
 		} catch (Exception e) {
 			logger.error( "Failed to collect data", e );
 		}
 
+		InstrumentationOverhead.endCycle( overhead, JVM_OVERHEAD );
 		return results;
 	}
 
-	static Map<String, Long> lastMinorGcMap = new HashMap<String, Long>();
-	static Map<String, Long> lastMajorGcMap = new HashMap<String, Long>();
+	private static synchronized void listenForBeanChanges () {
 
-	private void collectJavaHeapMetrics ( MBeanServerConnection mbeanConn, CollectionResults results )
-			throws Exception {
+		if ( isListening ) {
+			return;
+		}
 
-		// **************** Memory
-		String mbeanName = "java.lang:type=Memory";
-		String attributeName = "HeapMemoryUsage";
+		try {
+			MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+			filter.enableAllObjectNames();
 
-		CompositeData resultData = (CompositeData) mbeanConn
-			.getAttribute( new ObjectName( mbeanName ),
-				attributeName );
+			mbeanServer.addNotificationListener( MBeanServerDelegate.DELEGATE_NAME, ( notification, handback ) -> {
+				if ( notification instanceof MBeanServerNotification
+						&& isMonitoredBean( ((MBeanServerNotification) notification).getMBeanName() ) ) {
+					beanGeneration.incrementAndGet();
+				}
+			}, filter, null );
 
-		results.setHeapUsed( Long
-			.parseLong( resultData
-				.get( "used" )
-				.toString() )
-				/ 1024 / 1024 );
+			isListening = true;
+		} catch (Exception e) {
+			logger.warn( "Failed to listen for mbean registrations, beans will be resolved on every collection: {}",
+				e.getMessage() );
+		}
+	}
 
-		results.setHeapMax( Long.parseLong( resultData
-			.get( "max" )
-			.toString() )
-				/ 1024 / 1024 );
+	private static boolean isMonitoredBean ( ObjectName name ) {
 
-		// **************** GarbageCollection
-		Set<ObjectInstance> gcBeans = mbeanConn.queryMBeans(
-			new ObjectName( "java.lang:type=GarbageCollector,name=*" ), null );
+		String type = name.getKeyProperty( "type" );
+		if ( type == null ) {
+			return false;
+		}
 
-		for ( ObjectInstance objectInstance : gcBeans ) {
+		return type.equals( "GarbageCollector" ) || type.equals( "GlobalRequestProcessor" )
+				|| type.equals( "Manager" ) || type.equals( "ThreadPool" );
+	}
 
-			long gcCount = -1;
-			long gcCollectionTime = -1;
-			try {
-				gcCount = (Long) mbeanConn.getAttribute(
-					objectInstance.getObjectName(),
-					"CollectionCount" );
-				gcCollectionTime = (Long) mbeanConn.getAttribute(
-					objectInstance.getObjectName(),
-					"CollectionTime" );
-				// jmxResults.setHttpConn();
-			} catch (Exception e) {
-				// tomcat 6 might not have.
-				logger.debug( "Failed to get jmx data for service: {}, Reason: {}", e.getMessage() );
-			}
+	private void resolveBeans () {
 
-			//
-			// There are several different GC algorithms, the name is used to ID
-			// if current object is major or minor
-			//
-			boolean isMajor = false;
-			String gcBeanName = objectInstance
-				.getObjectName()
-				.toString();
-			if ( gcBeanName.contains( "Mark" ) || gcBeanName.contains( "Old" ) ) {
-				isMajor = true;
-			}
+		long currentGeneration = beanGeneration.get();
+		if ( isListening && currentGeneration == resolvedGeneration && TOMCAT_JMX_NAME.equals( resolvedTomcatName ) ) {
+			return;
+		}
 
-			logger.debug( " gcBean: {} , gcCount: {}, isMajor: {}, gcCollectionTime: {} ",
-				gcBeanName, gcCount, isMajor, gcCollectionTime );
+		logger.debug( "Resolving beans, generation: {}", currentGeneration );
 
-			// We show incremental times on UI - making any activity show up as
-			// greater then 0
-			long lastTime = gcCollectionTime;
-			String collectionKey = "keyForDelta";
-			if ( isMajor ) {
-				if ( lastMajorGcMap.containsKey( collectionKey ) ) {
-					lastTime = lastMajorGcMap.get( collectionKey );
-				}
-				long delta = gcCollectionTime - lastTime;
-				if ( delta < 0 ) {
-					delta = -1;
-				}
-				results.setMajorGcInMs( delta );
-				lastMajorGcMap.put( collectionKey, gcCollectionTime );
-			} else {
-				if ( lastMinorGcMap.containsKey( collectionKey ) ) {
-					lastTime = lastMinorGcMap.get( collectionKey );
-				}
+		List<GcBean> gcList = new ArrayList<>();
+		for ( GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans() ) {
+			gcList.add( new GcBean( gcBean, findBean( gcBeans, gcBean.getName() ) ) );
+		}
+		gcBeans = gcList.toArray( new GcBean[0] );
 
-				long delta = gcCollectionTime - lastTime;
-				if ( delta < 0 ) {
-					delta = -1;
-				}
-				results.setMinorGcInMs( delta );
+		requestBeans = queryTomcat( TOMCAT_JMX_NAME + ":type=GlobalRequestProcessor,name=*", requestBeans, REQUEST_ATTRIBUTES );
+		// There may be multiple wars deployed...so add them all together
+		sessionBeans = queryTomcat( TOMCAT_JMX_NAME + ":type=Manager,host=localhost,context=*", sessionBeans, SESSION_ATTRIBUTES );
+		poolBeans = queryTomcat( TOMCAT_JMX_NAME + ":type=ThreadPool,name=*", poolBeans, POOL_ATTRIBUTES );
 
-				lastMinorGcMap.put( collectionKey, gcCollectionTime );
+		resolvedGeneration = currentGeneration;
+		resolvedTomcatName = TOMCAT_JMX_NAME;
+	}
+
+	private GcBean findBean ( GcBean[] current, String name ) {
+		for ( GcBean gcBean : current ) {
+			if ( gcBean.bean.getName().equals( name ) ) {
+				return gcBean;
 			}
 		}
+		return null;
 	}
 
-	private void collectJavaCoreMetrics ( MBeanServerConnection mbeanConn, CollectionResults results )
-			throws Exception {
-		// cpu
-		// http://docs.oracle.com/javase/7/docs/jre/api/management/extension/com/sun/management/OperatingSystemMXBean.html
-		String mbeanName = "java.lang:type=OperatingSystem";
-
-		//
-		// Seems to be race condition when same ProcessCpuLoad is
-		// pulled from the same connection.
-		String attributeName = "ProcessCpuLoad";
-		Double cpuDouble;
-		try {
-			cpuDouble = (Double) mbeanConn.getAttribute( new ObjectName( mbeanName ), attributeName );
-
-			results.setCpuPercent( Math.round( cpuDouble * 100 ) );
+	/**
+	 * 
+	 * Beans already resolved keep their last values, so deltas are not reset
+	 */
+	private TomcatBean[] queryTomcat ( String pattern, TomcatBean[] current, String[] attributes ) {
 
-			logger.debug( "cpuDouble: {}", cpuDouble );
-		} catch (Exception e) {
-			logger.debug( "Failed to get ProcessCpuLoad", e );
-		}
-		// **************** Open Files
-		// logger.error("\n\n\t ************** Sleeping for testing JMX timeouts
-		// ***********");
-		// Thread.sleep(5000); // For testing timeouts only
+		List<TomcatBean> beans = new ArrayList<>();
 		try {
-			mbeanName = "java.lang:type=OperatingSystem";
-			attributeName = "OpenFileDescriptorCount";
-			results.setOpenFiles( (Long) mbeanConn.getAttribute(
-				new ObjectName( mbeanName ), attributeName ) );
+			Set<ObjectName> names = mbeanServer.queryNames( new ObjectName( pattern ), null );
+			for ( ObjectName name : names ) {
+				TomcatBean tomcatBean = null;
+				for ( TomcatBean existing : current ) {
+					if ( existing.name.equals( name ) ) {
+						tomcatBean = existing;
+					}
+				}
+				beans.add( tomcatBean != null ? tomcatBean : new TomcatBean( name, attributes ) );
+			}
 		} catch (Exception e) {
-			logger.debug( "When run on Windows - this does not exist." );
+			logger.debug( "Failed to query: {}, Reason: {}", pattern, e.getMessage() );
 		}
 
-		// **************** JVM threads
-		mbeanName = "java.lang:type=Threading";
-		attributeName = "ThreadCount";
-		results.setJvmThreadCount( (int) mbeanConn.getAttribute(
-			new ObjectName( mbeanName ), attributeName ) );
-
-		mbeanName = "java.lang:type=Threading";
-		attributeName = "PeakThreadCount";
-		results.setJvmThreadMax( (int) mbeanConn.getAttribute( new ObjectName(
-			mbeanName ), attributeName ) );
+		return beans.toArray( new TomcatBean[0] );
 	}
 
-	private ObjectNode deltaLastCollected = jacksonMapper.createObjectNode();
+	/**
+	 * 
+	 * There are several different GC algorithms, the name is used to ID if
+	 * current object is major or minor
+	 */
+	private static class GcBean {
 
-	private long jmxDelta ( String key, long collectedMetricAsLong ) {
+		final GarbageCollectorMXBean bean;
+		final boolean isMajor;
+		long lastTime;
 
-		logger.debug( "Service: {} , collectedMetricAsLong: {}", key, collectedMetricAsLong );
+		GcBean( GarbageCollectorMXBean bean, GcBean previous ) {
+			this.bean = bean;
+			isMajor = bean.getName().contains( "Mark" ) || bean.getName().contains( "Old" );
+			lastTime = previous != null ? previous.lastTime : bean.getCollectionTime();
+		}
+	}
+
+	/**
+	 * 
+	 * Attributes read in one call; values are in attribute order, -1 if
+	 * missing
+	 */
+	private static class TomcatBean {
+
+		final ObjectName name;
+		final String[] attributes;
+		final long[] values;
+		final long[] lastValues;
+		boolean isCollected = false;
+
+		TomcatBean( ObjectName name, String[] attributes ) {
+			this.name = name;
+			this.attributes = attributes;
+			values = new long[attributes.length];
+			lastValues = new long[attributes.length];
+		}
+
+		boolean read () {
+
+			try {
+				AttributeList attributeList = mbeanServer.getAttributes( name, attributes );
+
+				for ( int i = 0; i < values.length; i++ ) {
+					values[i] = -1;
+				}
+				for ( Attribute attribute : attributeList.asList() ) {
+					for ( int i = 0; i < attributes.length; i++ ) {
+						if ( attributes[i].equals( attribute.getName() ) && attribute.getValue() instanceof Number ) {
+							values[i] = ((Number) attribute.getValue()).longValue();
+						}
+					}
+				}
 
-		long last = collectedMetricAsLong;
-		if ( deltaLastCollected.has( key ) ) {
-			collectedMetricAsLong = collectedMetricAsLong - deltaLastCollected
-				.get( key )
-				.asLong();
-			if ( collectedMetricAsLong < 0 ) {
-				collectedMetricAsLong = 0;
+				return true;
+			} catch (Exception e) {
+				// tomcat 6 might not have.
+				logger.debug( "Failed to get jmx data for: {}, Reason: {}", name, e.getMessage() );
+				return false;
 			}
-		} else {
-			collectedMetricAsLong = 0;
 		}
 
-		deltaLastCollected.put( key, last );
+		/**
+		 * 
+		 * @return 0 on the first collection, or if the value was reset
+		 */
+		long delta ( int index ) {
 
-		return collectedMetricAsLong;
-	}
+			long delta = 0;
+			if ( isCollected && values[index] >= lastValues[index] ) {
+				delta = values[index] - lastValues[index];
+			}
 
-	private void collectTomcatRequestData ( MBeanServerConnection mbeanConn, CollectionResults results )
-			throws IOException, MalformedObjectNameException, MBeanException,
-			AttributeNotFoundException, InstanceNotFoundException, ReflectionException {
+			return delta;
+		}
 
-		// **************** Tomcat Global processor: collect http stats
-		// Multiple connections ajp and http, add all together for graphs
+		void collected () {
+			System.arraycopy( values, 0, lastValues, 0, values.length );
+			isCollected = true;
+		}
 
-		String mbeanName = TOMCAT_JMX_NAME + ":type=GlobalRequestProcessor,name=*";
+		long value ( int index ) {
+			return Math.max( 0, values[index] );
+		}
+	}
 
-		Set<ObjectInstance> tomcatGlobalRequestBeans = mbeanConn.queryMBeans(
-			new ObjectName( mbeanName ), null );
+	private void collectJavaHeapMetrics ( CollectionResults results ) {
 
-		for ( ObjectInstance tomcatConnectionInstance : tomcatGlobalRequestBeans ) {
+		// **************** Memory
+		MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+		results.setHeapUsed( heap.getUsed() / 1024 / 1024 );
+		results.setHeapMax( heap.getMax() / 1024 / 1024 );
+
+		if ( isGcNotified ) {
+			collectGcEvents( results );
+			return;
+		}
+
+		// **************** GarbageCollection: polled when notifications are
+		// not available
+		// We show incremental times on UI - making any activity show up as
+		// greater then 0
+		long minorDelta = 0;
+		long majorDelta = 0;
+		long minorTotal = 0;
+		long majorTotal = 0;
+		for ( GcBean gcBean : gcBeans ) {
+
+			long gcCollectionTime = gcBean.bean.getCollectionTime();
+			if ( gcBean.isMajor ) {
+				majorTotal += Math.max( 0, gcCollectionTime );
+			} else {
+				minorTotal += Math.max( 0, gcCollectionTime );
+			}
+			long delta = gcCollectionTime - gcBean.lastTime;
+			if ( delta < 0 ) {
+				delta = -1;
+			}
+			gcBean.lastTime = gcCollectionTime;
 
-			logger.debug( "Service: {} ObjectName: {}", "JavaPerformance", tomcatConnectionInstance.getObjectName() );
+			logger.debug( " gcBean: {} , isMajor: {}, gcCollectionTime: {} ",
+				gcBean.bean.getName(), gcBean.isMajor, gcCollectionTime );
 
-			String frontKey = CACHE_KEY + tomcatConnectionInstance.getObjectName();
+			if ( gcBean.isMajor ) {
+				majorDelta = delta < 0 ? delta : majorDelta + delta;
+			} else {
+				minorDelta = delta < 0 ? delta : minorDelta + delta;
+			}
+		}
 
-			long deltaCollected = jmxDelta( frontKey + "requestCount",
-				(int) mbeanConn.getAttribute( tomcatConnectionInstance.getObjectName(), "requestCount" ) );
+		results.setMajorGcInMs( majorDelta );
+		results.setMinorGcInMs( minorDelta );
+		results.setMajorGcTotalMs( majorTotal );
+		results.setMinorGcTotalMs( minorTotal );
+	}
 
-			results.setHttpRequestCount( results.getHttpRequestCount() + deltaCollected );
+	/**
+	 * 
+	 * GcPauseRecorder totals since the previous collection
+	 */
+	private void collectGcEvents ( CollectionResults results ) {
+
+		long now = System.nanoTime();
+		long intervalMs = Math.max( 1, TimeUnit.NANOSECONDS.toMillis( now - lastCollectionNanos ) );
+		lastCollectionNanos = now;
+
+		long minorMs = GcPauseRecorder.getMinorMs();
+		long majorMs = GcPauseRecorder.getMajorMs();
+		results.setMinorGcInMs( minorMs - lastMinorMs );
+		results.setMajorGcInMs( majorMs - lastMajorMs );
+		results.setMinorGcTotalMs( minorMs );
+		results.setMajorGcTotalMs( majorMs );
+		lastMinorMs = minorMs;
+		lastMajorMs = majorMs;
+
+		LatencyHistogram.Snapshot pauses = GcPauseRecorder.pauseSnapshot();
+		LatencyHistogram.Snapshot intervalPauses = pauses.minus( lastPauses );
+		lastPauses = pauses;
+		results.setGcPauses( intervalPauses.getCount() );
+		results.setGcPauseP99InMs( TimeUnit.NANOSECONDS.toMillis( intervalPauses.valueAt( 99 ) ) );
+		results.setGcPauseMaxInMs( TimeUnit.NANOSECONDS.toMillis( intervalPauses.getMax() ) );
+
+		// eden based: updated as gcs occur
+		long allocated = GcPauseRecorder.getAllocatedBytes();
+		long promoted = GcPauseRecorder.getPromotedBytes();
+		results.setAllocationKbPerSecond( (allocated - lastAllocated) * 1000 / intervalMs / 1024 );
+		results.setPromotionKbPerSecond( (promoted - lastPromoted) * 1000 / intervalMs / 1024 );
+		lastAllocated = allocated;
+		lastPromoted = promoted;
+	}
 
-			deltaCollected = jmxDelta( frontKey + "processingTime",
-				(long) mbeanConn.getAttribute( tomcatConnectionInstance.getObjectName(), "processingTime" ) );
+	private static class PoolThread {
 
-			results.setHttpProcessingTime( results.getHttpProcessingTime() + deltaCollected );
+		final String pool;
+		long lastBytes;
 
-			deltaCollected = jmxDelta( frontKey + "bytesReceived",
-				(long) mbeanConn.getAttribute( tomcatConnectionInstance.getObjectName(), "bytesReceived" ) );
-			results.setHttpBytesReceived( results.getHttpBytesReceived() + (deltaCollected / 1024) );
+		PoolThread( String pool, long lastBytes ) {
+			this.pool = pool;
+			this.lastBytes = lastBytes;
+		}
+	}
 
-			deltaCollected = jmxDelta( frontKey + "bytesSent",
-				(long) mbeanConn.getAttribute( tomcatConnectionInstance.getObjectName(), "bytesSent" ) );
-			results.setHttpBytesSent( results.getHttpBytesSent() + (deltaCollected / 1024) );
+	/**
+	 * 
+	 * Allocation rate per thread pool when csap.performance.allocations is
+	 * enabled: bulk read of thread allocated bytes; names are read only for
+	 * threads not seen before. Threads started since the previous collection
+	 * are counted from the next one.
+	 */
+	private void collectPoolAllocations ( CollectionResults results ) {
 
+		if ( !AllocationTracker.isActive() ) {
+			return;
 		}
 
-		// There may be multiple wars deployed...so add them all together
-		String sessionMbeanName = TOMCAT_JMX_NAME + ":type=Manager,host=localhost,context=*";
+		long now = System.nanoTime();
+		long intervalMs = lastPoolNanos == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis( now - lastPoolNanos );
+		lastPoolNanos = now;
 
-		Set<ObjectInstance> tomcatManagerBeans = mbeanConn.queryMBeans(
-			new ObjectName( sessionMbeanName ), null );
+		long[] ids = threadBean.getAllThreadIds();
+		long[] bytes = AllocationTracker.threadAllocatedBytes( ids );
 
-		for ( ObjectInstance warDeployedInstance : tomcatManagerBeans ) {
+		List<Long> unnamed = new ArrayList<>();
+		for ( long id : ids ) {
+			if ( !poolThreads.containsKey( id ) ) {
+				unnamed.add( id );
+			}
+		}
+		Map<Long, String> newPools = new HashMap<>();
+		if ( !unnamed.isEmpty() ) {
+			long[] unnamedIds = unnamed.stream().mapToLong( Long::longValue ).toArray();
+			for ( ThreadInfo info : threadBean.getThreadInfo( unnamedIds, 0 ) ) {
+				if ( info != null ) {
+					newPools.put( info.getThreadId(), HotThreadSampler.poolName( info.getThreadName() ) );
+				}
+			}
+		}
 
-			logger.debug( "Service: {} ObjectName: {}", CACHE_KEY, warDeployedInstance.getObjectName() );
+		Map<String, Long> poolBytes = new TreeMap<>();
+		Map<Long, PoolThread> currentThreads = new HashMap<>( ids.length * 2 );
+		for ( int i = 0; i < ids.length; i++ ) {
+			if ( bytes[i] < 0 ) {
+				// terminated
+				continue;
+			}
 
-			try {
-				long sessionsActive = (int) mbeanConn
-					.getAttribute( warDeployedInstance.getObjectName(), "activeSessions" );
+			PoolThread thread = poolThreads.get( ids[i] );
+			if ( thread == null ) {
+				String pool = newPools.get( ids[i] );
+				if ( pool == null ) {
+					continue;
+				}
+				thread = new PoolThread( pool, bytes[i] );
+			}
 
-				// active http sessions
-				results.setSessionsActive( sessionsActive + results.getSessionsActive() );
+			long threadBytes = Math.max( 0, bytes[i] - thread.lastBytes );
+			poolBytes.merge( thread.pool, threadBytes, Long::sum );
+			poolAllocatedTotals.merge( thread.pool, threadBytes, Long::sum );
+			thread.lastBytes = bytes[i];
+			currentThreads.put( ids[i], thread );
+		}
+		poolThreads = currentThreads;
+		results.setPoolAllocatedBytesTotal( new TreeMap<>( poolAllocatedTotals ) );
 
-				// Use deltas, then we can track sessions per day
-				String frontKey = CACHE_KEY + warDeployedInstance.getObjectName();
+		if ( intervalMs <= 0 ) {
+			return;
+		}
 
-				long sessionCount = (long) mbeanConn.getAttribute( warDeployedInstance.getObjectName(),
-					"sessionCounter" );
-				long deltaCollected = jmxDelta( frontKey + "sessionCounter", sessionCount );
+		Map<String, Long> poolRates = new TreeMap<>();
+		for ( Map.Entry<String, Long> pool : poolBytes.entrySet() ) {
+			poolRates.put( pool.getKey(), pool.getValue() * 1000 / intervalMs / 1024 );
+		}
+		results.setPoolAllocationKbPerSecond( poolRates );
+	}
 
-				logger
-					.debug( "{}  sessionsActive: {} sessionCount: {} delta: {}", frontKey, sessionsActive,
-						sessionCount, deltaCollected );
+	private void collectJavaCoreMetrics ( CollectionResults results ) {
 
-				results.setSessionsCount( results.getSessionsCount() + deltaCollected );
-			} catch (Exception e) {
-				logger.error( "Failed to collect session", e );
+		// cpu
+		// http://docs.oracle.com/javase/7/docs/jre/api/management/extension/com/sun/management/OperatingSystemMXBean.html
+		if ( cpuBean != null ) {
+			double cpuDouble = cpuBean.getProcessCpuLoad();
+			if ( cpuDouble >= 0 ) {
+				results.setCpuPercent( Math.round( cpuDouble * 100 ) );
 			}
+			logger.debug( "cpuDouble: {}", cpuDouble );
+		}
 
+		// **************** Open Files
+		if ( filesBean != null ) {
+			results.setOpenFiles( filesBean.getOpenFileDescriptorCount() );
 		}
+
+		// **************** JVM threads
+		results.setJvmThreadCount( threadBean.getThreadCount() );
+		results.setJvmThreadMax( threadBean.getPeakThreadCount() );
 	}
 
-	private void collectTomcatConnections ( MBeanServerConnection mbeanConn, CollectionResults results )
-			throws IOException, MalformedObjectNameException, MBeanException,
-			AttributeNotFoundException, InstanceNotFoundException, ReflectionException {
-		String mbeanName;
+	private void collectTomcatRequestData ( CollectionResults results ) {
 
-		String tomcatJmxRoot = TOMCAT_JMX_NAME;
+		// **************** Tomcat Global processor: collect http stats
+		// Multiple connections ajp and http, add all together for graphs
+		for ( TomcatBean processor : requestBeans ) {
 
-		// **************** Tomcat connections
-		mbeanName = tomcatJmxRoot + ":type=ThreadPool,name=*";
-		Set<ObjectInstance> tomcatThreadPoolBeans = mbeanConn.queryMBeans(
-			new ObjectName( mbeanName ), null );
-
-		for ( ObjectInstance objectInstance : tomcatThreadPoolBeans ) {
-			logger.debug( "Service: {} ObjectName: {}", CACHE_KEY, objectInstance.getObjectName() );
-
-			if ( results.getHttpConn() < 0 ) {
-				// get rid of -10 init
-				results.setHttpConn( 0 );
-				results.setThreadsBusy( 0 );
-				results.setThreadCount( 0 );
+			if ( !processor.read() ) {
+				continue;
 			}
 
-			try {
-				results.setHttpConn( results.getHttpConn() + (Long) mbeanConn.getAttribute(
-					objectInstance.getObjectName(),
-					"connectionCount" ) );
-			} catch (Exception e) {
-				// tomcat 6 might not have.
-				logger.debug( "Failed to get jmx data for service: {} Reason: {}", CACHE_KEY, e.getMessage() );
+			results.setHttpRequestCount( results.getHttpRequestCount() + processor.delta( 0 ) );
+			results.setHttpProcessingTime( results.getHttpProcessingTime() + processor.delta( 1 ) );
+			results.setHttpBytesReceived( results.getHttpBytesReceived() + (processor.delta( 2 ) / 1024) );
+			results.setHttpBytesSent( results.getHttpBytesSent() + (processor.delta( 3 ) / 1024) );
+
+			results.setHttpRequestTotal( results.getHttpRequestTotal() + processor.value( 0 ) );
+			results.setHttpProcessingTotalMs( results.getHttpProcessingTotalMs() + processor.value( 1 ) );
+			results.setHttpBytesReceivedTotal( results.getHttpBytesReceivedTotal() + processor.value( 2 ) );
+			results.setHttpBytesSentTotal( results.getHttpBytesSentTotal() + processor.value( 3 ) );
+			processor.collected();
+		}
+
+		for ( TomcatBean manager : sessionBeans ) {
+
+			if ( !manager.read() ) {
+				continue;
 			}
 
-			results.setThreadsBusy( results.getThreadsBusy() + (int) mbeanConn.getAttribute(
-				objectInstance.getObjectName(),
-				"currentThreadsBusy" ) );
+			// active http sessions
+			results.setSessionsActive( results.getSessionsActive() + manager.value( 0 ) );
 
-			results.setThreadCount( results.getThreadCount() + (int) mbeanConn.getAttribute(
-				objectInstance.getObjectName(),
-				"currentThreadCount" ) );
+			// Use deltas, then we can track sessions per day
+			results.setSessionsCount( results.getSessionsCount() + manager.delta( 1 ) );
+			results.setSessionsCreatedTotal( results.getSessionsCreatedTotal() + manager.value( 1 ) );
+			manager.collected();
+
+			logger.debug( "{}  sessionsActive: {} sessionCount: {}", manager.name, manager.values[0], manager.values[1] );
+		}
+	}
+
+	private void collectTomcatConnections ( CollectionResults results ) {
+
+		// **************** Tomcat connections
+		for ( TomcatBean pool : poolBeans ) {
+
+			if ( !pool.read() ) {
+				continue;
+			}
+
+			results.setHttpConn( results.getHttpConn() + pool.value( 0 ) );
+			results.setThreadsBusy( results.getThreadsBusy() + pool.value( 1 ) );
+			results.setThreadCount( results.getThreadCount() + pool.value( 2 ) );
 		}
 	}
 
 	public class CollectionResults {
 		private long minorGcInMs = 0;
 		private long majorGcInMs = 0;
+
+		// gc notifications only
+		private long gcPauses = 0;
+		private long gcPauseP99InMs = 0;
+		private long gcPauseMaxInMs = 0;
+		private long allocationKbPerSecond = 0;
+		private long promotionKbPerSecond = 0;
 		private long httpConn = 0;
 		private long threadsBusy = 0;
 		private long threadCount = 0; // threadCount = 0 means JMX is not
@@ -361,6 +600,20 @@ public class JvmStatsCollector {
 		private long sessionsCount = 0;
 		private long sessionsActive = 0;
 
+		// thread pool name: allocation rate, when allocations are tracked
+		private Map<String, Long> poolAllocationKbPerSecond = new TreeMap<>();
+
+		// cumulative: since jvm start, or since the collector was created for
+		// pool allocations
+		private long minorGcTotalMs = 0;
+		private long majorGcTotalMs = 0;
+		private long httpRequestTotal = 0;
+		private long httpProcessingTotalMs = 0;
+		private long httpBytesReceivedTotal = 0;
+		private long httpBytesSentTotal = 0;
+		private long sessionsCreatedTotal = 0;
+		private Map<String, Long> poolAllocatedBytesTotal = new TreeMap<>();
+
 		public long getMinorGcInMs () {
 			return minorGcInMs;
 		}
@@ -377,6 +630,46 @@ public class JvmStatsCollector {
 			this.majorGcInMs = majorGcInMs;
 		}
 
+		public long getGcPauses () {
+			return gcPauses;
+		}
+
+		public void setGcPauses ( long gcPauses ) {
+			this.gcPauses = gcPauses;
+		}
+
+		public long getGcPauseP99InMs () {
+			return gcPauseP99InMs;
+		}
+
+		public void setGcPauseP99InMs ( long gcPauseP99InMs ) {
+			this.gcPauseP99InMs = gcPauseP99InMs;
+		}
+
+		public long getGcPauseMaxInMs () {
+			return gcPauseMaxInMs;
+		}
+
+		public void setGcPauseMaxInMs ( long gcPauseMaxInMs ) {
+			this.gcPauseMaxInMs = gcPauseMaxInMs;
+		}
+
+		public long getAllocationKbPerSecond () {
+			return allocationKbPerSecond;
+		}
+
+		public void setAllocationKbPerSecond ( long allocationKbPerSecond ) {
+			this.allocationKbPerSecond = allocationKbPerSecond;
+		}
+
+		public long getPromotionKbPerSecond () {
+			return promotionKbPerSecond;
+		}
+
+		public void setPromotionKbPerSecond ( long promotionKbPerSecond ) {
+			this.promotionKbPerSecond = promotionKbPerSecond;
+		}
+
 		public long getHttpConn () {
 			return httpConn;
 		}
@@ -485,6 +778,8 @@ public class JvmStatsCollector {
 		public String toString () {
 			return "\n\t JavaPerformance [minorGcInMs=" + minorGcInMs + ", majorGcInMs=" + majorGcInMs + ", heapUsed=" + heapUsed
 					+ ", heapMax=" + heapMax +
+					",\n\t gcPauses=" + gcPauses + ", gcPauseP99InMs=" + gcPauseP99InMs + ", gcPauseMaxInMs=" + gcPauseMaxInMs
+					+ ", allocationKbPerSecond=" + allocationKbPerSecond + ", promotionKbPerSecond=" + promotionKbPerSecond +
 					",\n\t sessionsActive=" + sessionsActive + ", sessionsCount=" + sessionsCount +
 					",\n\t httpConn=" + httpConn + ", httpRequestCount=" + httpRequestCount +
 					", httpProcessingTime=" + httpProcessingTime + ", httpBytesReceived=" + httpBytesReceived + ", httpBytesSent="
@@ -492,6 +787,7 @@ public class JvmStatsCollector {
 					",\n\t threadsBusy=" + threadsBusy + ", threadCount=" + threadCount +
 					", cpuPercent=" + cpuPercent + ", jvmThreadCount=" + jvmThreadCount + ", jvmThreadMax=" + jvmThreadMax + ", openFiles="
 					+ openFiles +
+					",\n\t poolAllocationKbPerSecond=" + poolAllocationKbPerSecond +
 					"]";
 		}
 
@@ -511,5 +807,77 @@ public class JvmStatsCollector {
 			this.sessionsActive = sessionsActive;
 		}
 
+		public Map<String, Long> getPoolAllocationKbPerSecond () {
+			return poolAllocationKbPerSecond;
+		}
+
+		public void setPoolAllocationKbPerSecond ( Map<String, Long> poolAllocationKbPerSecond ) {
+			this.poolAllocationKbPerSecond = poolAllocationKbPerSecond;
+		}
+
+		public long getMinorGcTotalMs () {
+			return minorGcTotalMs;
+		}
+
+		public void setMinorGcTotalMs ( long minorGcTotalMs ) {
+			this.minorGcTotalMs = minorGcTotalMs;
+		}
+
+		public long getMajorGcTotalMs () {
+			return majorGcTotalMs;
+		}
+
+		public void setMajorGcTotalMs ( long majorGcTotalMs ) {
+			this.majorGcTotalMs = majorGcTotalMs;
+		}
+
+		public long getHttpRequestTotal () {
+			return httpRequestTotal;
+		}
+
+		public void setHttpRequestTotal ( long httpRequestTotal ) {
+			this.httpRequestTotal = httpRequestTotal;
+		}
+
+		public long getHttpProcessingTotalMs () {
+			return httpProcessingTotalMs;
+		}
+
+		public void setHttpProcessingTotalMs ( long httpProcessingTotalMs ) {
+			this.httpProcessingTotalMs = httpProcessingTotalMs;
+		}
+
+		public long getHttpBytesReceivedTotal () {
+			return httpBytesReceivedTotal;
+		}
+
+		public void setHttpBytesReceivedTotal ( long httpBytesReceivedTotal ) {
+			this.httpBytesReceivedTotal = httpBytesReceivedTotal;
+		}
+
+		public long getHttpBytesSentTotal () {
+			return httpBytesSentTotal;
+		}
+
+		public void setHttpBytesSentTotal ( long httpBytesSentTotal ) {
+			this.httpBytesSentTotal = httpBytesSentTotal;
+		}
+
+		public long getSessionsCreatedTotal () {
+			return sessionsCreatedTotal;
+		}
+
+		public void setSessionsCreatedTotal ( long sessionsCreatedTotal ) {
+			this.sessionsCreatedTotal = sessionsCreatedTotal;
+		}
+
+		public Map<String, Long> getPoolAllocatedBytesTotal () {
+			return poolAllocatedBytesTotal;
+		}
+
+		public void setPoolAllocatedBytesTotal ( Map<String, Long> poolAllocatedBytesTotal ) {
+			this.poolAllocatedBytesTotal = poolAllocatedBytesTotal;
+		}
+
 	}
 }
@@ -0,0 +1,147 @@
+package org.csap.integations;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.csap.alerts.CsapGlobalId;
+import org.csap.alerts.CsapMeter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * csap.performance.allocations: heap bytes allocated by the request thread,
+ * from com.sun.management.ThreadMXBean.getThreadAllocatedBytes.
+ *
+ * Recorded in CsapMeters, so name.total / name gives bytes per call:
+ * csap.http.allocated per monitored request, route.allocated per http route,
+ * and monitorName.allocated per timed @CsapMonitor call. JvmStatsCollector
+ * reports allocation rate per thread pool.
+ *
+ * Only work done on the calling thread is counted: async completions and
+ * tasks handed to other pools are attributed to those threads.
+ *
+ * @author pnightin
+ *
+ */
+public class AllocationTracker {
+
+	final static Logger logger = LoggerFactory.getLogger( AllocationTracker.class );
+
+	public final static String SUFFIX = ".allocated";
+	public final static long NOT_TRACKED = -1;
+
+	private final static CsapMeter requestMeter = CsapMeter.get( CsapGlobalId.HTTP_ALLOCATED.id );
+
+	private static com.sun.management.ThreadMXBean allocationBean = null;
+	private static volatile boolean active = false;
+
+	static {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		try {
+			if ( threadBean instanceof com.sun.management.ThreadMXBean ) {
+				com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadBean;
+				if ( bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled() ) {
+					allocationBean = bean;
+				}
+			}
+		} catch (Throwable t) {
+			logger.debug( "Thread allocated bytes not available: {}", t.getMessage() );
+		}
+	}
+
+	private boolean enabled = false;
+
+	/**
+	 * Called once settings are bound
+	 */
+	public synchronized void activate () {
+
+		if ( enabled && allocationBean == null ) {
+			logger.warn( "Allocation tracking disabled: jvm does not support thread allocated bytes" );
+		}
+
+		active = enabled && allocationBean != null;
+	}
+
+	public static boolean isActive () {
+		return active;
+	}
+
+	public static boolean isSupported () {
+		return allocationBean != null;
+	}
+
+	/**
+	 *
+	 * @return bytes allocated by the current thread, NOT_TRACKED if not
+	 *         supported
+	 */
+	public static long threadAllocatedBytes () {
+
+		if ( allocationBean == null ) {
+			return NOT_TRACKED;
+		}
+
+		return allocationBean.getThreadAllocatedBytes( Thread.currentThread().getId() );
+	}
+
+	/**
+	 *
+	 * Bulk read; entries are -1 for terminated threads
+	 */
+	public static long[] threadAllocatedBytes ( long[] threadIds ) {
+
+		if ( allocationBean == null ) {
+			long[] notTracked = new long[threadIds.length];
+			java.util.Arrays.fill( notTracked, NOT_TRACKED );
+			return notTracked;
+		}
+
+		return allocationBean.getThreadAllocatedBytes( threadIds );
+	}
+
+	/**
+	 *
+	 * @return pass to record; NOT_TRACKED when disabled
+	 */
+	public static long start () {
+
+		if ( !active ) {
+			return NOT_TRACKED;
+		}
+
+		return threadAllocatedBytes();
+	}
+
+	/**
+	 *
+	 * Records bytes allocated on this thread since start
+	 */
+	public static void record ( CsapMeter meter, long startBytes ) {
+
+		if ( startBytes == NOT_TRACKED || meter == null ) {
+			return;
+		}
+
+		meter.record( Math.max( 0, threadAllocatedBytes() - startBytes ) );
+	}
+
+	public static void recordRequest ( long startBytes ) {
+		record( requestMeter, startBytes );
+	}
+
+	public boolean isEnabled () {
+		return enabled;
+	}
+
+	public void setEnabled ( boolean enabled ) {
+		this.enabled = enabled;
+	}
+
+	@Override
+	public String toString () {
+		return "enabled: " + enabled + ", supported: " + isSupported();
+	}
+
+}
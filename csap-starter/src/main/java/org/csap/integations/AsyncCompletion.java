@@ -0,0 +1,129 @@
+package org.csap.integations;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.javasimon.Split;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.async.AsyncRequestTimeoutException;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.context.request.async.CallableProcessingInterceptorAdapter;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.DeferredResultProcessingInterceptorAdapter;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+
+/**
+ *
+ * DeferredResult and WebAsyncTask returned by monitored methods: both hold a
+ * single completion callback that belongs to the application, so splits are
+ * recorded by spring mvc async interceptors instead, including timeouts and
+ * errors.
+ *
+ * Registered by CsapPerformance.Route_Collection. When not registered, or
+ * MAX_PENDING results are not yet completed (eg. results never returned to
+ * spring mvc), the hand off time is recorded.
+ *
+ * @author pnightin
+ *
+ */
+public class AsyncCompletion {
+
+	final static Logger logger = LoggerFactory.getLogger( AsyncCompletion.class );
+
+	public final static int MAX_PENDING = 10000;
+
+	private static volatile boolean isRegistered = false;
+
+	// DeferredResult, or WebAsyncTask callable: identity keys
+	private final static Map<Object, Pending> pending = new ConcurrentHashMap<>();
+
+	private static class Pending {
+
+		final MonitorHandle handle;
+		final Split split;
+		volatile Throwable failure = null;
+
+		Pending( MonitorHandle handle, Split split ) {
+			this.handle = handle;
+			this.split = split;
+		}
+	}
+
+	public static void register ( AsyncSupportConfigurer configurer ) {
+		configurer.registerDeferredResultInterceptors( new DeferredResultRecorder() );
+		configurer.registerCallableInterceptors( new CallableRecorder() );
+		isRegistered = true;
+		logger.debug( "Recording DeferredResult and WebAsyncTask completion" );
+	}
+
+	/**
+	 *
+	 * @return false if the split will not be recorded on completion
+	 */
+	static boolean add ( Object result, MonitorHandle handle, Split split ) {
+
+		if ( !isRegistered || pending.size() >= MAX_PENDING ) {
+			return false;
+		}
+
+		pending.put( result, new Pending( handle, split ) );
+		return true;
+	}
+
+	public static int getPendingCount () {
+		return pending.size();
+	}
+
+	private static void complete ( Object result, Throwable failure ) {
+
+		Pending completed = pending.remove( result );
+		if ( completed != null ) {
+			completed.handle.record( completed.split, failure != null ? failure : completed.failure );
+		}
+	}
+
+	/**
+	 * timeouts are set as an AsyncRequestTimeoutException result before
+	 * completion
+	 */
+	static class DeferredResultRecorder extends DeferredResultProcessingInterceptorAdapter {
+
+		@Override
+		public <T> void afterCompletion ( NativeWebRequest request, DeferredResult<T> deferredResult ) {
+			Object result = deferredResult.getResult();
+			complete( deferredResult, result instanceof Throwable ? (Throwable) result : null );
+		}
+	}
+
+	static class CallableRecorder extends CallableProcessingInterceptorAdapter {
+
+		@Override
+		public <T> void postProcess ( NativeWebRequest request, Callable<T> task, Object concurrentResult ) {
+			if ( concurrentResult instanceof Throwable ) {
+				failed( task, (Throwable) concurrentResult );
+			}
+		}
+
+		@Override
+		public <T> Object handleTimeout ( NativeWebRequest request, Callable<T> task ) {
+			failed( task, new AsyncRequestTimeoutException() );
+			return CallableProcessingInterceptor.RESULT_NONE;
+		}
+
+		@Override
+		public <T> void afterCompletion ( NativeWebRequest request, Callable<T> task ) {
+			complete( task, null );
+		}
+
+		private void failed ( Callable<?> task, Throwable failure ) {
+			Pending failedTask = pending.get( task );
+			if ( failedTask != null ) {
+				failedTask.failure = failure;
+			}
+		}
+	}
+
+}
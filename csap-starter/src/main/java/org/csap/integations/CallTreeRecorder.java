@@ -0,0 +1,470 @@
+package org.csap.integations;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+
+import org.javasimon.javaee.SimonServletFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ *
+ * csap.performance.call-tree: nests monitored calls (@CsapMonitor, aspects
+ * using CsapPerformance.executeSimon, CsapRestTemplateFactory templates)
+ * under the http request that made them.
+ *
+ * Each request thread reuses its own node arrays; when the request completes
+ * under thresholdMs nothing is built. Slower requests are copied into a tree
+ * and kept in a ring of the latest ringSize trees. Threads outside of a
+ * request (schedulers, jms, executors) only read an empty thread local.
+ *
+ * @author pnightin
+ *
+ */
+public class CallTreeRecorder {
+
+	final static Logger logger = LoggerFactory.getLogger( CallTreeRecorder.class );
+
+	public final static int NOT_RECORDING = -1;
+
+	private static volatile CallTreeRecorder activeRecorder = null;
+
+	private boolean enabled = true;
+	private long thresholdMs = 500;
+	private int ringSize = 50;
+	private int maxNodes = 200;
+
+	private CallTree[] ring = null;
+	private int ringNext = 0;
+
+	// request threads only: arrays are allocated in begin
+	private final ThreadLocal<Recording> recordings = ThreadLocal.withInitial( () -> new Recording( maxNodes ) );
+
+	// set from begin to end
+	private final static ThreadLocal<Recording> activeRecording = new ThreadLocal<>();
+
+	private ObjectMapper jacksonMapper = new ObjectMapper();
+
+	/**
+	 * Called once settings are bound
+	 */
+	public synchronized void activate () {
+		if ( enabled ) {
+			ring = new CallTree[Math.max( 1, ringSize )];
+			activeRecorder = this;
+		} else {
+			activeRecorder = null;
+		}
+	}
+
+	public static CallTreeRecorder getActive () {
+		return activeRecorder;
+	}
+
+	/**
+	 *
+	 * @return node to pass to exit, NOT_RECORDING if the thread is not in a
+	 *         monitored request
+	 */
+	public static int enter ( String name ) {
+
+		Recording recording = activeRecording.get();
+		if ( recording == null ) {
+			return NOT_RECORDING;
+		}
+
+		return recording.enter( name );
+	}
+
+	public static void exit ( int node ) {
+
+		if ( node == NOT_RECORDING ) {
+			return;
+		}
+
+		Recording recording = activeRecording.get();
+		if ( recording != null ) {
+			recording.exit( node );
+		}
+	}
+
+	public static boolean isRecording () {
+		return activeRecording.get() != null;
+	}
+
+	private void begin ( String requestName ) {
+		Recording recording = recordings.get();
+		recording.reset();
+		recording.isActive = true;
+		recording.enter( requestName );
+		activeRecording.set( recording );
+	}
+
+	private void end () {
+
+		Recording recording = recordings.get();
+		activeRecording.remove();
+		recording.exit( 0 );
+		recording.isActive = false;
+
+		if ( recording.durations[0] >= TimeUnit.MILLISECONDS.toNanos( thresholdMs ) ) {
+			retain( new CallTree( recording ) );
+		}
+
+		// names are not held between requests
+		recording.reset();
+	}
+
+	private synchronized void retain ( CallTree tree ) {
+		ring[ringNext] = tree;
+		ringNext = (ringNext + 1) % ring.length;
+	}
+
+	/**
+	 *
+	 * @return slowest retained trees, slowest first
+	 */
+	public List<CallTree> getSlowest ( int top ) {
+
+		List<CallTree> retained = new ArrayList<>();
+		synchronized (this) {
+			if ( ring == null ) {
+				return retained;
+			}
+			for ( CallTree tree : ring ) {
+				if ( tree != null ) {
+					retained.add( tree );
+				}
+			}
+		}
+
+		return retained.stream()
+			.sorted( Comparator.comparingLong( CallTree::getDurationNanos ).reversed() )
+			.limit( Math.max( 1, top ) )
+			.collect( Collectors.toList() );
+	}
+
+	public ObjectNode slowestAsJson ( int top ) {
+
+		ObjectNode result = jacksonMapper.createObjectNode();
+		result.put( "thresholdMs", thresholdMs );
+		result.put( "ringSize", ringSize );
+		ArrayNode trees = result.putArray( "trees" );
+		getSlowest( top ).forEach( tree -> trees.add( tree.toJson( jacksonMapper ) ) );
+
+		return result;
+	}
+
+	/**
+	 *
+	 * Per thread, reused: flat arrays indexed by node
+	 *
+	 */
+	private static class Recording {
+
+		final String[] names;
+		final long[] starts;
+		final long[] durations;
+		final int[] parents;
+
+		boolean isActive = false;
+		int size = 0;
+		int current = NOT_RECORDING;
+		int dropped = 0;
+
+		Recording( int maxNodes ) {
+			names = new String[maxNodes];
+			starts = new long[maxNodes];
+			durations = new long[maxNodes];
+			parents = new int[maxNodes];
+		}
+
+		void reset () {
+			for ( int i = 0; i < size; i++ ) {
+				names[i] = null;
+			}
+			size = 0;
+			current = NOT_RECORDING;
+			dropped = 0;
+		}
+
+		int enter ( String name ) {
+
+			if ( !isActive ) {
+				return NOT_RECORDING;
+			}
+
+			if ( size == names.length ) {
+				dropped++;
+				return NOT_RECORDING;
+			}
+
+			int node = size++;
+			names[node] = name;
+			starts[node] = System.nanoTime();
+			durations[node] = -1;
+			parents[node] = current;
+			current = node;
+
+			return node;
+		}
+
+		void exit ( int node ) {
+
+			if ( !isActive || node >= size ) {
+				return;
+			}
+
+			durations[node] = System.nanoTime() - starts[node];
+			current = parents[node];
+		}
+	}
+
+	/**
+	 *
+	 * Retained request: nodes in call order, parent index of the root is -1
+	 *
+	 */
+	public static class CallTree {
+
+		private final long timestamp = System.currentTimeMillis();
+		private final String thread = Thread.currentThread().getName();
+
+		private final String[] names;
+		private final long[] offsets;
+		private final long[] durations;
+		private final int[] parents;
+		private final int dropped;
+
+		private CallTree( Recording recording ) {
+
+			int size = recording.size;
+			names = new String[size];
+			offsets = new long[size];
+			durations = new long[size];
+			parents = new int[size];
+			dropped = recording.dropped;
+
+			long requestStart = recording.starts[0];
+			for ( int i = 0; i < size; i++ ) {
+				names[i] = recording.names[i];
+				offsets[i] = recording.starts[i] - requestStart;
+				durations[i] = recording.durations[i];
+				parents[i] = recording.parents[i];
+			}
+		}
+
+		public long getDurationNanos () {
+			return durations[0];
+		}
+
+		public String getName () {
+			return names[0];
+		}
+
+		public ObjectNode toJson ( ObjectMapper jacksonMapper ) {
+
+			ObjectNode tree = jacksonMapper.createObjectNode();
+			tree.put( "name", names[0] );
+			tree.put( "timestamp", timestamp );
+			tree.put( "thread", thread );
+			tree.put( "durationMs", toMs( durations[0] ) );
+			tree.put( "droppedNodes", dropped );
+
+			ArrayNode nodes = tree.putArray( "nodes" );
+			int[] depths = new int[names.length];
+			for ( int i = 0; i < names.length; i++ ) {
+				depths[i] = parents[i] < 0 ? 0 : depths[parents[i]] + 1;
+
+				ObjectNode node = nodes.addObject();
+				node.put( "name", names[i] );
+				node.put( "depth", depths[i] );
+				node.put( "parent", parents[i] );
+				node.put( "offsetMs", toMs( offsets[i] ) );
+				// still running when the request completed, eg. async
+				node.put( "durationMs", durations[i] < 0 ? -1 : toMs( durations[i] ) );
+			}
+
+			return tree;
+		}
+
+		private static double toMs ( long nanos ) {
+			return Math.round( nanos / 1000.0 ) / 1000.0;
+		}
+	}
+
+	/**
+	 *
+	 * Wraps SimonServletFilter: same url timers, and the request call tree.
+	 * Request boundary for csap.overhead.request and csap.http.allocated
+	 *
+	 */
+	public static class CallTreeFilter implements Filter {
+
+		private final SimonServletFilter simonFilter = new SimonServletFilter();
+
+		@Override
+		public void init ( FilterConfig filterConfig )
+				throws ServletException {
+			simonFilter.init( filterConfig );
+		}
+
+		@Override
+		public void doFilter ( ServletRequest request, ServletResponse response, FilterChain filterChain )
+				throws IOException, ServletException {
+
+			long requestStart = System.nanoTime();
+			long allocatedStart = AllocationTracker.start();
+			InstrumentationOverhead.requestStart();
+			InstrumentationOverhead.mark();
+			FilterChain chain = InstrumentationOverhead.excluding( filterChain );
+			try {
+				CallTreeRecorder recorder = activeRecorder;
+				if ( recorder == null || !(request instanceof HttpServletRequest) || isRecording() ) {
+					// not enabled, or forward/include within the request
+					simonFilter.doFilter( request, response, chain );
+					return;
+				}
+
+				HttpServletRequest httpRequest = (HttpServletRequest) request;
+				recorder.begin( httpRequest.getMethod() + " " + httpRequest.getRequestURI() );
+				try {
+					simonFilter.doFilter( request, response, chain );
+				} finally {
+					recorder.end();
+				}
+			} finally {
+				InstrumentationOverhead.accumulate();
+				InstrumentationOverhead.requestEnd( System.nanoTime() - requestStart );
+				AllocationTracker.recordRequest( allocatedStart );
+			}
+		}
+
+		@Override
+		public void destroy () {
+			simonFilter.destroy();
+		}
+	}
+
+	/**
+	 *
+	 * Adds rest calls to the tree: name is rest.METHOD host/path. Wraps the
+	 * request factory rather than adding an interceptor, which would buffer
+	 * request bodies; requests outside of a recorded request are not wrapped.
+	 */
+	public static ClientHttpRequestFactory restRequestFactory ( ClientHttpRequestFactory requestFactory ) {
+
+		return ( uri, httpMethod ) -> {
+
+			ClientHttpRequest request = requestFactory.createRequest( uri, httpMethod );
+			if ( !isRecording() ) {
+				return request;
+			}
+
+			return new RecordedRestRequest( request );
+		};
+	}
+
+	private static class RecordedRestRequest implements ClientHttpRequest {
+
+		private final ClientHttpRequest request;
+
+		RecordedRestRequest( ClientHttpRequest request ) {
+			this.request = request;
+		}
+
+		@Override
+		public ClientHttpResponse execute ()
+				throws IOException {
+
+			int node = enter( "rest." + request.getMethod() + " " + request.getURI().getHost() + request.getURI().getPath() );
+			try {
+				return request.execute();
+			} finally {
+				exit( node );
+			}
+		}
+
+		@Override
+		public OutputStream getBody ()
+				throws IOException {
+			return request.getBody();
+		}
+
+		@Override
+		public HttpMethod getMethod () {
+			return request.getMethod();
+		}
+
+		@Override
+		public URI getURI () {
+			return request.getURI();
+		}
+
+		@Override
+		public HttpHeaders getHeaders () {
+			return request.getHeaders();
+		}
+	}
+
+	public boolean isEnabled () {
+		return enabled;
+	}
+
+	public void setEnabled ( boolean enabled ) {
+		this.enabled = enabled;
+	}
+
+	public long getThresholdMs () {
+		return thresholdMs;
+	}
+
+	public void setThresholdMs ( long thresholdMs ) {
+		this.thresholdMs = thresholdMs;
+	}
+
+	public int getRingSize () {
+		return ringSize;
+	}
+
+	public void setRingSize ( int ringSize ) {
+		this.ringSize = ringSize;
+	}
+
+	public int getMaxNodes () {
+		return maxNodes;
+	}
+
+	public void setMaxNodes ( int maxNodes ) {
+		this.maxNodes = Math.max( 1, maxNodes );
+	}
+
+	@Override
+	public String toString () {
+		return "enabled: " + enabled + ", threshold: " + thresholdMs + "ms, ring: " + ringSize + ", max nodes: " + maxNodes;
+	}
+
+}
@@ -1,5 +1,6 @@
 package org.csap.integations;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.time.LocalDateTime;
@@ -13,11 +14,13 @@ import java.util.Map;
 import javax.naming.NamingEnumeration;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.csap.alerts.AlertsController;
 import org.csap.alerts.MonitorMbean;
 import org.csap.docs.CsapDoc;
 import org.csap.helpers.CsapSimpleCache;
+import org.csap.helpers.HotThreadSampler;
 import org.csap.security.CustomUserDetails;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,12 +30,14 @@ import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.cache.Cache;
 import org.springframework.cache.CacheManager;
 import org.springframework.core.env.Environment;
+import org.springframework.http.MediaType;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -268,6 +273,130 @@ public class CsapInformation {
 		return resultNode;
 	}
 
+	private HotThreadSampler hotThreadSampler = new HotThreadSampler();
+
+	@CsapDoc(notes = { "Threads using the most cpu over the window, with stacks; all threads grouped by pool name",
+			"windowMs: sample window, max 10 seconds. top: threads reported with stacks" }, baseUrl = "/csap")
+	@GetMapping(value = "/hotThreads")
+	public ObjectNode hotThreads (
+									@RequestParam(value = "windowMs", required = false, defaultValue = "1000") long windowMs,
+									@RequestParam(value = "top", required = false, defaultValue = "10") int top,
+									@RequestParam(value = "stackDepth", required = false, defaultValue = "20") int stackDepth ) {
+
+		return hotThreadSampler.sample( windowMs, top, stackDepth );
+	}
+
+	private ObjectNode profilerDisabled () {
+		ObjectNode results = jacksonMapper.createObjectNode();
+		results.put( "error", "csap.performance.profiler.enabled is false" );
+		return results;
+	}
+
+	@CsapDoc(notes = "Sampling profiler settings, running and last completed profiles", baseUrl = "/csap")
+	@GetMapping(value = "/profiler")
+	public ObjectNode profilerStatus () {
+
+		SamplingProfiler profiler = SamplingProfiler.getActive();
+		if ( profiler == null ) {
+			return profilerDisabled();
+		}
+
+		return profiler.statusAsJson();
+	}
+
+	@CsapDoc(notes = { "Start the sampling profiler; it stops after seconds, or when stop is called",
+			"mode: wall (all threads) or cpu (runnable threads). intervalMs: time between samples" }, baseUrl = "/csap")
+	@GetMapping(value = "/profiler/start")
+	public ObjectNode profilerStart (
+										@RequestParam(value = "seconds", required = false, defaultValue = "30") int seconds,
+										@RequestParam(value = "mode", required = false) SamplingProfiler.Mode mode,
+										@RequestParam(value = "intervalMs", required = false, defaultValue = "0") int intervalMs ) {
+
+		SamplingProfiler profiler = SamplingProfiler.getActive();
+		if ( profiler == null ) {
+			return profilerDisabled();
+		}
+
+		SamplingProfiler.Profile profile = profiler.start(
+			seconds,
+			mode == null ? profiler.getMode() : mode,
+			intervalMs <= 0 ? profiler.getIntervalMs() : intervalMs,
+			"manual" );
+
+		if ( profile == null ) {
+			ObjectNode results = profiler.statusAsJson();
+			results.put( "error", "A profile is already running" );
+			return results;
+		}
+
+		return profile.summary();
+	}
+
+	@CsapDoc(notes = "Stop the running profile", baseUrl = "/csap")
+	@GetMapping(value = "/profiler/stop")
+	public ObjectNode profilerStop () {
+
+		SamplingProfiler profiler = SamplingProfiler.getActive();
+		if ( profiler == null ) {
+			return profilerDisabled();
+		}
+
+		SamplingProfiler.Profile profile = profiler.stop();
+		if ( profile == null ) {
+			ObjectNode results = profiler.statusAsJson();
+			results.put( "error", "No profile is running" );
+			return results;
+		}
+
+		return profile.summary();
+	}
+
+	private SamplingProfiler.Profile selectProfile ( String profile ) {
+
+		SamplingProfiler profiler = SamplingProfiler.getActive();
+		if ( profiler == null ) {
+			return null;
+		}
+
+		return profile.equals( "current" ) ? profiler.getCurrent() : profiler.getLast();
+	}
+
+	@CsapDoc(notes = { "Collapsed stacks, one line per stack: input for flamegraph.pl and speedscope",
+			"profile: last (default) or current" }, baseUrl = "/csap")
+	@GetMapping(value = "/profiler/folded", produces = MediaType.TEXT_PLAIN_VALUE)
+	public void profilerFolded (
+									@RequestParam(value = "profile", required = false, defaultValue = "last") String profile,
+									HttpServletResponse response )
+			throws IOException {
+
+		response.setContentType( MediaType.TEXT_PLAIN_VALUE );
+		SamplingProfiler.Profile selected = selectProfile( profile );
+		if ( selected == null ) {
+			response.getWriter().println( "No profile available: " + profile );
+			return;
+		}
+
+		selected.writeFolded( response.getWriter() );
+	}
+
+	@CsapDoc(notes = { "Flame graph json: name, value, children - d3-flame-graph format",
+			"profile: last (default) or current" }, baseUrl = "/csap")
+	@GetMapping(value = "/profiler/flamegraph")
+	public ObjectNode profilerFlameGraph (
+											@RequestParam(value = "profile", required = false, defaultValue = "last") String profile ) {
+
+		SamplingProfiler.Profile selected = selectProfile( profile );
+		if ( selected == null ) {
+			ObjectNode results = jacksonMapper.createObjectNode();
+			results.put( "error", "No profile available: " + profile );
+			return results;
+		}
+
+		ObjectNode results = selected.summary();
+		results.set( "flameGraph", selected.toFlameGraph() );
+		return results;
+	}
+
 	@Autowired
 	private Environment springEnv;
 
@@ -279,6 +408,9 @@ public class CsapInformation {
 		tools.put( "CSAP Identity", getCsapBaseContext() + "/identity" );
 		tools.put( "CSAP Information", getCsapBaseContext() + "/csapInfo" );
 		tools.put( "CSAP Cache", getCsapBaseContext() + "/cache/show" );
+		tools.put( "CSAP OpenMetrics", getCsapBaseContext() + "/metrics/openmetrics" );
+		tools.put( "CSAP Hot Threads", getCsapBaseContext() + "/hotThreads" );
+		tools.put( "CSAP Profiler", getCsapBaseContext() + "/profiler" );
 		tools.put( "Simon", getSimonUrl() );
 		// tools.put( "Cache - clear", "/cache/clear" );
 
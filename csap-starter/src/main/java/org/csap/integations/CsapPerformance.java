@@ -3,6 +3,9 @@ package org.csap.integations;
 import java.util.Arrays;
 import java.util.Optional;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
 import org.apache.catalina.core.ApplicationContext;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
@@ -12,6 +15,7 @@ import org.csap.CsapMonitor;
 import org.csap.alerts.AlertInstance;
 import org.csap.alerts.AlertProcessor;
 import org.csap.alerts.AlertSettings;
+import org.csap.alerts.MetricCardinality;
 import org.csap.alerts.MonitorMbean;
 import org.javasimon.SimonManager;
 import org.javasimon.Split;
@@ -32,6 +36,9 @@ import org.springframework.core.Ordered;
 import org.springframework.core.annotation.Order;
 import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
 
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
@@ -49,6 +56,9 @@ public class CsapPerformance {
 	@Autowired
 	AlertSettings alertSettings;
 
+	@Autowired
+	AlertProcessor alertProcessor;
+
 	/**
 	 * 
 	 * =================== Performance integration
@@ -67,6 +77,45 @@ public class CsapPerformance {
 
 	private String[] monitorUrls = { "/", "/security" };
 
+	private MonitorSampling sampling = new MonitorSampling();
+
+	// slow requests: monitored calls nested under the request
+	private CallTreeRecorder callTree = new CallTreeRecorder();
+
+	// http timers by matched route
+	private RouteMetrics routes = new RouteMetrics();
+
+	// folded stack sampling, started on demand or by latency alerts
+	private SamplingProfiler profiler = new SamplingProfiler();
+
+	// bytes allocated per request, route and monitored method
+	private AllocationTracker allocations = new AllocationTracker();
+
+	// time and allocations of csap instrumentation
+	private InstrumentationOverhead overhead = new InstrumentationOverhead();
+
+	// names created from request data, eg. userids
+	private int maxNamesPerPrefix = 100;
+
+	@PostConstruct
+	public void initializeMonitors () {
+		logger.debug( "Sampling: {}", sampling );
+		MonitorHandle.setSampling( sampling );
+		MetricCardinality.setDefaultMaxNames( maxNamesPerPrefix );
+		callTree.activate();
+		routes.activate( alertProcessor );
+		overhead.activate();
+		allocations.activate();
+		profiler.activate();
+	}
+
+	@PreDestroy
+	public void cleanup () {
+		sampling.shutdown();
+		overhead.shutdown();
+		profiler.shutdown();
+	}
+
 	public String toString () {
 		StringBuilder infoBuilder = new StringBuilder();
 		infoBuilder.append( "\n === csap.performance:" );
@@ -77,6 +126,14 @@ public class CsapPerformance {
 		for ( String url : getMonitorUrls() )
 			infoBuilder.append( " " + url );
 
+		infoBuilder.append( "\n\t Monitor sampling: " + sampling );
+		infoBuilder.append( "\n\t Max names per prefix: " + maxNamesPerPrefix );
+		infoBuilder.append( "\n\t Slow request call trees: " + callTree );
+		infoBuilder.append( "\n\t Route timers: " + routes );
+		infoBuilder.append( "\n\t Instrumentation overhead: " + overhead );
+		infoBuilder.append( "\n\t Allocation tracking: " + allocations );
+		infoBuilder.append( "\n\t Sampling profiler: " + profiler );
+		infoBuilder.append( "\n\t Thread pools: " + ExecutorMetrics.PREFIX + "*" );
 		infoBuilder.append( "\n\t CsapPerformance MBean:  " + MonitorMbean.PERFORMANCE_MBEAN );
 		infoBuilder.append( "\n\t Alert Settings: " + alertSettings );
 		infoBuilder.append( "\n" );
@@ -84,11 +141,19 @@ public class CsapPerformance {
 		return infoBuilder.toString();
 	}
 
+	/**
+	 * static: post processor is created before other beans
+	 */
+	@Bean
+	public static ExecutorMetrics csapExecutorMetrics () {
+		return new ExecutorMetrics();
+	}
+
 	@Bean
 	public FilterRegistrationBean performanceTimerRegistration () {
 		logger.debug( "Collecting metrics for: {}", Arrays.asList( monitorUrls ).toString() );
 		FilterRegistrationBean performanceTimerRegistration = new FilterRegistrationBean(
-			new SimonServletFilter() );
+			new CallTreeRecorder.CallTreeFilter() );
 		performanceTimerRegistration.addUrlPatterns( monitorUrls );
 
 		performanceTimerRegistration.addInitParameter( SimonServletFilter.INIT_PARAM_PREFIX, "http" );
@@ -102,20 +167,109 @@ public class CsapPerformance {
 	public static Object executeSimon ( ProceedingJoinPoint pjp, String desc )
 			throws Throwable {
 
-		String timerId = desc + pjp.getTarget().getClass().getSimpleName()
-				+ "." + pjp.getSignature().getName() + "()";
-
-		Split split = SimonManager.getStopwatch( timerId ).start();
-		Object obj = pjp.proceed();
-		split.stop();
-		return obj;
+		return timeInvocation( pjp, MonitorHandle.lookup( pjp, desc ) );
 
 	}
 
 	public static Object incrementCsapMonitor ( ProceedingJoinPoint pjp )
 			throws Throwable {
 
-		Class c = pjp.getTarget().getClass();
+		return timeInvocation( pjp, MonitorHandle.lookup( pjp, MonitorHandle.CSAP_MONITOR ) );
+
+	}
+
+	/**
+	 * 
+	 * Successful calls are recorded in the timer, failures in timer.failed
+	 * along with exception counters. timer.active and timer.active.max count
+	 * calls in progress for every invocation. Calls within a monitored request
+	 * are added to its call tree. Asynchronous results are recorded when they
+	 * complete; @Async methods also record queued time in timer.queued. Time
+	 * outside of proceed is added to csap.overhead, bytes allocated by timed
+	 * calls to timer.allocated
+	 * 
+	 */
+	private static Object timeInvocation ( ProceedingJoinPoint pjp, MonitorHandle handle )
+			throws Throwable {
+
+		InstrumentationOverhead.mark();
+		int node = CallTreeRecorder.enter( handle.getName() );
+		handle.enter();
+		try {
+			Object obj;
+			if ( !handle.isSampled() ) {
+				InstrumentationOverhead.accumulate();
+				try {
+					obj = pjp.proceed();
+				} catch (Throwable t) {
+					recordFailure( t, () -> {
+						InstrumentationOverhead.mark();
+						handle.recordFailure( t );
+					} );
+					throw t;
+				}
+				InstrumentationOverhead.mark();
+				return obj;
+			}
+
+			handle.recordQueued();
+
+			Split split = Split.start();
+			long allocatedStart = AllocationTracker.start();
+			InstrumentationOverhead.accumulate();
+			try {
+				obj = pjp.proceed();
+			} catch (Throwable t) {
+				recordFailure( t, () -> {
+					InstrumentationOverhead.mark();
+					handle.recordAllocated( allocatedStart );
+					handle.record( split, t );
+				} );
+				throw t;
+			}
+			InstrumentationOverhead.mark();
+			handle.recordAllocated( allocatedStart );
+
+			// futures, DeferredResult: recorded on completion
+			if ( !handle.recordOnCompletion( split, obj ) ) {
+				handle.record( split, null );
+			}
+			return obj;
+		} finally {
+			handle.exit();
+			CallTreeRecorder.exit( node );
+			InstrumentationOverhead.accumulate();
+		}
+
+	}
+
+	/**
+	 * 
+	 * The invocation failure is always rethrown by the caller: instrumentation
+	 * errors are added to it as suppressed rather than replacing it
+	 */
+	private static void recordFailure ( Throwable failure, Runnable recording ) {
+		try {
+			recording.run();
+		} catch (Throwable instrumentationFailure) {
+			if ( instrumentationFailure != failure ) {
+				failure.addSuppressed( instrumentationFailure );
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * Timer name used by @CsapMonitor collection; also used to register
+	 * @ServiceAgreement limits
+	 * 
+	 */
+	public static String monitorTimerName ( Class<?> c, String methodName ) {
+		return monitorPrefix( c ) + "." + methodName + "()";
+	}
+
+	public static String monitorPrefix ( Class<?> c ) {
+
 		String prefix = c.getSimpleName();
 		if ( c.isAnnotationPresent( CsapMonitor.class ) ) {
 			CsapMonitor monitor = (CsapMonitor) c.getAnnotation( CsapMonitor.class );
@@ -128,13 +282,7 @@ public class CsapPerformance {
 			}
 
 		}
-		String timerId = prefix + "." + pjp.getSignature().getName() + "()";
-
-		Split split = SimonManager.getStopwatch( timerId ).start();
-		Object obj = pjp.proceed();
-		split.stop();
-		return obj;
-
+		return prefix;
 	}
 
 	// ================= JAVA SIMON registration
@@ -181,6 +329,20 @@ public class CsapPerformance {
 		}
 	}
 
+	@Configuration
+	public static class Route_Collection extends WebMvcConfigurerAdapter {
+
+		@Override
+		public void addInterceptors ( InterceptorRegistry registry ) {
+			registry.addInterceptor( new RouteMetrics.RouteInterceptor() );
+		}
+
+		@Override
+		public void configureAsyncSupport ( AsyncSupportConfigurer configurer ) {
+			AsyncCompletion.register( configurer );
+		}
+	}
+
 	public String[] getMonitorUrls () {
 		return monitorUrls;
 	}
@@ -189,6 +351,62 @@ public class CsapPerformance {
 		this.monitorUrls = monitorUrls;
 	}
 
+	public int getMaxNamesPerPrefix () {
+		return maxNamesPerPrefix;
+	}
+
+	public void setMaxNamesPerPrefix ( int maxNamesPerPrefix ) {
+		this.maxNamesPerPrefix = maxNamesPerPrefix;
+	}
+
+	public AllocationTracker getAllocations () {
+		return allocations;
+	}
+
+	public void setAllocations ( AllocationTracker allocations ) {
+		this.allocations = allocations;
+	}
+
+	public SamplingProfiler getProfiler () {
+		return profiler;
+	}
+
+	public void setProfiler ( SamplingProfiler profiler ) {
+		this.profiler = profiler;
+	}
+
+	public InstrumentationOverhead getOverhead () {
+		return overhead;
+	}
+
+	public void setOverhead ( InstrumentationOverhead overhead ) {
+		this.overhead = overhead;
+	}
+
+	public RouteMetrics getRoutes () {
+		return routes;
+	}
+
+	public void setRoutes ( RouteMetrics routes ) {
+		this.routes = routes;
+	}
+
+	public CallTreeRecorder getCallTree () {
+		return callTree;
+	}
+
+	public void setCallTree ( CallTreeRecorder callTree ) {
+		this.callTree = callTree;
+	}
+
+	public MonitorSampling getSampling () {
+		return sampling;
+	}
+
+	public void setSampling ( MonitorSampling sampling ) {
+		this.sampling = sampling;
+	}
+
 	/**
 	 *
 	 * Enable custom http access rules to be implemented. All instance of
@@ -0,0 +1,224 @@
+package org.csap.integations;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.csap.alerts.CsapGlobalId;
+import org.csap.alerts.CsapMeter;
+import org.csap.alerts.OpenMetricsWriter;
+import org.javasimon.Counter;
+import org.javasimon.SimonManager;
+import org.javasimon.Split;
+import org.javasimon.Stopwatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.DirectFieldAccessor;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.core.task.TaskDecorator;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+
+/**
+ *
+ * Instruments ThreadPoolTaskExecutor, ThreadPoolTaskScheduler and
+ * ThreadPoolExecutor beans, named csap.executor.beanName:
+ *
+ * .wait and .run stopwatches: queued and run time of each task; executors
+ * only, tasks are decorated on submit
+ *
+ * .rejected counter: rejected executions
+ *
+ * .active, .queued and .threads: set every second; .completed: increased by
+ * completed tasks, including scheduled executions
+ *
+ * Stopwatches and counters can be used in alert limits, eg. maxTime on .wait
+ *
+ * @author pnightin
+ *
+ */
+public class ExecutorMetrics implements BeanPostProcessor {
+
+	final static Logger logger = LoggerFactory.getLogger( ExecutorMetrics.class );
+
+	public final static String PREFIX = CsapGlobalId.EXECUTOR.id + ".";
+	public final static long POLL_SECONDS = 1;
+
+	private static Map<String, MonitoredPool> pools = new ConcurrentHashMap<>();
+	private static ScheduledExecutorService pollExecutor = null;
+
+	@Override
+	public Object postProcessBeforeInitialization ( Object bean, String beanName )
+			throws BeansException {
+
+		// decorator is applied when the executor is initialized
+		if ( bean instanceof ThreadPoolTaskExecutor ) {
+			DirectFieldAccessor executorFields = new DirectFieldAccessor( bean );
+			TaskDecorator existing = (TaskDecorator) executorFields.getPropertyValue( "taskDecorator" );
+			((ThreadPoolTaskExecutor) bean).setTaskDecorator( taskDecorator( beanName, existing ) );
+		}
+
+		return bean;
+	}
+
+	@Override
+	public Object postProcessAfterInitialization ( Object bean, String beanName )
+			throws BeansException {
+
+		try {
+			if ( bean instanceof ThreadPoolTaskExecutor ) {
+				monitor( beanName, ((ThreadPoolTaskExecutor) bean).getThreadPoolExecutor() );
+			} else if ( bean instanceof ThreadPoolTaskScheduler ) {
+				monitor( beanName, ((ThreadPoolTaskScheduler) bean).getScheduledThreadPoolExecutor() );
+			} else if ( bean instanceof ThreadPoolExecutor ) {
+				monitor( beanName, (ThreadPoolExecutor) bean );
+			} else if ( bean instanceof ScheduledExecutorService ) {
+				logger.debug( "Not monitored: {} is not a ThreadPoolExecutor", beanName );
+			}
+		} catch (IllegalStateException e) {
+			logger.debug( "Not monitored: {} is not initialized", beanName );
+		}
+
+		return bean;
+	}
+
+	private final static long NO_WAIT = -1;
+
+	// queued time of the task running on the current thread
+	private final static ThreadLocal<long[]> taskWait = ThreadLocal.withInitial( () -> new long[] { NO_WAIT } );
+
+	/**
+	 *
+	 * @return nanos the current task was queued, -1 if not in a decorated task
+	 *         or already taken: only the first caller in the task gets it
+	 */
+	public static long takeTaskWait () {
+		long[] currentWait = taskWait.get();
+		long wait = currentWait[0];
+		currentWait[0] = NO_WAIT;
+		return wait;
+	}
+
+	/**
+	 *
+	 * Queued and run time of each task; existing decorator, if any, is applied
+	 * first
+	 */
+	public static TaskDecorator taskDecorator ( String poolName, TaskDecorator existing ) {
+
+		Stopwatch waitTimer = SimonManager.getStopwatch( PREFIX + poolName + ".wait" );
+		Stopwatch runTimer = SimonManager.getStopwatch( PREFIX + poolName + ".run" );
+
+		return runnable -> {
+
+			Runnable task = existing == null ? runnable : existing.decorate( runnable );
+			long queuedNanos = System.nanoTime();
+
+			return () -> {
+				long startNanos = System.nanoTime();
+				waitTimer.addSplit( Split.create( startNanos - queuedNanos ) );
+				long[] currentWait = taskWait.get();
+				currentWait[0] = startNanos - queuedNanos;
+				try {
+					task.run();
+				} finally {
+					currentWait[0] = NO_WAIT;
+					runTimer.addSplit( Split.create( System.nanoTime() - startNanos ) );
+				}
+			};
+		};
+	}
+
+	/**
+	 *
+	 * Gauges and rejections; pools created outside of spring, eg.
+	 * AlertProcessor, are registered directly
+	 */
+	public static void monitor ( String poolName, ThreadPoolExecutor executor ) {
+
+		if ( executor == null ) {
+			return;
+		}
+
+		CsapMeter rejected = CsapMeter.get( PREFIX + poolName + ".rejected" );
+		RejectedExecutionHandler handler = executor.getRejectedExecutionHandler();
+		executor.setRejectedExecutionHandler( ( runnable, pool ) -> {
+			rejected.increment();
+			handler.rejectedExecution( runnable, pool );
+		} );
+
+		pools.put( poolName, new MonitoredPool( poolName, executor ) );
+		startPolling();
+
+		logger.info( "Monitoring thread pool: {}{}", PREFIX, poolName );
+	}
+
+	private static synchronized void startPolling () {
+
+		if ( pollExecutor != null ) {
+			return;
+		}
+
+		BasicThreadFactory pollFactory = new BasicThreadFactory.Builder()
+			.namingPattern( ExecutorMetrics.class.getSimpleName() + "-%d" )
+			.daemon( true )
+			.priority( Thread.NORM_PRIORITY )
+			.build();
+
+		pollExecutor = Executors.newSingleThreadScheduledExecutor( pollFactory );
+		pollExecutor.scheduleAtFixedRate( ExecutorMetrics::pollAll, POLL_SECONDS, POLL_SECONDS, TimeUnit.SECONDS );
+	}
+
+	private static void pollAll () {
+		try {
+			pools.values().removeIf( MonitoredPool::poll );
+		} catch (Exception e) {
+			logger.error( "Failed polling thread pools", e );
+		}
+	}
+
+	private static class MonitoredPool {
+
+		final ThreadPoolExecutor executor;
+
+		final Counter active;
+		final Counter queued;
+		final Counter threads;
+		final Counter completed;
+
+		long lastCompleted = 0;
+
+		MonitoredPool( String poolName, ThreadPoolExecutor executor ) {
+			this.executor = executor;
+			active = OpenMetricsWriter.gauge( PREFIX + poolName + ".active" );
+			queued = OpenMetricsWriter.gauge( PREFIX + poolName + ".queued" );
+			threads = OpenMetricsWriter.gauge( PREFIX + poolName + ".threads" );
+			completed = SimonManager.getCounter( PREFIX + poolName + ".completed" );
+		}
+
+		/**
+		 * @return true if the pool is terminated, and no longer polled
+		 */
+		boolean poll () {
+
+			active.set( executor.getActiveCount() );
+			queued.set( executor.getQueue().size() );
+			threads.set( executor.getPoolSize() );
+
+			long currentCompleted = executor.getCompletedTaskCount();
+			if ( currentCompleted > lastCompleted ) {
+				completed.increase( currentCompleted - lastCompleted );
+			}
+			lastCompleted = currentCompleted;
+
+			return executor.isTerminated();
+		}
+	}
+
+}
@@ -0,0 +1,287 @@
+package org.csap.integations;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.FilterChain;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.csap.alerts.CsapGlobalId;
+import org.csap.alerts.CsapMeter;
+import org.csap.alerts.OpenMetricsWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * csap.performance.overhead: self profiling of csap instrumentation - time and
+ * allocated bytes (ThreadMXBean) spent in monitoring aspects, the simon and
+ * debug filters, security filter counters, and collection cycles.
+ *
+ * Request path code marks and accumulates into a per thread total, excluding
+ * the wrapped call; totals are recorded per request in csap.overhead.request
+ * (and .bytes), or per call in csap.overhead.background outside of requests.
+ * Collection cycles are recorded in csap.overhead.collection.
+ *
+ * budgetPercent: if request overhead exceeds the percentage of request time,
+ * monitor sampling is degraded by doubling the sample rate, up to
+ * maxDegradeFactor; it is restored once overhead is under half the budget.
+ *
+ * @author pnightin
+ *
+ */
+public class InstrumentationOverhead {
+
+	final static Logger logger = LoggerFactory.getLogger( InstrumentationOverhead.class );
+
+	public final static String PREFIX = CsapGlobalId.OVERHEAD.id + ".";
+
+	private static volatile boolean active = false;
+
+	// nanos, bytes, mark nanos, mark bytes, request depth
+	private final static ThreadLocal<long[]> threadTotals = ThreadLocal.withInitial( () -> new long[5] );
+
+	private final static CsapMeter requestTime = CsapMeter.get( PREFIX + "request" );
+	private final static CsapMeter requestBytes = CsapMeter.get( PREFIX + "request.bytes" );
+	private final static CsapMeter backgroundTime = CsapMeter.get( PREFIX + "background" );
+	private final static CsapMeter backgroundBytes = CsapMeter.get( PREFIX + "background.bytes" );
+
+	public final static String COLLECTION = "collection";
+
+	private final static LongAdder requestNanos = new LongAdder();
+	private final static LongAdder overheadNanos = new LongAdder();
+
+	private boolean enabled = false;
+	private double budgetPercent = 0;
+	private int evaluateSeconds = 10;
+	private int maxDegradeFactor = 64;
+
+	private long lastRequestNanos = 0;
+	private long lastOverheadNanos = 0;
+	private ScheduledExecutorService budgetExecutor = null;
+
+	/**
+	 * Called once settings are bound
+	 */
+	public synchronized void activate () {
+
+		active = enabled;
+		if ( !enabled ) {
+			return;
+		}
+
+		BasicThreadFactory budgetFactory = new BasicThreadFactory.Builder()
+			.namingPattern( InstrumentationOverhead.class.getSimpleName() + "-%d" )
+			.daemon( true )
+			.priority( Thread.NORM_PRIORITY )
+			.build();
+
+		budgetExecutor = Executors.newSingleThreadScheduledExecutor( budgetFactory );
+		budgetExecutor.scheduleAtFixedRate( this::evaluate, evaluateSeconds, evaluateSeconds, TimeUnit.SECONDS );
+
+		logger.info( "Instrumentation overhead: {}, allocations: {}", this, AllocationTracker.isSupported() );
+	}
+
+	public synchronized void shutdown () {
+		active = false;
+		if ( budgetExecutor != null ) {
+			budgetExecutor.shutdownNow();
+		}
+	}
+
+	public static boolean isActive () {
+		return active;
+	}
+
+	private static long allocatedBytes () {
+		return Math.max( 0, AllocationTracker.threadAllocatedBytes() );
+	}
+
+	/**
+	 * start of instrumentation code on this thread
+	 */
+	public static void mark () {
+
+		if ( !active ) {
+			return;
+		}
+
+		long[] totals = threadTotals.get();
+		totals[2] = System.nanoTime();
+		totals[3] = allocatedBytes();
+	}
+
+	/**
+	 * end of instrumentation code started by mark; outside of requests it is
+	 * recorded immediately
+	 */
+	public static void accumulate () {
+
+		if ( !active ) {
+			return;
+		}
+
+		long[] totals = threadTotals.get();
+		totals[0] += System.nanoTime() - totals[2];
+		totals[1] += allocatedBytes() - totals[3];
+
+		if ( totals[4] == 0 ) {
+			backgroundTime.record( totals[0] );
+			backgroundBytes.record( totals[1] );
+			totals[0] = 0;
+			totals[1] = 0;
+		}
+	}
+
+	/**
+	 *
+	 * Filters: time in the rest of the chain is not overhead
+	 */
+	public static FilterChain excluding ( FilterChain chain ) {
+
+		if ( !active ) {
+			return chain;
+		}
+
+		return ( request, response ) -> {
+			accumulate();
+			try {
+				chain.doFilter( request, response );
+			} finally {
+				mark();
+			}
+		};
+	}
+
+	public static void requestStart () {
+		if ( active ) {
+			threadTotals.get()[4]++;
+		}
+	}
+
+	public static void requestEnd ( long requestDurationNanos ) {
+
+		if ( !active ) {
+			return;
+		}
+
+		long[] totals = threadTotals.get();
+		if ( totals[4] > 0 && --totals[4] > 0 ) {
+			// nested dispatch
+			return;
+		}
+
+		requestTime.record( totals[0] );
+		requestBytes.record( totals[1] );
+		requestNanos.add( requestDurationNanos );
+		overheadNanos.add( totals[0] );
+		totals[0] = 0;
+		totals[1] = 0;
+	}
+
+	/**
+	 *
+	 * @return null if not active; pass to endCycle
+	 */
+	public static long[] startCycle () {
+		if ( !active ) {
+			return null;
+		}
+		return new long[] { System.nanoTime(), allocatedBytes() };
+	}
+
+	/**
+	 * records csap.overhead.name and csap.overhead.name.bytes
+	 */
+	public static void endCycle ( long[] cycleStart, String name ) {
+
+		if ( cycleStart == null || !active ) {
+			return;
+		}
+
+		CsapMeter.get( PREFIX + name ).record( System.nanoTime() - cycleStart[0] );
+		CsapMeter.get( PREFIX + name + ".bytes" ).record( allocatedBytes() - cycleStart[1] );
+	}
+
+	private void evaluate () {
+		try {
+
+			long currentRequest = requestNanos.sum();
+			long currentOverhead = overheadNanos.sum();
+			long intervalRequest = currentRequest - lastRequestNanos;
+			long intervalOverhead = currentOverhead - lastOverheadNanos;
+			lastRequestNanos = currentRequest;
+			lastOverheadNanos = currentOverhead;
+
+			if ( intervalRequest <= 0 ) {
+				return;
+			}
+
+			double overheadPercent = 100.0 * intervalOverhead / intervalRequest;
+			OpenMetricsWriter.gauge( PREFIX + "request.basisPoints" ).set( Math.round( overheadPercent * 100 ) );
+
+			if ( budgetPercent <= 0 ) {
+				return;
+			}
+
+			int factor = MonitorHandle.getDegradeFactor();
+			if ( overheadPercent > budgetPercent && factor < maxDegradeFactor ) {
+				factor = Math.min( maxDegradeFactor, factor * 2 );
+				logger.warn( "Instrumentation overhead: {}% exceeds budget: {}%, sampling degraded by: {}",
+					String.format( "%.2f", overheadPercent ), budgetPercent, factor );
+				MonitorHandle.setDegradeFactor( factor );
+			} else if ( overheadPercent < budgetPercent / 2 && factor > 1 ) {
+				factor = factor / 2;
+				logger.info( "Instrumentation overhead: {}% within budget: {}%, sampling degraded by: {}",
+					String.format( "%.2f", overheadPercent ), budgetPercent, factor );
+				MonitorHandle.setDegradeFactor( factor );
+			}
+
+			OpenMetricsWriter.gauge( PREFIX + "degradeFactor" ).set( factor );
+
+		} catch (Exception e) {
+			logger.error( "Failed evaluating overhead budget", e );
+		}
+	}
+
+	public boolean isEnabled () {
+		return enabled;
+	}
+
+	public void setEnabled ( boolean enabled ) {
+		this.enabled = enabled;
+	}
+
+	public double getBudgetPercent () {
+		return budgetPercent;
+	}
+
+	public void setBudgetPercent ( double budgetPercent ) {
+		this.budgetPercent = budgetPercent;
+	}
+
+	public int getEvaluateSeconds () {
+		return evaluateSeconds;
+	}
+
+	public void setEvaluateSeconds ( int evaluateSeconds ) {
+		this.evaluateSeconds = Math.max( 1, evaluateSeconds );
+	}
+
+	public int getMaxDegradeFactor () {
+		return maxDegradeFactor;
+	}
+
+	public void setMaxDegradeFactor ( int maxDegradeFactor ) {
+		this.maxDegradeFactor = Math.max( 1, maxDegradeFactor );
+	}
+
+	@Override
+	public String toString () {
+		return "enabled: " + enabled + ", budget: " + (budgetPercent <= 0 ? "none" : budgetPercent + "%")
+				+ ", evaluate every: " + evaluateSeconds + "s, max degrade: " + maxDegradeFactor;
+	}
+
+}
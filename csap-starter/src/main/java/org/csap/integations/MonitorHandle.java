@@ -0,0 +1,531 @@
+package org.csap.integations;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.csap.alerts.CsapGlobalId;
+import org.csap.alerts.CsapMeter;
+import org.javasimon.Simon;
+import org.javasimon.SimonManager;
+import org.javasimon.Split;
+import org.javasimon.Stopwatch;
+import org.javasimon.callback.CallbackSkeleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.WebAsyncTask;
+
+/**
+ *
+ * Timer resolved once per advised method, target class and description: the
+ * monitoring advice does a single map lookup on the Method, with no string
+ * building.
+ *
+ * Handles hold their stopwatches: they are discarded when the simon manager is
+ * cleared (eg. clearManager on the jmx bean) or a monitored simon is destroyed,
+ * and resolved again on next use.
+ *
+ * @see CsapPerformance#executeSimon(ProceedingJoinPoint, String)
+ * @see CsapPerformance#incrementCsapMonitor(ProceedingJoinPoint)
+ *
+ * @author pnightin
+ *
+ */
+public class MonitorHandle {
+
+	final static Logger logger = LoggerFactory.getLogger( MonitorHandle.class );
+
+	// desc used for @CsapMonitor, which uses the class prefix
+	public final static String CSAP_MONITOR = "@CsapMonitor";
+
+	private static Map<Method, MonitorHandle> handles = new ConcurrentHashMap<>();
+	private static Map<String, MonitorHandle> handlesByName = new ConcurrentHashMap<>();
+
+	private static MonitorSampling sampling = new MonitorSampling();
+
+	static {
+		SimonManager.callback().addCallback( new SimonListener() );
+	}
+
+	public final static String SAMPLE_RATE_ATTRIBUTE = "sampleRate";
+
+	// overhead budget exceeded: all sample rates are multiplied
+	private static volatile int degradeFactor = 1;
+
+	private final Class<?> targetClass;
+	private final String desc;
+	private final String name;
+	private final Stopwatch stopwatch;
+
+	// created on first failure
+	private volatile Stopwatch failedStopwatch = null;
+
+	// calls in progress, published by CsapMeter to name.active and
+	// name.active.max - the max since the previous publish
+	private final AtomicLong active = new AtomicLong();
+	private final AtomicLong maxActive = new AtomicLong();
+
+	private static Map<Class<?>, CsapMeter> exceptionMeters = new ConcurrentHashMap<>();
+	private final static CsapMeter exceptionMeter = CsapMeter.get( CsapGlobalId.EXCEPTION.id );
+
+	// same method: inherited by other targets, or other desc
+	private final MonitorHandle next;
+
+	// exact, includes calls not timed
+	private final LongAdder invocations = new LongAdder();
+
+	// @Async: queued time recorded in name.queued
+	private final boolean isAsyncMethod;
+	private volatile Stopwatch queuedStopwatch = null;
+
+	private final boolean isSampling;
+	private final boolean isAdaptive;
+	private volatile int sampleRate;
+	private long invocationsAtAdjust = 0;
+
+	private MonitorHandle( Class<?> targetClass, Method method, String desc, String name, String prefix, MonitorHandle next ) {
+		this.targetClass = targetClass;
+		this.desc = desc;
+		this.name = name;
+		this.stopwatch = SimonManager.getStopwatch( name );
+		this.next = next;
+
+		CsapMeter.gauge( name + ACTIVE_SUFFIX, active::get );
+		CsapMeter.gauge( name + ACTIVE_SUFFIX + ".max", () -> maxActive.getAndSet( active.get() ) );
+
+		isAsyncMethod = AnnotationUtils.findAnnotation( method, Async.class ) != null
+				|| AnnotationUtils.findAnnotation( targetClass, Async.class ) != null;
+
+		int initialRate = sampling.initialRate( prefix );
+		isAdaptive = initialRate == 0;
+		isSampling = initialRate != 1;
+		setSampleRate( Math.max( 1, initialRate ) );
+	}
+
+	public static MonitorHandle lookup ( ProceedingJoinPoint pjp, String desc ) {
+
+		Method method = ((MethodSignature) pjp.getSignature()).getMethod();
+		Class<?> targetClass = pjp.getTarget().getClass();
+
+		for ( MonitorHandle handle = handles.get( method ); handle != null; handle = handle.next ) {
+			if ( handle.targetClass == targetClass && handle.desc.equals( desc ) ) {
+				return handle;
+			}
+		}
+
+		return register( method, targetClass, desc );
+	}
+
+	private static synchronized MonitorHandle register ( Method method, Class<?> targetClass, String desc ) {
+
+		MonitorHandle first = handles.get( method );
+		for ( MonitorHandle handle = first; handle != null; handle = handle.next ) {
+			if ( handle.targetClass == targetClass && handle.desc.equals( desc ) ) {
+				return handle;
+			}
+		}
+
+		String name;
+		String prefix = desc;
+		if ( desc.equals( CSAP_MONITOR ) ) {
+			prefix = CsapPerformance.monitorPrefix( targetClass );
+			name = CsapPerformance.monitorTimerName( targetClass, method.getName() );
+		} else {
+			name = desc + targetClass.getSimpleName() + "." + method.getName() + "()";
+		}
+
+		MonitorHandle handle = new MonitorHandle( targetClass, method, desc, name, prefix, first );
+		handles.put( method, handle );
+		handlesByName.put( name, handle );
+
+		if ( handle.isAdaptive ) {
+			sampling.addAdaptive( handle );
+		}
+
+		logger.debug( "Registered: {}", name );
+		return handle;
+	}
+
+	/**
+	 * Handles are resolved again on next use; called by SimonListener when
+	 * simons are cleared or destroyed
+	 */
+	public static synchronized void clear () {
+		handles.clear();
+		handlesByName.clear();
+		exceptionMeters.clear();
+		sampling.clearAdaptive();
+	}
+
+	/**
+	 *
+	 * Cached stopwatches would otherwise be detached from the manager: updated,
+	 * but no longer reported
+	 */
+	static class SimonListener extends CallbackSkeleton {
+
+		@Override
+		public void onManagerClear () {
+			logger.debug( "Simon manager cleared, monitor handles: {}", size() );
+			clear();
+		}
+
+		@Override
+		public void onSimonDestroyed ( Simon simon ) {
+			if ( isHandleSimon( simon.getName() ) ) {
+				logger.debug( "Monitored simon destroyed: {}", simon.getName() );
+				clear();
+			}
+		}
+	}
+
+	private static boolean isHandleSimon ( String simonName ) {
+
+		if ( simonName == null ) {
+			return false;
+		}
+
+		for ( String suffix : new String[] { FAILED_SUFFIX, QUEUED_SUFFIX, ACTIVE_SUFFIX } ) {
+			if ( simonName.endsWith( suffix ) ) {
+				simonName = simonName.substring( 0, simonName.length() - suffix.length() );
+				break;
+			}
+		}
+
+		return handlesByName.containsKey( simonName );
+	}
+
+	public static int size () {
+		return handles.size();
+	}
+
+	/**
+	 * 
+	 * @return null if timer name is not from a monitored method
+	 */
+	public static MonitorHandle findByName ( String timerName ) {
+		return handlesByName.get( timerName );
+	}
+
+	static void setSampling ( MonitorSampling monitorSampling ) {
+		sampling = monitorSampling;
+	}
+
+	/**
+	 * 
+	 * Called on every invocation: counts are exact, true if the invocation
+	 * should be timed
+	 */
+	public boolean isSampled () {
+
+		invocations.increment();
+
+		int rate = effectiveRate();
+		return rate <= 1 || ThreadLocalRandom.current().nextInt( rate ) == 0;
+	}
+
+	private int effectiveRate () {
+		return (int) Math.min( Integer.MAX_VALUE, (long) sampleRate * degradeFactor );
+	}
+
+	public static int getDegradeFactor () {
+		return degradeFactor;
+	}
+
+	/**
+	 * 
+	 * Used by the instrumentation overhead budget; stopwatch sample rates are
+	 * updated so counts are extrapolated
+	 */
+	public static void setDegradeFactor ( int factor ) {
+
+		degradeFactor = Math.max( 1, factor );
+
+		for ( MonitorHandle handle : handlesByName.values() ) {
+			handle.updateRateAttributes();
+		}
+	}
+
+	/**
+	 * adaptive: rate so that targetPerSecond calls are timed
+	 */
+	void adjustSampleRate ( int targetPerSecond ) {
+
+		long total = invocations.sum();
+		long lastSecond = total - invocationsAtAdjust;
+		invocationsAtAdjust = total;
+
+		int rate = (int) Math.min( Integer.MAX_VALUE, Math.max( 1, (lastSecond + targetPerSecond - 1) / targetPerSecond ) );
+		if ( rate != sampleRate ) {
+			setSampleRate( rate );
+		}
+	}
+
+	private void setSampleRate ( int rate ) {
+		sampleRate = rate;
+		updateRateAttributes();
+	}
+
+	// used to extrapolate stopwatch counts
+	private void updateRateAttributes () {
+
+		if ( isSampling() ) {
+			int rate = effectiveRate();
+			stopwatch.setAttribute( SAMPLE_RATE_ATTRIBUTE, rate );
+			if ( failedStopwatch != null ) {
+				failedStopwatch.setAttribute( SAMPLE_RATE_ATTRIBUTE, rate );
+			}
+		} else {
+			stopwatch.removeAttribute( SAMPLE_RATE_ATTRIBUTE );
+			if ( failedStopwatch != null ) {
+				failedStopwatch.removeAttribute( SAMPLE_RATE_ATTRIBUTE );
+			}
+		}
+	}
+
+	public int getSampleRate () {
+		return effectiveRate();
+	}
+
+	/**
+	 * 
+	 * @return true if latency is sampled, including when degraded by the
+	 *         overhead budget; stopwatch counts are not exact
+	 */
+	public boolean isSampling () {
+		return isSampling || degradeFactor > 1;
+	}
+
+	/**
+	 * 
+	 * Every invocation, timed or not: splits are detached so the stopwatch
+	 * active count is not updated. No locks: simon counters are only updated
+	 * by the publisher.
+	 */
+	public void enter () {
+
+		long current = active.incrementAndGet();
+
+		long max;
+		while (current > (max = maxActive.get())) {
+			if ( maxActive.compareAndSet( max, current ) ) {
+				break;
+			}
+		}
+	}
+
+	public void exit () {
+		active.decrementAndGet();
+	}
+
+	/**
+	 * @return calls in progress
+	 */
+	public long getActive () {
+		return active.get();
+	}
+
+	/**
+	 * @return all invocations, including failures and calls not timed
+	 */
+	public long getInvocations () {
+		return invocations.sum();
+	}
+
+	public String getName () {
+		return name;
+	}
+
+	public Stopwatch getStopwatch () {
+		return stopwatch;
+	}
+
+	/**
+	 * @return name.failed - split time of invocations that threw
+	 */
+	public Stopwatch getFailedStopwatch () {
+
+		Stopwatch failed = failedStopwatch;
+		if ( failed == null ) {
+			failed = SimonManager.getStopwatch( name + FAILED_SUFFIX );
+			if ( isSampling() ) {
+				failed.setAttribute( SAMPLE_RATE_ATTRIBUTE, effectiveRate() );
+			}
+			failedStopwatch = failed;
+		}
+
+		return failed;
+	}
+
+	public final static String FAILED_SUFFIX = ".failed";
+	public final static String QUEUED_SUFFIX = ".queued";
+	public final static String ACTIVE_SUFFIX = ".active";
+
+	private volatile CsapMeter allocatedMeter = null;
+
+	/**
+	 * 
+	 * name.allocated: bytes allocated on the calling thread by a timed call
+	 */
+	public void recordAllocated ( long startBytes ) {
+
+		if ( startBytes == AllocationTracker.NOT_TRACKED ) {
+			return;
+		}
+
+		CsapMeter allocated = allocatedMeter;
+		if ( allocated == null ) {
+			allocated = CsapMeter.get( name + AllocationTracker.SUFFIX );
+			allocatedMeter = allocated;
+		}
+		AllocationTracker.record( allocated, startBytes );
+	}
+
+	/**
+	 *
+	 * @Async method running in an executor instrumented by ExecutorMetrics:
+	 * time from submit to start is added to name.queued
+	 */
+	public void recordQueued () {
+
+		if ( !isAsyncMethod ) {
+			return;
+		}
+
+		long waitNanos = ExecutorMetrics.takeTaskWait();
+		if ( waitNanos < 0 ) {
+			return;
+		}
+
+		Stopwatch queued = queuedStopwatch;
+		if ( queued == null ) {
+			queued = SimonManager.getStopwatch( name + QUEUED_SUFFIX );
+			queuedStopwatch = queued;
+		}
+		queued.addSplit( Split.create( waitNanos ) );
+	}
+
+	/**
+	 *
+	 * Asynchronous results: split is recorded when the result completes rather
+	 * than when the method returns, as a failure if it completes exceptionally.
+	 * DeferredResult and WebAsyncTask callbacks are left to the application:
+	 * they are recorded by {@link AsyncCompletion}.
+	 *
+	 * @return false if the split was not recorded and completion is not
+	 *         observed: caller records the hand off time
+	 */
+	public boolean recordOnCompletion ( Split split, Object result ) {
+
+		if ( result instanceof Future && ((Future<?>) result).isDone() ) {
+			record( split, failureOf( (Future<?>) result ) );
+			return true;
+		}
+
+		if ( result instanceof CompletionStage ) {
+			((CompletionStage<?>) result).whenComplete( ( value, failure ) -> record( split, unwrap( failure ) ) );
+			return true;
+		}
+
+		if ( result instanceof ListenableFuture ) {
+			((ListenableFuture<?>) result).addCallback(
+				value -> record( split, null ),
+				failure -> record( split, failure ) );
+			return true;
+		}
+
+		if ( result instanceof DeferredResult ) {
+			DeferredResult<?> deferred = (DeferredResult<?>) result;
+			if ( deferred.isSetOrExpired() ) {
+				Object value = deferred.getResult();
+				record( split, value instanceof Throwable ? (Throwable) value : null );
+				return true;
+			}
+			return AsyncCompletion.add( deferred, this, split );
+		}
+
+		if ( result instanceof WebAsyncTask ) {
+			return AsyncCompletion.add( ((WebAsyncTask<?>) result).getCallable(), this, split );
+		}
+
+		// other Future types cannot be observed: hand off time is recorded
+		return false;
+	}
+
+	private static Throwable unwrap ( Throwable failure ) {
+		if ( failure instanceof CompletionException && failure.getCause() != null ) {
+			return failure.getCause();
+		}
+		return failure;
+	}
+
+	/**
+	 * @return null if the completed future succeeded
+	 */
+	private static Throwable failureOf ( Future<?> completed ) {
+
+		try {
+			completed.get();
+			return null;
+		} catch (ExecutionException e) {
+			return e.getCause() != null ? e.getCause() : e;
+		} catch (CancellationException e) {
+			return e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return e;
+		}
+	}
+
+	/**
+	 *
+	 * Split is added to the success or failed stopwatch; failures also
+	 * increment csap.exception and the exception type counter
+	 *
+	 */
+	public void record ( Split split, Throwable failure ) {
+
+		split.stop();
+
+		if ( failure == null ) {
+			stopwatch.addSplit( split );
+			return;
+		}
+
+		getFailedStopwatch().addSplit( split );
+		recordFailure( failure );
+	}
+
+	/**
+	 * exception counters are exact: updated for calls not timed
+	 */
+	public void recordFailure ( Throwable failure ) {
+
+		exceptionMeter.increment();
+		exceptionMeters.computeIfAbsent( failure.getClass(), MonitorHandle::exceptionMeter ).increment();
+	}
+
+	private static CsapMeter exceptionMeter ( Class<?> exceptionClass ) {
+
+		if ( exceptionClass == NullPointerException.class ) {
+			return CsapMeter.get( CsapGlobalId.NULL_EXCEPTION.id );
+		}
+
+		return CsapMeter.get( CsapGlobalId.EXCEPTION.id + "." + exceptionClass.getSimpleName() );
+	}
+
+}
@@ -0,0 +1,139 @@
+package org.csap.integations;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * csap.performance.sampling: latency sampling for monitored methods. Modes:
+ * none (every call timed), N (1 in N calls timed), adaptive (rate adjusted
+ * every second so at most adaptive-target-per-second calls are timed).
+ *
+ * adaptive bounds timed calls, a proxy for overhead per method; it does not
+ * measure overhead. The overhead budget is enforced by InstrumentationOverhead
+ * (csap.performance.overhead.budget-percent), which degrades every rate,
+ * adaptive or fixed, while measured request overhead exceeds it.
+ *
+ * mode applies to all monitors; prefixes overrides by @CsapMonitor prefix or
+ * aspect description (eg. jms.). Invocation counts are always exact, and
+ * include failures.
+ *
+ * @author pnightin
+ *
+ */
+public class MonitorSampling {
+
+	final static Logger logger = LoggerFactory.getLogger( MonitorSampling.class );
+
+	public final static String NONE = "none";
+	public final static String ADAPTIVE = "adaptive";
+
+	private String mode = NONE;
+	private Map<String, String> prefixes = new HashMap<>();
+	private int adaptiveTargetPerSecond = 1000;
+
+	private List<MonitorHandle> adaptiveHandles = new CopyOnWriteArrayList<>();
+	private ScheduledExecutorService adaptiveExecutor = null;
+
+	/**
+	 *
+	 * @return fixed rate, 1 for none; 0 for adaptive
+	 */
+	public int initialRate ( String prefix ) {
+
+		String prefixMode = prefixes.getOrDefault( prefix, mode ).trim().toLowerCase();
+
+		if ( prefixMode.equals( NONE ) ) {
+			return 1;
+		}
+
+		if ( prefixMode.equals( ADAPTIVE ) ) {
+			return 0;
+		}
+
+		try {
+			return Math.max( 1, Integer.parseInt( prefixMode ) );
+		} catch (NumberFormatException e) {
+			logger.warn( "Invalid sampling mode for {}: {} - using none", prefix, prefixMode );
+			return 1;
+		}
+	}
+
+	public synchronized void addAdaptive ( MonitorHandle handle ) {
+
+		adaptiveHandles.add( handle );
+
+		if ( adaptiveExecutor == null ) {
+			BasicThreadFactory adaptiveFactory = new BasicThreadFactory.Builder()
+				.namingPattern( MonitorSampling.class.getSimpleName() + "-%d" )
+				.daemon( true )
+				.priority( Thread.NORM_PRIORITY )
+				.build();
+
+			adaptiveExecutor = Executors.newSingleThreadScheduledExecutor( adaptiveFactory );
+			adaptiveExecutor.scheduleAtFixedRate( this::adjustRates, 1, 1, TimeUnit.SECONDS );
+		}
+	}
+
+	/**
+	 * handles are registered again on next use
+	 */
+	public void clearAdaptive () {
+		adaptiveHandles.clear();
+	}
+
+	private void adjustRates () {
+		try {
+			for ( MonitorHandle handle : adaptiveHandles ) {
+				handle.adjustSampleRate( adaptiveTargetPerSecond );
+			}
+		} catch (Exception e) {
+			logger.error( "Failed adjusting sample rates", e );
+		}
+	}
+
+	public synchronized void shutdown () {
+		if ( adaptiveExecutor != null ) {
+			adaptiveExecutor.shutdownNow();
+		}
+	}
+
+	public String getMode () {
+		return mode;
+	}
+
+	public void setMode ( String mode ) {
+		this.mode = mode;
+	}
+
+	public Map<String, String> getPrefixes () {
+		return prefixes;
+	}
+
+	public void setPrefixes ( Map<String, String> prefixes ) {
+		this.prefixes = prefixes;
+	}
+
+	public int getAdaptiveTargetPerSecond () {
+		return adaptiveTargetPerSecond;
+	}
+
+	public void setAdaptiveTargetPerSecond ( int adaptiveTargetPerSecond ) {
+		this.adaptiveTargetPerSecond = Math.max( 1, adaptiveTargetPerSecond );
+	}
+
+	@Override
+	public String toString () {
+		return "mode: " + mode + ", prefixes: " + prefixes + ", adaptive target: " + adaptiveTargetPerSecond + "/s";
+	}
+
+}
@@ -0,0 +1,285 @@
+package org.csap.integations;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.csap.alerts.AlertProcessor;
+import org.csap.alerts.CsapMeter;
+import org.javasimon.SimonManager;
+import org.javasimon.Split;
+import org.javasimon.Stopwatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.servlet.HandlerMapping;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+/**
+ *
+ * csap.performance.routes: http timers named by the matched route rather than
+ * the url, eg. GET /api/job/{id} is http.route.GET.api.job.&lt;id&gt;
+ *
+ * The route stopwatch is started when the handler is resolved, so simon
+ * active and max active give concurrent requests per route. Completed requests
+ * are also added to route.2xx, route.4xx, ... and the route latency histogram;
+ * bytes allocated by the request thread to route.allocated.
+ *
+ * Names are computed once per method and pattern; routes beyond maxRoutes use
+ * http.route.other.
+ *
+ * @author pnightin
+ *
+ */
+public class RouteMetrics {
+
+	final static Logger logger = LoggerFactory.getLogger( RouteMetrics.class );
+
+	public final static String PREFIX = "http.route.";
+	public final static String OTHER = PREFIX + "other";
+	public final static String UNMATCHED = "UNMATCHED";
+
+	private final static String SPLIT_ATTRIBUTE = RouteMetrics.class.getName() + ".split";
+
+	private static volatile RouteMetrics activeRoutes = null;
+
+	private boolean enabled = true;
+	private int maxRoutes = 500;
+
+	private AlertProcessor alertProcessor = null;
+
+	// pattern, then http method
+	private final Map<String, Map<String, Route>> routes = new ConcurrentHashMap<>();
+	private volatile int routeCount = 0;
+	private Route otherRoute = null;
+
+	/**
+	 * Called once settings are bound
+	 */
+	public synchronized void activate ( AlertProcessor alertProcessor ) {
+		this.alertProcessor = alertProcessor;
+		if ( enabled ) {
+			otherRoute = new Route( OTHER );
+			activeRoutes = this;
+		} else {
+			activeRoutes = null;
+		}
+	}
+
+	public static RouteMetrics getActive () {
+		return activeRoutes;
+	}
+
+	/**
+	 *
+	 * Timers for one method and pattern
+	 *
+	 */
+	private class Route {
+
+		final Stopwatch stopwatch;
+		final String[] statusNames = new String[6];
+		// created on first response with the status class
+		final Stopwatch[] statusStopwatches = new Stopwatch[6];
+		final String allocatedName;
+
+		Route( String name ) {
+			stopwatch = SimonManager.getStopwatch( name );
+			for ( int statusClass = 1; statusClass <= 5; statusClass++ ) {
+				statusNames[statusClass] = name + "." + statusClass + "xx";
+			}
+			statusNames[0] = name + ".unknown";
+			allocatedName = name + AllocationTracker.SUFFIX;
+
+			if ( alertProcessor != null ) {
+				alertProcessor.registerLatency( name );
+			}
+		}
+
+		void complete ( Split split, int status ) {
+
+			int statusClass = status / 100;
+			if ( statusClass < 1 || statusClass > 5 ) {
+				statusClass = 0;
+			}
+
+			Stopwatch statusStopwatch = statusStopwatches[statusClass];
+			if ( statusStopwatch == null ) {
+				// same stopwatch if resolved concurrently
+				statusStopwatch = SimonManager.getStopwatch( statusNames[statusClass] );
+				statusStopwatches[statusClass] = statusStopwatch;
+			}
+			statusStopwatch.addSplit( Split.create( split.runningFor() ) );
+		}
+	}
+
+	private Route route ( String method, String pattern ) {
+
+		Map<String, Route> methodRoutes = routes.get( pattern );
+		if ( methodRoutes != null ) {
+			Route route = methodRoutes.get( method );
+			if ( route != null ) {
+				return route;
+			}
+		}
+
+		return addRoute( method, pattern );
+	}
+
+	private synchronized Route addRoute ( String method, String pattern ) {
+
+		Map<String, Route> methodRoutes = routes.computeIfAbsent( pattern, p -> new ConcurrentHashMap<>() );
+		Route route = methodRoutes.get( method );
+		if ( route != null ) {
+			return route;
+		}
+
+		if ( routeCount >= maxRoutes ) {
+			logger.debug( "Maximum routes reached: {}, using {} for {} {}", maxRoutes, OTHER, method, pattern );
+			return otherRoute;
+		}
+
+		route = new Route( routeName( method, pattern ) );
+		methodRoutes.put( method, route );
+		routeCount++;
+
+		return route;
+	}
+
+	/**
+	 * simon names do not allow / or {}
+	 */
+	public static String routeName ( String method, String pattern ) {
+
+		StringBuilder name = new StringBuilder( PREFIX.length() + method.length() + pattern.length() + 1 );
+		name.append( PREFIX ).append( method );
+
+		String path = pattern;
+		while (path.startsWith( "/" )) {
+			path = path.substring( 1 );
+		}
+		if ( path.isEmpty() ) {
+			path = "root";
+		}
+
+		name.append( '.' );
+		for ( int i = 0; i < path.length(); i++ ) {
+			char c = path.charAt( i );
+			if ( c == '/' ) {
+				name.append( '.' );
+			} else if ( c == '{' ) {
+				name.append( '<' );
+			} else if ( c == '}' ) {
+				name.append( '>' );
+			} else if ( Character.isLetterOrDigit( c ) || c == '-' || c == '_' || c == '.' ) {
+				name.append( c );
+			} else {
+				name.append( '_' );
+			}
+		}
+
+		return name.toString();
+	}
+
+	/**
+	 *
+	 * Requests timed outside of spring mvc, eg. jersey resource templates
+	 */
+	public void record ( String method, String pattern, int status, long nanos ) {
+
+		Route route = route( method, pattern );
+		Split split = Split.create( nanos );
+		route.stopwatch.addSplit( split );
+		route.complete( split, status );
+	}
+
+	public int getRouteCount () {
+		return routeCount;
+	}
+
+	/**
+	 *
+	 * Spring mvc: pattern is HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE
+	 *
+	 */
+	public static class RouteInterceptor extends HandlerInterceptorAdapter {
+
+		@Override
+		public boolean preHandle ( HttpServletRequest request, HttpServletResponse response, Object handler )
+				throws Exception {
+
+			RouteMetrics routeMetrics = activeRoutes;
+			if ( routeMetrics == null || request.getAttribute( SPLIT_ATTRIBUTE ) != null ) {
+				// disabled, or async dispatch of a request already timed
+				return true;
+			}
+
+			Object pattern = request.getAttribute( HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE );
+			Route route = routeMetrics.route(
+				request.getMethod(),
+				pattern == null ? UNMATCHED : pattern.toString() );
+
+			request.setAttribute( SPLIT_ATTRIBUTE, new RouteSplit( route, route.stopwatch.start(), AllocationTracker.start() ) );
+
+			return true;
+		}
+
+		@Override
+		public void afterCompletion ( HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex )
+				throws Exception {
+
+			Object routeSplit = request.getAttribute( SPLIT_ATTRIBUTE );
+			if ( routeSplit instanceof RouteSplit ) {
+				request.removeAttribute( SPLIT_ATTRIBUTE );
+				((RouteSplit) routeSplit).complete( ex == null ? response.getStatus() : 500 );
+			}
+		}
+	}
+
+	private static class RouteSplit {
+
+		final Route route;
+		final Split split;
+
+		// allocations are only counted when completed on the same thread
+		final long allocatedStart;
+		final long threadId = Thread.currentThread().getId();
+
+		RouteSplit( Route route, Split split, long allocatedStart ) {
+			this.route = route;
+			this.split = split;
+			this.allocatedStart = allocatedStart;
+		}
+
+		void complete ( int status ) {
+			split.stop();
+			route.complete( split, status );
+			if ( allocatedStart != AllocationTracker.NOT_TRACKED && threadId == Thread.currentThread().getId() ) {
+				AllocationTracker.record( CsapMeter.get( route.allocatedName ), allocatedStart );
+			}
+		}
+	}
+
+	public boolean isEnabled () {
+		return enabled;
+	}
+
+	public void setEnabled ( boolean enabled ) {
+		this.enabled = enabled;
+	}
+
+	public int getMaxRoutes () {
+		return maxRoutes;
+	}
+
+	public void setMaxRoutes ( int maxRoutes ) {
+		this.maxRoutes = maxRoutes;
+	}
+
+	@Override
+	public String toString () {
+		return "enabled: " + enabled + ", max routes: " + maxRoutes;
+	}
+
+}
@@ -0,0 +1,589 @@
+package org.csap.integations;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.csap.helpers.HotThreadSampler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ *
+ * csap.performance.profiler: sampling stack profiler. Every intervalMs the
+ * stacks of all threads (up to stackDepth frames) are added to a folded stack
+ * trie, rooted by thread pool name. Memory is bounded by maxNodes; samples
+ * beyond it are counted on the deepest existing frame, and new frames are no
+ * longer named. Frame names are built once per stack element.
+ *
+ * mode wall: all threads; mode cpu: RUNNABLE threads, excluding threads
+ * blocked in common native io waits. Stacks come from ThreadMXBean, so they
+ * are taken at safepoints and biased towards safepoint polls.
+ *
+ * Profiles run for at most maxSeconds. When alertTrigger is set (default
+ * false), a latency alert starts an alertSeconds profile, at most once per
+ * alertCooldownSeconds, sampling every alertIntervalMs: each sample is a
+ * safepoint dump of all threads, taken while the service is already slow.
+ *
+ * @author pnightin
+ *
+ */
+public class SamplingProfiler {
+
+	final static Logger logger = LoggerFactory.getLogger( SamplingProfiler.class );
+
+	public enum Mode {
+		wall, cpu
+	}
+
+	public final static String OVERHEAD = InstrumentationOverhead.COLLECTION + ".profiler";
+
+	// RUNNABLE, but waiting on io
+	private final static String[] IDLE_FRAMES = {
+			"sun.nio.ch.EPollArrayWrapper.epollWait", "sun.nio.ch.KQueueArrayWrapper.kevent0",
+			"sun.nio.ch.WindowsSelectorImpl$SubSelector.poll0", "sun.nio.ch.ServerSocketChannelImpl.accept0",
+			"java.net.PlainSocketImpl.socketAccept", "java.net.DualStackPlainSocketImpl.accept0",
+			"java.net.SocketInputStream.socketRead0" };
+
+	private final static DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern( "HH:mm:ss , MMM d" );
+
+	private static volatile SamplingProfiler activeProfiler = null;
+
+	private boolean enabled = true;
+	private Mode mode = Mode.wall;
+	private int intervalMs = 50;
+	private int stackDepth = 64;
+	private int maxNodes = 20000;
+	private int maxSeconds = 300;
+	private boolean alertTrigger = false;
+	private int alertSeconds = 10;
+	private int alertIntervalMs = 200;
+	private int alertCooldownSeconds = 300;
+
+	private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+	private ScheduledExecutorService profilerExecutor = null;
+	private ScheduledFuture<?> samplerJob = null;
+	private volatile Profile current = null;
+	private volatile Profile last = null;
+	private long lastAlertTriggerMs = 0;
+
+	private ObjectMapper jacksonMapper = new ObjectMapper();
+
+	/**
+	 * Called once settings are bound
+	 */
+	public synchronized void activate () {
+
+		if ( !enabled ) {
+			activeProfiler = null;
+			return;
+		}
+
+		BasicThreadFactory profilerFactory = new BasicThreadFactory.Builder()
+			.namingPattern( SamplingProfiler.class.getSimpleName() + "-%d" )
+			.daemon( true )
+			.priority( Thread.NORM_PRIORITY )
+			.build();
+
+		profilerExecutor = Executors.newSingleThreadScheduledExecutor( profilerFactory );
+		activeProfiler = this;
+	}
+
+	public synchronized void shutdown () {
+		activeProfiler = null;
+		if ( profilerExecutor != null ) {
+			profilerExecutor.shutdownNow();
+		}
+	}
+
+	public static SamplingProfiler getActive () {
+		return activeProfiler;
+	}
+
+	/**
+	 *
+	 * @return the started profile, null if a profile is already running
+	 */
+	public synchronized Profile start ( int seconds, Mode profileMode, int sampleIntervalMs, String trigger ) {
+
+		if ( current != null ) {
+			return null;
+		}
+
+		int duration = Math.max( 1, Math.min( maxSeconds, seconds ) );
+		int interval = Math.max( 1, sampleIntervalMs );
+		Profile profile = new Profile( profileMode, interval, duration, trigger );
+
+		current = profile;
+		samplerJob = profilerExecutor.scheduleAtFixedRate( this::sample, 0, interval, TimeUnit.MILLISECONDS );
+
+		logger.info( "Started profile: {}", profile );
+		return profile;
+	}
+
+	public Profile start ( int seconds, String trigger ) {
+		return start( seconds, mode, intervalMs, trigger );
+	}
+
+	/**
+	 *
+	 * @return the stopped profile, null if none running
+	 */
+	public synchronized Profile stop () {
+
+		Profile stopped = current;
+		if ( stopped == null ) {
+			return null;
+		}
+
+		samplerJob.cancel( false );
+		stopped.endMs = System.currentTimeMillis();
+		last = stopped;
+		current = null;
+
+		logger.info( "Completed profile: {}", stopped );
+		return stopped;
+	}
+
+	/**
+	 *
+	 * Called by AlertProcessor when a time limit is exceeded
+	 */
+	public static void onLatencyAlert ( String alertId ) {
+
+		SamplingProfiler profiler = activeProfiler;
+		if ( profiler == null || !profiler.alertTrigger ) {
+			return;
+		}
+
+		synchronized (profiler) {
+			long now = System.currentTimeMillis();
+			if ( now - profiler.lastAlertTriggerMs < TimeUnit.SECONDS.toMillis( profiler.alertCooldownSeconds ) ) {
+				return;
+			}
+			if ( profiler.start( profiler.alertSeconds, profiler.mode, profiler.alertIntervalMs, "alert: " + alertId ) != null ) {
+				profiler.lastAlertTriggerMs = now;
+			}
+		}
+	}
+
+	private void sample () {
+
+		Profile profile = current;
+		if ( profile == null ) {
+			return;
+		}
+
+		long[] overhead = InstrumentationOverhead.startCycle();
+		try {
+			if ( System.currentTimeMillis() >= profile.startMs + TimeUnit.SECONDS.toMillis( profile.durationSeconds ) ) {
+				stop();
+				return;
+			}
+
+			long samplerId = Thread.currentThread().getId();
+			ThreadInfo[] infos = threadBean.getThreadInfo( threadBean.getAllThreadIds(), stackDepth );
+
+			for ( ThreadInfo info : infos ) {
+				if ( info == null || info.getThreadId() == samplerId ) {
+					continue;
+				}
+				if ( profile.mode == Mode.cpu && !isOnCpu( info ) ) {
+					continue;
+				}
+				profile.add( HotThreadSampler.poolName( info.getThreadName() ), info.getStackTrace() );
+			}
+			profile.samples++;
+
+		} catch (Exception e) {
+			logger.error( "Failed taking profile sample", e );
+		} finally {
+			InstrumentationOverhead.endCycle( overhead, OVERHEAD );
+		}
+	}
+
+	private boolean isOnCpu ( ThreadInfo info ) {
+
+		if ( info.getThreadState() != Thread.State.RUNNABLE ) {
+			return false;
+		}
+
+		StackTraceElement[] stack = info.getStackTrace();
+		if ( stack.length == 0 ) {
+			return false;
+		}
+
+		String top = stack[0].getClassName() + "." + stack[0].getMethodName();
+		for ( String idle : IDLE_FRAMES ) {
+			if ( top.equals( idle ) ) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 *
+	 * Folded stack trie: nodes are array indexes, node 0 is the root
+	 *
+	 */
+	public class Profile {
+
+		final Mode mode;
+		final int intervalMs;
+		final int durationSeconds;
+		final String trigger;
+		final long startMs = System.currentTimeMillis();
+		volatile long endMs = 0;
+		volatile int samples = 0;
+
+		private final List<String> frames = new ArrayList<>();
+		private final Map<String, Integer> frameIds = new HashMap<>();
+		private final Map<StackTraceElement, Integer> elementFrames = new HashMap<>();
+
+		private int size = 1;
+		private int[] parents = new int[1024];
+		private int[] nodeFrames = new int[1024];
+		private int[] firstChild = new int[1024];
+		private int[] nextSibling = new int[1024];
+		private long[] selfCounts = new long[1024];
+		private long truncated = 0;
+		private long stacks = 0;
+
+		Profile( Mode mode, int intervalMs, int durationSeconds, String trigger ) {
+			this.mode = mode;
+			this.intervalMs = intervalMs;
+			this.durationSeconds = durationSeconds;
+			this.trigger = trigger;
+			parents[0] = -1;
+			nodeFrames[0] = frameId( "all", true );
+			firstChild[0] = -1;
+			nextSibling[0] = -1;
+		}
+
+		/**
+		 * @return -1 if frame is new and not allowed
+		 */
+		private int frameId ( String frame, boolean isNewAllowed ) {
+			Integer id = frameIds.get( frame );
+			if ( id == null ) {
+				if ( !isNewAllowed ) {
+					return -1;
+				}
+				id = frames.size();
+				frames.add( frame );
+				frameIds.put( frame, id );
+			}
+			return id;
+		}
+
+		/**
+		 * elements of the same method, different lines, share the frame
+		 */
+		private int frameId ( StackTraceElement element, boolean isNewAllowed ) {
+			Integer id = elementFrames.get( element );
+			if ( id == null ) {
+				if ( !isNewAllowed ) {
+					return -1;
+				}
+				id = frameId( element.getClassName() + "." + element.getMethodName(), true );
+				elementFrames.put( element, id );
+			}
+			return id;
+		}
+
+		synchronized void add ( String pool, StackTraceElement[] stack ) {
+
+			stacks++;
+			int node = child( 0, frameId( pool, size < maxNodes ) );
+			// stack[0] is the leaf
+			for ( int i = stack.length - 1; i >= 0 && node >= 0; i-- ) {
+				int next = child( node, frameId( stack[i], size < maxNodes ) );
+				if ( next < 0 ) {
+					truncated++;
+					break;
+				}
+				node = next;
+			}
+
+			selfCounts[Math.max( 0, node )]++;
+		}
+
+		/**
+		 * Children are a linked list, most recently found first
+		 *
+		 * @return -1 if frameId is -1 or maxNodes reached
+		 */
+		private int child ( int parent, int frameId ) {
+
+			if ( frameId < 0 ) {
+				return -1;
+			}
+
+			int previous = -1;
+			for ( int node = firstChild[parent]; node >= 0; previous = node, node = nextSibling[node] ) {
+				if ( nodeFrames[node] == frameId ) {
+					if ( previous >= 0 ) {
+						nextSibling[previous] = nextSibling[node];
+						nextSibling[node] = firstChild[parent];
+						firstChild[parent] = node;
+					}
+					return node;
+				}
+			}
+
+			if ( size >= maxNodes ) {
+				return -1;
+			}
+
+			if ( size == parents.length ) {
+				int capacity = Math.min( maxNodes, size * 2 );
+				parents = Arrays.copyOf( parents, capacity );
+				nodeFrames = Arrays.copyOf( nodeFrames, capacity );
+				firstChild = Arrays.copyOf( firstChild, capacity );
+				nextSibling = Arrays.copyOf( nextSibling, capacity );
+				selfCounts = Arrays.copyOf( selfCounts, capacity );
+			}
+
+			int node = size++;
+			parents[node] = parent;
+			nodeFrames[node] = frameId;
+			firstChild[node] = -1;
+			nextSibling[node] = firstChild[parent];
+			firstChild[parent] = node;
+
+			return node;
+		}
+
+		/**
+		 *
+		 * Collapsed stacks: root;frame;frame count - one line per stack
+		 */
+		public synchronized void writeFolded ( Writer out )
+				throws IOException {
+
+			StringBuilder path = new StringBuilder();
+			int[] chain = new int[stackDepth + 2];
+			for ( int node = 1; node < size; node++ ) {
+				if ( selfCounts[node] == 0 ) {
+					continue;
+				}
+
+				int depth = 0;
+				for ( int n = node; n > 0 && depth < chain.length; n = parents[n] ) {
+					chain[depth++] = n;
+				}
+
+				path.setLength( 0 );
+				for ( int i = depth - 1; i >= 0; i-- ) {
+					path.append( frames.get( nodeFrames[chain[i]] ) );
+					if ( i > 0 ) {
+						path.append( ';' );
+					}
+				}
+				out.write( path.toString() );
+				out.write( ' ' );
+				out.write( Long.toString( selfCounts[node] ) );
+				out.write( '\n' );
+			}
+		}
+
+		/**
+		 *
+		 * d3-flame-graph format: name, value, children
+		 */
+		public synchronized ObjectNode toFlameGraph () {
+
+			long[] totals = new long[size];
+			// children always follow their parent
+			for ( int node = size - 1; node >= 0; node-- ) {
+				totals[node] += selfCounts[node];
+				if ( parents[node] >= 0 ) {
+					totals[parents[node]] += totals[node];
+				}
+			}
+
+			return flameNode( 0, totals );
+		}
+
+		private ObjectNode flameNode ( int node, long[] totals ) {
+
+			ObjectNode nodeJson = jacksonMapper.createObjectNode();
+			nodeJson.put( "name", frames.get( nodeFrames[node] ) );
+			nodeJson.put( "value", totals[node] );
+
+			if ( firstChild[node] >= 0 ) {
+				ArrayNode childrenJson = nodeJson.putArray( "children" );
+				for ( int child = firstChild[node]; child >= 0; child = nextSibling[child] ) {
+					childrenJson.add( flameNode( child, totals ) );
+				}
+			}
+
+			return nodeJson;
+		}
+
+		public synchronized ObjectNode summary () {
+
+			ObjectNode summary = jacksonMapper.createObjectNode();
+			summary.put( "trigger", trigger );
+			summary.put( "mode", mode.name() );
+			summary.put( "intervalMs", intervalMs );
+			summary.put( "durationSeconds", durationSeconds );
+			summary.put( "started", format( startMs ) );
+			summary.put( "completed", endMs == 0 ? "running" : format( endMs ) );
+			summary.put( "samples", samples );
+			summary.put( "stacks", stacks );
+			summary.put( "nodes", size );
+			summary.put( "maxNodes", maxNodes );
+			summary.put( "truncatedStacks", truncated );
+
+			return summary;
+		}
+
+		private String format ( long timeMs ) {
+			return LocalDateTime.ofInstant( Instant.ofEpochMilli( timeMs ), ZoneId.systemDefault() )
+				.format( TIME_FORMAT );
+		}
+
+		@Override
+		public String toString () {
+			return "trigger: " + trigger + ", mode: " + mode + ", interval: " + intervalMs + "ms, duration: " + durationSeconds
+					+ "s, samples: " + samples + ", nodes: " + size;
+		}
+	}
+
+	public Profile getCurrent () {
+		return current;
+	}
+
+	public Profile getLast () {
+		return last;
+	}
+
+	public ObjectNode statusAsJson () {
+
+		ObjectNode status = jacksonMapper.createObjectNode();
+		status.put( "settings", toString() );
+
+		Profile running = current;
+		if ( running != null ) {
+			status.set( "current", running.summary() );
+		}
+		Profile completed = last;
+		if ( completed != null ) {
+			status.set( "last", completed.summary() );
+		}
+
+		return status;
+	}
+
+	public boolean isEnabled () {
+		return enabled;
+	}
+
+	public void setEnabled ( boolean enabled ) {
+		this.enabled = enabled;
+	}
+
+	public Mode getMode () {
+		return mode;
+	}
+
+	public void setMode ( Mode mode ) {
+		this.mode = mode;
+	}
+
+	public int getIntervalMs () {
+		return intervalMs;
+	}
+
+	public void setIntervalMs ( int intervalMs ) {
+		this.intervalMs = Math.max( 1, intervalMs );
+	}
+
+	public int getStackDepth () {
+		return stackDepth;
+	}
+
+	public void setStackDepth ( int stackDepth ) {
+		this.stackDepth = Math.max( 1, stackDepth );
+	}
+
+	public int getMaxNodes () {
+		return maxNodes;
+	}
+
+	public void setMaxNodes ( int maxNodes ) {
+		this.maxNodes = Math.max( 2, maxNodes );
+	}
+
+	public int getMaxSeconds () {
+		return maxSeconds;
+	}
+
+	public void setMaxSeconds ( int maxSeconds ) {
+		this.maxSeconds = Math.max( 1, maxSeconds );
+	}
+
+	public boolean isAlertTrigger () {
+		return alertTrigger;
+	}
+
+	public void setAlertTrigger ( boolean alertTrigger ) {
+		this.alertTrigger = alertTrigger;
+	}
+
+	public int getAlertSeconds () {
+		return alertSeconds;
+	}
+
+	public void setAlertSeconds ( int alertSeconds ) {
+		this.alertSeconds = alertSeconds;
+	}
+
+	public int getAlertIntervalMs () {
+		return alertIntervalMs;
+	}
+
+	public void setAlertIntervalMs ( int alertIntervalMs ) {
+		this.alertIntervalMs = Math.max( 1, alertIntervalMs );
+	}
+
+	public int getAlertCooldownSeconds () {
+		return alertCooldownSeconds;
+	}
+
+	public void setAlertCooldownSeconds ( int alertCooldownSeconds ) {
+		this.alertCooldownSeconds = alertCooldownSeconds;
+	}
+
+	@Override
+	public String toString () {
+		return "enabled: " + enabled + ", mode: " + mode + ", interval: " + intervalMs + "ms, stack depth: " + stackDepth
+				+ ", max nodes: " + maxNodes + ", max: " + maxSeconds + "s, alert trigger: " + alertTrigger
+				+ (alertTrigger ? " (" + alertSeconds + "s every " + alertIntervalMs + "ms, cooldown " + alertCooldownSeconds + "s)" : "");
+	}
+
+}
@@ -19,6 +19,9 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.io.FileUtils;
+import org.csap.alerts.CsapMeter;
+import org.csap.alerts.MetricCardinality;
+import org.csap.integations.InstrumentationOverhead;
 import org.jasypt.encryption.pbe.StandardPBEStringEncryptor;
 import org.javasimon.SimonManager;
 import org.javasimon.Split;
@@ -123,12 +126,28 @@ public class SpringAuthCachingFilter implements Filter {
 
 	}
 
+	// high frequency: striped meters, published to simon counters
+	private final static CsapMeter filterMeter = CsapMeter.get( "csap.security.filter" );
+	private final static CsapMeter localPassMeter = CsapMeter.get( "csap.security.filter.local.pass" );
+	private final static CsapMeter localFailMeter = CsapMeter.get( "csap.security.filter.local.fail" );
+	private final static CsapMeter cacheMeter = CsapMeter.get( "csap.security.filter.cache" );
+	private final static CsapMeter authenticateFailMeter = CsapMeter.get( "csap.security.filter.authenticate.fail" );
+	private final static CsapMeter authorizeFailMeter = CsapMeter.get( "csap.security.filter.authorize.fail" );
+	private final static CsapMeter successMeter = CsapMeter.get( "csap.security.filter.success" );
+
+	// per user: bounded, remaining users are counted in .other
+	private final static MetricCardinality authenticateFailUsers = MetricCardinality.forPrefix( "csap.security.filter.authenticate.fail." );
+	private final static MetricCardinality authorizeFailUsers = MetricCardinality.forPrefix( "csap.security.filter.authorize.fail." );
+	private final static MetricCardinality successUsers = MetricCardinality.forPrefix( "csap.security.filter.success." );
+
 	@Override
 	public void doFilter ( ServletRequest request, ServletResponse resp, FilterChain filterChain )
 			throws IOException, ServletException {
 
 		logger.debug( "Intercepted Request" );
-		SimonManager.getCounter( "csap.security.filter" ).increase();
+		InstrumentationOverhead.mark();
+		filterMeter.increment();
+		InstrumentationOverhead.accumulate();
 
 		HttpServletResponse response = (HttpServletResponse) resp;
 
@@ -160,9 +179,9 @@ public class SpringAuthCachingFilter implements Filter {
 
 				logger.debug( "Found local user: {} ", userid );
 				if ( this.localPass.equals( pass ) ) {
-					SimonManager.getCounter( "csap.security.filter.local.pass" ).increase();
+					localPassMeter.increment();
 				} else {
-					SimonManager.getCounter( "csap.security.filter.local.fail" ).increase();					
+					localFailMeter.increment();					
 					resultJson.put( "error", "Failed to authenticate local user: " + userid );
 					response.getWriter().println( jacksonMapper.writeValueAsString( resultJson ) );
 					response.setStatus( 403 );
@@ -171,7 +190,7 @@ public class SpringAuthCachingFilter implements Filter {
 
 			} else if ( isAuthorizationCached( userid, inputPass ) ) {
 
-				SimonManager.getCounter( "csap.security.filter.cache" ).increase();
+				cacheMeter.increment();
 				logger.debug( "Found Cached user: {} ", userid );
 
 			} else {
@@ -216,23 +235,29 @@ public class SpringAuthCachingFilter implements Filter {
 
 				if ( !authenticated ) {
 
-					SimonManager.getCounter( "csap.security.filter.authenticate.fail" ).increase();
-					SimonManager.getCounter( "csap.security.filter.authenticate.fail." + userid ).increase();
+					authenticateFailMeter.increment();
+					InstrumentationOverhead.mark();
+					CsapMeter.get( authenticateFailUsers.name( userid ) ).increment();
+					InstrumentationOverhead.accumulate();
 					resultJson.put( "error", "Failed to authenticate user: " + userid );
 					response.getWriter().println( jacksonMapper.writeValueAsString( resultJson ) );
 					response.setStatus( 403 );
 					return;
 				} else if ( !authorized ) {
-					SimonManager.getCounter( "csap.security.filter.authorize.fail" ).increase();
-					SimonManager.getCounter( "csap.security.filter.authorize.fail." + userid ).increase();
+					authorizeFailMeter.increment();
+					InstrumentationOverhead.mark();
+					CsapMeter.get( authorizeFailUsers.name( userid ) ).increment();
+					InstrumentationOverhead.accumulate();
 					resultJson.put( "error", "Failed to  authorized user: " + userid
 							+ " Must be a member of: " + getGroup() );
 					response.getWriter().println( jacksonMapper.writeValueAsString( resultJson ) );
 					response.setStatus( 401 );
 					return;
 				} else {
-					SimonManager.getCounter( "csap.security.filter.success" ).increase();
-					SimonManager.getCounter( "csap.security.filter.success." + userid ).increase();
+					successMeter.increment();
+					InstrumentationOverhead.mark();
+					CsapMeter.get( successUsers.name( userid ) ).increment();
+					InstrumentationOverhead.accumulate();
 					long currentTimeInMillis = System.currentTimeMillis();
 					Long result = authenticatedUsersCache.putIfAbsent( userid + "~" + inputPass,
 						currentTimeInMillis );
@@ -0,0 +1,258 @@
+package org.csap.alerts;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.internet.MimeMessage;
+
+import org.csap.alerts.AlertInstance.AlertItem;
+import org.csap.helpers.CsapSimpleCache;
+import org.csap.integations.CsapInformation;
+import org.javasimon.SimonManager;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.mail.javamail.MimeMessagePreparator;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.icegreen.greenmail.junit.GreenMailRule;
+import com.icegreen.greenmail.util.ServerSetupTest;
+
+/**
+ *
+ * AlertNotifier against an embedded smtp server: digests, queue overflow and
+ * concurrent senders. Dispatch is called directly; the scheduled dispatch is
+ * set to hours so it does not interfere.
+ *
+ * @author pnightin
+ *
+ */
+public class AlertNotifierTest {
+
+	@Rule
+	public final GreenMailRule smtpServer = new GreenMailRule( ServerSetupTest.SMTP );
+
+	private ObjectMapper jacksonMapper = new ObjectMapper();
+
+	private AlertNotifier notifier = null;
+
+	@After
+	public void shutdown () {
+		if ( notifier != null ) {
+			notifier.shutdown();
+		}
+	}
+
+	@Test
+	public void digest_email_is_sent_with_coalesced_alerts ()
+			throws Exception {
+
+		AlertSettings settings = settings( 500, 2 );
+		CsapSimpleCache emailTimer = emailTimer();
+		notifier = new AlertNotifier( settings, csapInformation(), smtpSender(), emailTimer );
+
+		notifier.submit( healthReport(), Arrays.asList( alert( "csap.limit.a" ), alert( "csap.limit.b" ) ) );
+		notifier.submit( healthReport(), Arrays.asList( alert( "csap.limit.a" ) ) );
+		notifier.dispatch();
+
+		assertThat( smtpServer.waitForIncomingEmail( 10000, 1 ) ).isTrue();
+
+		MimeMessage[] messages = smtpServer.getReceivedMessages();
+		assertThat( messages ).hasSize( 1 );
+		assertThat( messages[0].getSubject() ).isEqualTo( "CSAP Notification: junit-service - dev" );
+		assertThat( messages[0].getAllRecipients()[0].toString() ).isEqualTo( "someone@localhost" );
+
+		StringBuilder html = new StringBuilder();
+		List<String> attachments = new ArrayList<>();
+		collectParts( messages[0], html, attachments );
+
+		assertThat( html.toString() )
+			.contains( "csap.limit.a" )
+			.contains( "csap.limit.b" )
+			.contains( "1 additional alerts were merged or omitted" );
+		assertThat( attachments ).containsExactly( "report.json" );
+
+		waitForSent( 1 );
+		assertThat( notifier.getPendingCount() ).isEqualTo( 0 );
+		assertThat( notifier.getEmailsFailed() ).isEqualTo( 0 );
+	}
+
+	@Test
+	public void full_queue_drops_oldest_alerts_and_counts_them ()
+			throws Exception {
+
+		AlertSettings settings = settings( 2, 1 );
+		notifier = new AlertNotifier( settings, csapInformation(), smtpSender(), emailTimer() );
+
+		long droppedBefore = droppedCounter();
+		notifier.submit( healthReport(), Arrays.asList(
+			alert( "csap.limit.0" ), alert( "csap.limit.1" ), alert( "csap.limit.2" ),
+			alert( "csap.limit.3" ), alert( "csap.limit.4" ) ) );
+
+		assertThat( notifier.getPendingCount() ).isEqualTo( 2 );
+		assertThat( notifier.getAlertsDropped() ).isEqualTo( 3 );
+		assertThat( notifier.toJson().get( "dropped" ).asLong() ).isEqualTo( 3 );
+		assertThat( droppedCounter() - droppedBefore ).isEqualTo( 3 );
+
+		notifier.dispatch();
+		assertThat( smtpServer.waitForIncomingEmail( 10000, 1 ) ).isTrue();
+
+		StringBuilder html = new StringBuilder();
+		collectParts( smtpServer.getReceivedMessages()[0], html, new ArrayList<>() );
+
+		assertThat( html.toString() )
+			.contains( "csap.limit.3" )
+			.contains( "csap.limit.4" )
+			.doesNotContain( "csap.limit.0" );
+	}
+
+	@Test
+	public void senders_run_concurrently_up_to_email_threads ()
+			throws Exception {
+
+		CountDownLatch bothSending = new CountDownLatch( 2 );
+		CountDownLatch releaseSenders = new CountDownLatch( 1 );
+
+		// slow smtp host: sends block until released
+		JavaMailSender slowSender = mock( JavaMailSender.class );
+		doAnswer( invocation -> {
+			bothSending.countDown();
+			releaseSenders.await( 10, TimeUnit.SECONDS );
+			return null;
+		} ).when( slowSender ).send( any( MimeMessagePreparator.class ) );
+
+		AlertSettings settings = settings( 500, 2 );
+		CsapSimpleCache emailTimer = emailTimer();
+		notifier = new AlertNotifier( settings, csapInformation(), slowSender, emailTimer );
+
+		for ( int digest = 0; digest < 3; digest++ ) {
+			notifier.submit( healthReport(), Arrays.asList( alert( "csap.limit." + digest ) ) );
+			emailTimer.setLastRefreshMs( 0 );
+			notifier.dispatch();
+		}
+
+		assertThat( bothSending.await( 10, TimeUnit.SECONDS ) ).isTrue();
+		assertThat( notifier.getSending() ).isEqualTo( 2 );
+
+		// third digest deferred until a sender is free
+		assertThat( notifier.getPendingCount() ).isEqualTo( 1 );
+
+		releaseSenders.countDown();
+		waitForSent( 2 );
+
+		emailTimer.setLastRefreshMs( 0 );
+		notifier.dispatch();
+		waitForSent( 3 );
+		assertThat( notifier.getPendingCount() ).isEqualTo( 0 );
+	}
+
+	private long droppedCounter () {
+		return SimonManager.getCounter( CsapGlobalId.NOTIFY_DROPPED.id ).getCounter();
+	}
+
+	private void waitForSent ( long expected )
+			throws InterruptedException {
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (notifier.getEmailsSent() < expected && System.currentTimeMillis() < deadline) {
+			TimeUnit.MILLISECONDS.sleep( 10 );
+		}
+		assertThat( notifier.getEmailsSent() ).isEqualTo( expected );
+	}
+
+	private AlertSettings settings ( int queueSize, int emailThreads ) {
+
+		AlertSettings settings = new AlertSettings();
+		settings.getNotify().setAddresses( "someone@localhost" );
+		settings.getNotify().setEmailHost( "localhost" );
+		settings.getNotify().setEmailPort( ServerSetupTest.SMTP.getPort() );
+		settings.getNotify().setQueueSize( queueSize );
+		settings.getNotify().setEmailThreads( emailThreads );
+
+		// scheduled dispatch is not used by the tests
+		settings.getReport().setFrequency( 1 );
+		settings.getReport().setTimeUnit( TimeUnit.HOURS.name() );
+
+		return settings;
+	}
+
+	private CsapSimpleCache emailTimer () {
+		return CsapSimpleCache.builder( 0, TimeUnit.SECONDS, AlertNotifierTest.class, "junit email timer" );
+	}
+
+	private JavaMailSender smtpSender () {
+
+		JavaMailSenderImpl sender = new JavaMailSenderImpl();
+		sender.setHost( "localhost" );
+		sender.setPort( ServerSetupTest.SMTP.getPort() );
+
+		Properties properties = new Properties();
+		properties.put( "mail.smtp.timeout", 5000 );
+		properties.put( "mail.smtp.connectiontimeout", 5000 );
+		sender.setJavaMailProperties( properties );
+
+		return sender;
+	}
+
+	private CsapInformation csapInformation () {
+
+		CsapInformation csapInformation = mock( CsapInformation.class );
+		when( csapInformation.getName() ).thenReturn( "junit-service" );
+		when( csapInformation.getLifecycle() ).thenReturn( "dev" );
+		when( csapInformation.getHostName() ).thenReturn( "localhost" );
+		when( csapInformation.getLoadBalancerUrl() ).thenReturn( "http://localhost:8080" );
+		when( csapInformation.getFullHealthUrl() ).thenReturn( "http://localhost:8080/csap/health" );
+
+		return csapInformation;
+	}
+
+	private ObjectNode healthReport () {
+		ObjectNode report = jacksonMapper.createObjectNode();
+		report.put( "isHealthy", false );
+		return report;
+	}
+
+	private ObjectNode alert ( String id ) {
+
+		ObjectNode alert = jacksonMapper.createObjectNode();
+		alert.put( AlertItem.id.json, id );
+		alert.put( AlertItem.type.json, "Occurences - Max" );
+		alert.put( AlertItem.description.json, "junit alert" );
+		alert.put( AlertItem.formatedTime.json, "12:00:00 , Oct 17" );
+		alert.put( AlertItem.timestamp.json, System.currentTimeMillis() );
+		alert.put( AlertItem.count.json, 1 );
+
+		return alert;
+	}
+
+	private void collectParts ( Part part, StringBuilder html, List<String> attachments )
+			throws Exception {
+
+		if ( part.isMimeType( "multipart/*" ) ) {
+			Multipart multipart = (Multipart) part.getContent();
+			for ( int i = 0; i < multipart.getCount(); i++ ) {
+				collectParts( multipart.getBodyPart( i ), html, attachments );
+			}
+		} else if ( Part.ATTACHMENT.equalsIgnoreCase( part.getDisposition() ) ) {
+			attachments.add( part.getFileName() );
+		} else if ( part.isMimeType( "text/html" ) ) {
+			html.append( part.getContent() );
+		}
+	}
+
+}
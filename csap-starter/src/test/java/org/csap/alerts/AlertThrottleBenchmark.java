@@ -0,0 +1,120 @@
+package org.csap.alerts;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.csap.alerts.AlertInstance.AlertItem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ *
+ * AlertThrottle.add at 100 to 10k distinct alert identities: time per add
+ * should not grow with the identity count. linearScan is the previous
+ * addReport lookup - isSameId against every throttled alert - for comparison.
+ *
+ * Run main, eg. from the ide, after mvn test-compile
+ *
+ * @author pnightin
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AlertThrottleBenchmark {
+
+	@Param({ "100", "1000", "10000" })
+	int identities;
+
+	private AlertThrottle throttle;
+	private List<ObjectNode> throttled;
+	private ObjectNode[] alerts;
+
+	// random order, so lookups are not cache friendly
+	private int[] order;
+	private int next = 0;
+
+	private final long now = System.currentTimeMillis();
+
+	@Setup
+	public void setup () {
+
+		ObjectMapper jacksonMapper = new ObjectMapper();
+
+		throttle = new AlertThrottle( 3, TimeUnit.HOURS.toMillis( 1 ) );
+		throttled = new ArrayList<>( identities );
+		alerts = new ObjectNode[identities];
+
+		for ( int i = 0; i < identities; i++ ) {
+			ObjectNode alert = jacksonMapper.createObjectNode();
+			alert.put( AlertItem.id.json, "csap.health.limit." + i );
+			alert.put( AlertItem.type.json, "Occurences - Max" );
+			alert.put( AlertItem.host.json, "csap-dev01" );
+			alert.put( AlertItem.service.json, "CsapStarterDemo" );
+			alert.put( AlertItem.timestamp.json, now );
+			alerts[i] = alert;
+
+			throttle.add( alert.deepCopy(), now );
+			throttled.add( alert.deepCopy() );
+		}
+
+		Random random = new Random( 42 );
+		order = new int[identities];
+		for ( int i = 0; i < identities; i++ ) {
+			order[i] = random.nextInt( identities );
+		}
+	}
+
+	private ObjectNode nextAlert () {
+		ObjectNode alert = alerts[order[next]];
+		next = (next + 1) % identities;
+		return alert;
+	}
+
+	@Benchmark
+	public int add () {
+		throttle.add( nextAlert(), now );
+		return throttle.size();
+	}
+
+	@Benchmark
+	public ObjectNode linearScan () {
+
+		ObjectNode alert = nextAlert();
+		for ( ObjectNode candidate : throttled ) {
+			if ( AlertItem.isSameId( candidate, alert ) ) {
+				return candidate;
+			}
+		}
+
+		return null;
+	}
+
+	public static void main ( String[] args )
+			throws Exception {
+
+		new Runner( new OptionsBuilder()
+			.include( AlertThrottleBenchmark.class.getSimpleName() )
+			.build() ).run();
+	}
+
+}
@@ -0,0 +1,79 @@
+package org.csap.alerts;
+
+import java.util.concurrent.TimeUnit;
+
+import org.javasimon.SimonManager;
+import org.javasimon.Split;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ *
+ * Worst case CollectionWheel tick: every alert definition shares a 1 second
+ * interval, so each tick samples all of them. Collection stays on time while
+ * a tick takes well under the 1 second tick length.
+ *
+ * Each sample is a stopwatch sampleIncrement, as in
+ * AlertProcessor.collectAlertSample.
+ *
+ * Run main, eg. from the ide, after mvn test-compile
+ *
+ * @author pnightin
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CollectionWheelBenchmark {
+
+	@Param({ "1000", "5000" })
+	int alerts;
+
+	private CollectionWheel wheel;
+	private long tick = 0;
+
+	@Setup
+	public void setup () {
+
+		wheel = new CollectionWheel( alert -> SimonManager.getSimon( alert.getId() )
+			.sampleIncrement( alert.getSampleName() ) );
+
+		for ( int i = 0; i < alerts; i++ ) {
+			AlertInstance alert = new AlertInstance( "benchmark.wheel." + i, 0, null );
+			alert.setCollectTime( 1 );
+			alert.setCollectUnits( TimeUnit.SECONDS.name() );
+			alert.updateTimersFromUnits();
+
+			SimonManager.getStopwatch( alert.getId() ).addSplit( Split.create( 1000 ) );
+			wheel.register( alert );
+		}
+	}
+
+	@Benchmark
+	public int tick () {
+		return wheel.collectThrough( ++tick );
+	}
+
+	public static void main ( String[] args )
+			throws Exception {
+
+		new Runner( new OptionsBuilder()
+			.include( CollectionWheelBenchmark.class.getSimpleName() )
+			.build() ).run();
+	}
+
+}
@@ -0,0 +1,83 @@
+package org.csap.alerts;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.javasimon.Counter;
+import org.javasimon.SimonManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ *
+ * 64 threads updating one shared counter, as request threads do for the
+ * security filter counters. simonLookup is the previous filter code -
+ * SimonManager.getCounter( name ).increase() on every request; simonCounter
+ * uses a cached counter, so only the counter lock is measured.
+ *
+ * Run main, eg. from the ide, after mvn test-compile
+ *
+ * @author pnightin
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(64)
+@State(Scope.Benchmark)
+public class CsapMeterBenchmark {
+
+	private final static String METER_NAME = "benchmark.meter";
+	private final static String COUNTER_NAME = "benchmark.counter";
+
+	private CsapMeter meter;
+	private Counter counter;
+
+	@Setup
+	public void setup () {
+		meter = CsapMeter.get( METER_NAME );
+		counter = SimonManager.getCounter( COUNTER_NAME );
+	}
+
+	@Benchmark
+	public void meterIncrement () {
+		meter.increment();
+	}
+
+	@Benchmark
+	public void meterRecord () {
+		meter.record( ThreadLocalRandom.current().nextInt( 1000 ) );
+	}
+
+	@Benchmark
+	public Counter simonCounter () {
+		return counter.increase();
+	}
+
+	@Benchmark
+	public Counter simonLookup () {
+		return SimonManager.getCounter( COUNTER_NAME ).increase();
+	}
+
+	public static void main ( String[] args )
+			throws Exception {
+
+		new Runner( new OptionsBuilder()
+			.include( CsapMeterBenchmark.class.getSimpleName() )
+			.build() ).run();
+	}
+
+}
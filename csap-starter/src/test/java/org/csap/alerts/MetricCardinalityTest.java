@@ -0,0 +1,109 @@
+package org.csap.alerts;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Random;
+
+import org.javasimon.Counter;
+import org.javasimon.Simon;
+import org.javasimon.SimonManager;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ *
+ * MetricCardinality: limit read on use, overflow to other, and hot keys
+ * replacing cold ones with the evicted counts folded into other.
+ *
+ * Prefixes are unique per test: guards are static.
+ *
+ * @author pnightin
+ *
+ */
+public class MetricCardinalityTest {
+
+	@After
+	public void restoreDefault () {
+		MetricCardinality.setDefaultMaxNames( 100 );
+	}
+
+	@Test
+	public void limit_set_after_guard_is_created_is_used () {
+
+		MetricCardinality guard = MetricCardinality.forPrefix( "junit.lazy." );
+		MetricCardinality.setDefaultMaxNames( 2 );
+
+		assertThat( guard.name( "a" ) ).isEqualTo( "junit.lazy.a" );
+		assertThat( guard.name( "b" ) ).isEqualTo( "junit.lazy.b" );
+		assertThat( guard.name( "c" ) ).isEqualTo( "junit.lazy.other" );
+		assertThat( guard.name( "a" ) ).isEqualTo( "junit.lazy.a" );
+		assertThat( guard.getTrackedCount() ).isEqualTo( 2 );
+	}
+
+	@Test
+	public void hot_key_replaces_cold_key_and_count_is_folded_into_other () {
+
+		MetricCardinality.setDefaultMaxNames( 2 );
+		String prefix = "junit.hot.";
+		MetricCardinality guard = MetricCardinality.forPrefix( prefix );
+
+		count( guard, "a" );
+		count( guard, "b" );
+
+		// second overflow triggers the rebalance
+		assertThat( count( guard, "c" ) ).isEqualTo( prefix + MetricCardinality.OTHER );
+		assertThat( count( guard, "c" ) ).isEqualTo( prefix + MetricCardinality.OTHER );
+		assertThat( guard.getEvictions() ).isEqualTo( 1 );
+		assertThat( guard.name( "c" ) ).isEqualTo( prefix + "c" );
+
+		CsapMeter.publishAll();
+		boolean isAEvicted = SimonManager.getSimon( prefix + "a" ) == null;
+		boolean isBEvicted = SimonManager.getSimon( prefix + "b" ) == null;
+		assertThat( isAEvicted ^ isBEvicted ).isTrue();
+
+		// 2 overflows, 1 folded
+		assertThat( counter( prefix + MetricCardinality.OTHER ) ).isEqualTo( 3 );
+	}
+
+	@Test
+	public void counts_are_kept_across_evictions () {
+
+		MetricCardinality.setDefaultMaxNames( 10 );
+		String prefix = "junit.total.";
+		MetricCardinality guard = MetricCardinality.forPrefix( prefix );
+
+		// skewed keys, so hot keys rotate into the tracked set
+		Random random = new Random( 42 );
+		int calls = 20000;
+		for ( int i = 0; i < calls; i++ ) {
+			int key = (int) Math.abs( random.nextGaussian() * 20 ) + (i / 5000) * 10;
+			count( guard, "user" + key );
+		}
+
+		CsapMeter.publishAll();
+
+		assertThat( guard.getEvictions() ).isGreaterThan( 0 );
+		assertThat( guard.getTrackedCount() ).isLessThanOrEqualTo( 10 );
+
+		long total = 0;
+		for ( String name : SimonManager.getSimonNames() ) {
+			if ( name.startsWith( prefix ) ) {
+				total += counter( name );
+			}
+		}
+		assertThat( total ).isEqualTo( calls );
+	}
+
+	// as used by SpringAuthCachingFilter
+	private String count ( MetricCardinality guard, String key ) {
+		String name = guard.name( key );
+		CsapMeter.get( name ).increment();
+		return name;
+	}
+
+	private long counter ( String name ) {
+		Simon simon = SimonManager.getSimon( name );
+		return simon instanceof Counter ? ((Counter) simon).getCounter() : 0;
+	}
+
+}
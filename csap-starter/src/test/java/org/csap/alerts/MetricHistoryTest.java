@@ -0,0 +1,83 @@
+package org.csap.alerts;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.javasimon.SimonManager;
+import org.javasimon.Split;
+import org.javasimon.Stopwatch;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ *
+ * MetricHistory: stopwatch percentiles over a range are merged from the
+ * histogram deltas of each slot.
+ *
+ * @author pnightin
+ *
+ */
+public class MetricHistoryTest {
+
+	// start of a coarse slot
+	private final static long START = 1_500_000_000_000L;
+
+	@Test
+	public void percentiles_over_range_merge_slots () {
+
+		String name = "junit.history.latency";
+		Stopwatch stopwatch = SimonManager.getStopwatch( name );
+		LatencyRecorder latencyRecorder = new LatencyRecorder();
+		LatencyHistogram histogram = latencyRecorder.register( name );
+
+		MetricHistory history = new MetricHistory( new AlertSettings().new HistorySettings(), latencyRecorder );
+		history.collect( START );
+
+		// fast calls in one slot, slow calls in the next
+		record( stopwatch, histogram, 90, TimeUnit.MILLISECONDS.toNanos( 1 ) );
+		history.collect( START + TimeUnit.SECONDS.toMillis( 10 ) );
+		record( stopwatch, histogram, 10, TimeUnit.MILLISECONDS.toNanos( 500 ) );
+		history.collect( START + TimeUnit.SECONDS.toMillis( 20 ) );
+
+		ObjectNode result = history.query( name, 15 );
+
+		JsonNode summary = result.get( "summary" );
+		assertThat( summary.get( "count" ).asLong() ).isEqualTo( 100 );
+		assertThat( summary.get( "p50Ms" ).asDouble() ).isBetween( 1.0, 1.05 );
+		assertThat( summary.get( "p95Ms" ).asDouble() ).isBetween( 500.0, 520.0 );
+
+		// points: time, count, mean, max, p95
+		JsonNode slow = result.get( "points" ).get( 2 );
+		assertThat( slow.get( 1 ).asLong() ).isEqualTo( 10 );
+		assertThat( slow.get( 4 ).asDouble() ).isBetween( 500.0, 520.0 );
+	}
+
+	@Test
+	public void stopwatch_without_histogram_has_no_percentiles () {
+
+		String name = "junit.history.plain";
+		Stopwatch stopwatch = SimonManager.getStopwatch( name );
+
+		MetricHistory history = new MetricHistory( new AlertSettings().new HistorySettings(), new LatencyRecorder() );
+		history.collect( START );
+		stopwatch.addSplit( Split.create( TimeUnit.MILLISECONDS.toNanos( 5 ) ) );
+		history.collect( START + TimeUnit.SECONDS.toMillis( 10 ) );
+
+		ObjectNode result = history.query( name, 15 );
+
+		assertThat( result.get( "summary" ).get( "count" ).asLong() ).isEqualTo( 1 );
+		assertThat( result.get( "summary" ).has( "p95Ms" ) ).isFalse();
+		assertThat( result.get( "points" ).get( 1 ).size() ).isEqualTo( 4 );
+	}
+
+	private void record ( Stopwatch stopwatch, LatencyHistogram histogram, int calls, long nanos ) {
+		for ( int i = 0; i < calls; i++ ) {
+			stopwatch.addSplit( Split.create( nanos ) );
+			histogram.record( nanos );
+		}
+	}
+
+}
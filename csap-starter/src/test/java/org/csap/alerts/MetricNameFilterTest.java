@@ -0,0 +1,72 @@
+package org.csap.alerts;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+/**
+ *
+ * /csap/metrics filters: substring and * terms, and inputs that backtrack
+ * heavily with regular expressions.
+ *
+ * @author pnightin
+ *
+ */
+public class MetricNameFilterTest {
+
+	@Test
+	public void empty_filter_matches_all () {
+		assertThat( new MetricNameFilter( "" ).matches( "csap.exception" ) ).isTrue();
+		assertThat( new MetricNameFilter( " , " ).matches( "csap.exception" ) ).isTrue();
+	}
+
+	@Test
+	public void terms_match_anywhere_in_name () {
+
+		MetricNameFilter filter = new MetricNameFilter( "exception, jms." );
+
+		assertThat( filter.matches( "csap.exception.NullPointerException" ) ).isTrue();
+		assertThat( filter.matches( "jms.Listener.onMessage()" ) ).isTrue();
+		assertThat( filter.matches( "http.route.GET.api.job.2xx" ) ).isFalse();
+	}
+
+	@Test
+	public void star_matches_any_characters () {
+
+		MetricNameFilter filter = new MetricNameFilter( "http.route.*.5xx" );
+
+		assertThat( filter.matches( "http.route.GET.api.job.<id>.5xx" ) ).isTrue();
+		assertThat( filter.matches( "http.route.POST.api.5xx.2xx" ) ).isTrue();
+		assertThat( filter.matches( "http.route.GET.api.job.<id>.2xx" ) ).isFalse();
+
+		// regex characters are literal
+		assertThat( new MetricNameFilter( "job()" ).matches( "Job.job()" ) ).isTrue();
+		assertThat( new MetricNameFilter( "j.b" ).matches( "Job.job()" ) ).isFalse();
+	}
+
+	@Test
+	public void backtracking_input_is_bounded () {
+
+		StringBuilder name = new StringBuilder();
+		for ( int i = 0; i < 10000; i++ ) {
+			name.append( 'a' );
+		}
+		name.append( '!' );
+
+		long start = System.currentTimeMillis();
+		MetricNameFilter filter = new MetricNameFilter( "a*a*a*a*a*a*a*a*a*a*a*a*b, (a+)+b" );
+		assertThat( filter.matches( name.toString() ) ).isFalse();
+		assertThat( System.currentTimeMillis() - start ).isLessThan( 1000 );
+	}
+
+	@Test ( expected = IllegalArgumentException.class )
+	public void long_filters_are_rejected () {
+
+		StringBuilder filters = new StringBuilder();
+		for ( int i = 0; i <= MetricNameFilter.MAX_LENGTH; i++ ) {
+			filters.append( 'a' );
+		}
+		new MetricNameFilter( filters.toString() );
+	}
+
+}
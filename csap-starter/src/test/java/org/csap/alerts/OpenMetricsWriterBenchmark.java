@@ -0,0 +1,112 @@
+package org.csap.alerts;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.javasimon.SimonManager;
+import org.javasimon.Split;
+import org.javasimon.Stopwatch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ *
+ * /csap/metrics/openmetrics scrape of 50k series: 20k counters and 10k
+ * stopwatches, a quarter of them with latency histograms, written to a writer
+ * that only counts characters so the response is not measured.
+ *
+ * Run main, eg. from the ide, after mvn test-compile
+ *
+ * @author pnightin
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OpenMetricsWriterBenchmark {
+
+	private final static int COUNTERS = 20000;
+	private final static int STOPWATCHES = 10000;
+
+	private final LatencyRecorder latencyRecorder = new LatencyRecorder();
+
+	@Setup
+	public void setup () {
+
+		for ( int i = 0; i < COUNTERS; i++ ) {
+			SimonManager.getCounter( "benchmark.counter.user" + i ).increase( i );
+		}
+
+		// 2 series without a histogram, 6 with
+		for ( int i = 0; i < STOPWATCHES; i++ ) {
+			Stopwatch stopwatch = SimonManager.getStopwatch( "benchmark.stopwatch.route" + i );
+			stopwatch.addSplit( Split.create( TimeUnit.MILLISECONDS.toNanos( 1 + i % 100 ) ) );
+			if ( i % 4 == 0 ) {
+				latencyRecorder.register( stopwatch.getName() ).record( TimeUnit.MILLISECONDS.toNanos( 1 + i % 100 ) );
+			}
+		}
+	}
+
+	@Benchmark
+	public long scrape ()
+			throws IOException {
+
+		CountingWriter out = new CountingWriter();
+		OpenMetricsWriter writer = new OpenMetricsWriter( out, latencyRecorder );
+		writer.writeSimons();
+		writer.finish();
+
+		return out.count;
+	}
+
+	static class CountingWriter extends Writer {
+
+		long count = 0;
+
+		@Override
+		public void write ( int c ) {
+			count++;
+		}
+
+		@Override
+		public void write ( String text ) {
+			count += text.length();
+		}
+
+		@Override
+		public void write ( char[] buffer, int offset, int length ) {
+			count += length;
+		}
+
+		@Override
+		public void flush () {
+		}
+
+		@Override
+		public void close () {
+		}
+	}
+
+	public static void main ( String[] args )
+			throws Exception {
+
+		new Runner( new OptionsBuilder()
+			.include( OpenMetricsWriterBenchmark.class.getSimpleName() )
+			.build() ).run();
+	}
+
+}
@@ -0,0 +1,395 @@
+package org.csap.alerts;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.csap.helpers.JvmStatsCollector;
+import org.csap.helpers.JvmStatsCollector.CollectionResults;
+import org.javasimon.Counter;
+import org.javasimon.SimonManager;
+import org.javasimon.Split;
+import org.javasimon.Stopwatch;
+import org.junit.Test;
+
+/**
+ *
+ * /csap/metrics/openmetrics output checked by a strict parser of the
+ * OpenMetrics 1.0 text format: metadata before samples, families not
+ * interleaved or repeated, sample names valid for the family type, label and
+ * help escaping, numbers, and a single # EOF at the end.
+ *
+ * All simons registered by other tests are included in each scrape.
+ *
+ * @author pnightin
+ *
+ */
+public class OpenMetricsWriterTest {
+
+	@Test
+	public void scrape_parses_as_openmetrics ()
+			throws Exception {
+
+		Stopwatch stopwatch = SimonManager.getStopwatch( "junit.om.route.GET.api.job.<id>.2xx" );
+		stopwatch.addSplit( Split.create( TimeUnit.MILLISECONDS.toNanos( 5 ) ) );
+		stopwatch.addSplit( Split.create( TimeUnit.MILLISECONDS.toNanos( 15 ) ) );
+
+		LatencyRecorder latencyRecorder = new LatencyRecorder();
+		latencyRecorder.register( stopwatch.getName() ).record( TimeUnit.MILLISECONDS.toNanos( 5 ) );
+
+		SimonManager.getCounter( "junit.om.requests" ).increase( 3 );
+		OpenMetricsWriter.gauge( "junit.om.inflight" ).increase( 2 );
+
+		Map<String, Family> families = parse( scrape( latencyRecorder, jvmResults() ) );
+
+		Family route = families.get( "junit_om_route_GET_api_job__id__2xx_seconds" );
+		assertThat( route.type ).isEqualTo( "summary" );
+		assertThat( route.help ).endsWith( "quantiles since start" );
+		assertThat( route.value( "junit_om_route_GET_api_job__id__2xx_seconds_count" ) ).isEqualTo( 2.0 );
+		assertThat( route.value( "junit_om_route_GET_api_job__id__2xx_seconds_sum" ) ).isEqualTo( 0.02 );
+		assertThat( route.samples ).hasSize( 6 );
+
+		assertThat( families.get( "junit_om_requests" ).type ).isEqualTo( "counter" );
+		assertThat( families.get( "junit_om_requests" ).value( "junit_om_requests_total" ) ).isEqualTo( 3.0 );
+		assertThat( families.get( "junit_om_inflight" ).type ).isEqualTo( "gauge" );
+		assertThat( families.get( "junit_om_inflight" ).value( "junit_om_inflight" ) ).isEqualTo( 2.0 );
+	}
+
+	@Test
+	public void counter_type_does_not_change_when_set ()
+			throws Exception {
+
+		Counter counter = SimonManager.getCounter( "junit.om.fixed" );
+		counter.increase( 10 );
+		assertThat( parse( scrape( null, null ) ).get( "junit_om_fixed" ).type ).isEqualTo( "counter" );
+
+		counter.set( 4 );
+		Family fixed = parse( scrape( null, null ) ).get( "junit_om_fixed" );
+		assertThat( fixed.type ).isEqualTo( "counter" );
+		assertThat( fixed.value( "junit_om_fixed_total" ) ).isEqualTo( 4.0 );
+
+		// gauges are gauges even if only incremented
+		OpenMetricsWriter.gauge( "junit.om.level" ).increase();
+		assertThat( parse( scrape( null, null ) ).get( "junit_om_level" ).type ).isEqualTo( "gauge" );
+	}
+
+	@Test
+	public void jvm_totals_are_counters_and_current_values_gauges ()
+			throws Exception {
+
+		Map<String, Family> families = parse( scrape( null, jvmResults() ) );
+
+		assertThat( families.get( "csap_http_requests" ).type ).isEqualTo( "counter" );
+		assertThat( families.get( "csap_http_requests" ).value( "csap_http_requests_total" ) ).isEqualTo( 1200.0 );
+		assertThat( families.get( "csap_http_processing_milliseconds" ).value( "csap_http_processing_milliseconds_total" ) )
+			.isEqualTo( 45000.0 );
+		assertThat( families.get( "csap_jvm_gc_minor_milliseconds" ).type ).isEqualTo( "counter" );
+		assertThat( families.get( "csap_jvm_gc_minor_milliseconds" ).value( "csap_jvm_gc_minor_milliseconds_total" ) )
+			.isEqualTo( 350.0 );
+
+		assertThat( families.get( "csap_jvm_heap_used_megabytes" ).type ).isEqualTo( "gauge" );
+		assertThat( families.get( "csap_jvm_heap_used_megabytes" ).value( "csap_jvm_heap_used_megabytes" ) ).isEqualTo( 512.0 );
+
+		Family pools = families.get( "csap_jvm_pool_allocated_bytes" );
+		assertThat( pools.type ).isEqualTo( "counter" );
+		assertThat( pools.samples ).hasSize( 2 );
+		assertThat( pools.samples.get( 0 ).labels ).containsEntry( "pool", "http-nio \"8080\"" );
+	}
+
+	@Test
+	public void names_ending_in_sample_suffixes_do_not_collide ()
+			throws Exception {
+
+		// as published by a CsapMeter with recorded values
+		SimonManager.getCounter( "junit.om.meter" ).increase( 5 );
+		SimonManager.getCounter( "junit.om.meter.total" ).increase( 500 );
+		SimonManager.getCounter( "junit.om.meter.count" ).increase( 1 );
+
+		Map<String, Family> families = parse( scrape( null, null ) );
+
+		assertThat( families.get( "junit_om_meter" ).value( "junit_om_meter_total" ) ).isEqualTo( 5.0 );
+		assertThat( families.get( "junit_om_meter_total_value" ).value( "junit_om_meter_total_value_total" ) )
+			.isEqualTo( 500.0 );
+		assertThat( families ).containsKey( "junit_om_meter_count_value" );
+	}
+
+	private CollectionResults jvmResults () {
+
+		CollectionResults results = new JvmStatsCollector().new CollectionResults();
+		results.setHeapUsed( 512 );
+		results.setHeapMax( 1024 );
+		results.setMinorGcTotalMs( 350 );
+		results.setMajorGcTotalMs( 20 );
+		results.setHttpRequestTotal( 1200 );
+		results.setHttpProcessingTotalMs( 45000 );
+		results.setHttpBytesReceivedTotal( 100000 );
+		results.setHttpBytesSentTotal( 900000 );
+
+		Map<String, Long> pools = new TreeMap<>();
+		pools.put( "http-nio \"8080\"", 4096L );
+		pools.put( "scheduling", 1024L );
+		results.setPoolAllocatedBytesTotal( pools );
+
+		return results;
+	}
+
+	private String scrape ( LatencyRecorder latencyRecorder, CollectionResults jvmResults )
+			throws Exception {
+
+		StringWriter out = new StringWriter();
+		OpenMetricsWriter writer = new OpenMetricsWriter( out, latencyRecorder );
+		if ( jvmResults != null ) {
+			writer.writeJvm( jvmResults );
+		}
+		writer.writeSimons();
+		writer.finish();
+
+		return out.toString();
+	}
+
+	static class Family {
+
+		final String name;
+		String type = null;
+		String help = null;
+		final List<Sample> samples = new ArrayList<>();
+
+		Family( String name ) {
+			this.name = name;
+		}
+
+		Double value ( String sampleName ) {
+			for ( Sample sample : samples ) {
+				if ( sample.name.equals( sampleName ) ) {
+					return sample.value;
+				}
+			}
+			return null;
+		}
+	}
+
+	static class Sample {
+
+		final String name;
+		final Map<String, String> labels;
+		final double value;
+
+		Sample( String name, Map<String, String> labels, double value ) {
+			this.name = name;
+			this.labels = labels;
+			this.value = value;
+		}
+	}
+
+	private final static Pattern METRIC_NAME = Pattern.compile( "[a-zA-Z_:][a-zA-Z0-9_:]*" );
+	private final static Pattern LABEL_NAME = Pattern.compile( "[a-zA-Z_][a-zA-Z0-9_]*" );
+	private final static Pattern NUMBER = Pattern
+		.compile( "[-+]?([0-9]+(\\.[0-9]*)?|\\.[0-9]+)([eE][-+]?[0-9]+)?|[-+]?Inf|NaN" );
+
+	private final static Set<String> TYPES = new HashSet<>( Arrays.asList(
+		"counter", "gauge", "histogram", "gaugehistogram", "stateset", "info", "summary", "unknown" ) );
+
+	/**
+	 *
+	 * Strict OpenMetrics 1.0 text parser: fails on anything the spec does not
+	 * allow, or that is ambiguous to prometheus. Every family must have a TYPE.
+	 */
+	static Map<String, Family> parse ( String text ) {
+
+		require( text.endsWith( "# EOF\n" ), 0, "must end with # EOF and a newline" );
+		String[] lines = text.substring( 0, text.length() - "# EOF\n".length() ).split( "\n", -1 );
+
+		Map<String, Family> families = new LinkedHashMap<>();
+		Set<String> sampleNames = new HashSet<>();
+		Set<String> seriesWritten = new HashSet<>();
+		Family current = null;
+
+		// last element is after the final newline
+		for ( int i = 0; i < lines.length - 1; i++ ) {
+			String line = lines[i];
+			int lineNumber = i + 1;
+
+			require( !line.isEmpty(), lineNumber, "empty line" );
+			require( line.indexOf( '\r' ) < 0, lineNumber, "carriage return" );
+
+			if ( line.startsWith( "#" ) ) {
+				String[] parts = line.split( " ", 4 );
+				require( parts.length >= 3 && parts[0].equals( "#" ), lineNumber, "comment or # EOF before end: " + line );
+				String name = parts[2];
+				require( METRIC_NAME.matcher( name ).matches(), lineNumber, "family name: " + name );
+
+				if ( current == null || !current.name.equals( name ) ) {
+					require( !families.containsKey( name ), lineNumber, "family repeated or interleaved: " + name );
+					require( !sampleNames.contains( name ), lineNumber, "family name used as a sample: " + name );
+					require( current == null || !current.samples.isEmpty(), lineNumber, "family without samples: "
+							+ (current == null ? "" : current.name) );
+					current = new Family( name );
+					families.put( name, current );
+				}
+				require( current.samples.isEmpty(), lineNumber, "metadata after samples: " + line );
+
+				switch ( parts[1] ) {
+				case "TYPE":
+					require( current.type == null, lineNumber, "TYPE repeated" );
+					require( parts.length == 4 && TYPES.contains( parts[3] ), lineNumber, "type: " + line );
+					current.type = parts[3];
+					break;
+				case "HELP":
+					require( current.help == null, lineNumber, "HELP repeated" );
+					current.help = unescape( parts.length == 4 ? parts[3] : "", lineNumber, false );
+					break;
+				case "UNIT":
+					require( parts.length == 4 && name.endsWith( "_" + parts[3] ), lineNumber, "unit: " + line );
+					break;
+				default:
+					require( false, lineNumber, "unknown metadata: " + line );
+				}
+				continue;
+			}
+
+			Sample sample = parseSample( line, lineNumber );
+			require( current != null && current.type != null, lineNumber, "sample without TYPE: " + line );
+			require( isSampleOf( current, sample ), lineNumber, "sample not valid for " + current.type + " "
+					+ current.name + ": " + line );
+			require( !families.containsKey( sample.name ) || sample.name.equals( current.name ), lineNumber,
+				"sample name is another family: " + sample.name );
+			require( seriesWritten.add( sample.name + sample.labels ), lineNumber, "duplicate series: " + line );
+
+			if ( current.type.equals( "counter" ) && sample.name.endsWith( "_total" ) ) {
+				require( sample.value >= 0, lineNumber, "negative counter: " + line );
+			}
+			if ( sample.name.endsWith( "_count" ) ) {
+				require( sample.value >= 0 && sample.value == Math.rint( sample.value ), lineNumber, "count: " + line );
+			}
+
+			sampleNames.add( sample.name );
+			current.samples.add( sample );
+		}
+
+		require( current == null || !current.samples.isEmpty(), lines.length, "family without samples" );
+
+		return families;
+	}
+
+	private static boolean isSampleOf ( Family family, Sample sample ) {
+
+		String suffix = sample.name.startsWith( family.name ) ? sample.name.substring( family.name.length() ) : null;
+		if ( suffix == null ) {
+			return false;
+		}
+
+		switch ( family.type ) {
+		case "counter":
+			return (suffix.equals( "_total" ) || suffix.equals( "_created" ));
+		case "gauge":
+		case "unknown":
+			return suffix.isEmpty();
+		case "summary":
+			if ( suffix.isEmpty() ) {
+				String quantile = sample.labels.get( "quantile" );
+				if ( quantile == null ) {
+					return false;
+				}
+				double value = Double.parseDouble( quantile );
+				return value >= 0 && value <= 1;
+			}
+			return !sample.labels.containsKey( "quantile" )
+					&& (suffix.equals( "_count" ) || suffix.equals( "_sum" ) || suffix.equals( "_created" ));
+		default:
+			return false;
+		}
+	}
+
+	private static Sample parseSample ( String line, int lineNumber ) {
+
+		int position = 0;
+		while (position < line.length() && line.charAt( position ) != '{' && line.charAt( position ) != ' ') {
+			position++;
+		}
+		String name = line.substring( 0, position );
+		require( METRIC_NAME.matcher( name ).matches(), lineNumber, "metric name: " + line );
+
+		Map<String, String> labels = new TreeMap<>();
+		if ( position < line.length() && line.charAt( position ) == '{' ) {
+			position++;
+			while (line.charAt( position ) != '}') {
+				int equals = line.indexOf( '=', position );
+				require( equals > 0, lineNumber, "label: " + line );
+				String labelName = line.substring( position, equals );
+				require( LABEL_NAME.matcher( labelName ).matches(), lineNumber, "label name: " + labelName );
+				require( line.charAt( equals + 1 ) == '"', lineNumber, "label value not quoted: " + line );
+
+				StringBuilder value = new StringBuilder();
+				position = equals + 2;
+				while (line.charAt( position ) != '"') {
+					if ( line.charAt( position ) == '\\' ) {
+						value.append( line, position, position + 2 );
+						position += 2;
+					} else {
+						value.append( line.charAt( position++ ) );
+					}
+				}
+				require( labels.put( labelName, unescape( value.toString(), lineNumber, true ) ) == null, lineNumber,
+					"label repeated: " + line );
+
+				position++;
+				if ( line.charAt( position ) == ',' ) {
+					position++;
+				} else {
+					require( line.charAt( position ) == '}', lineNumber, "label separator: " + line );
+				}
+			}
+			position++;
+		}
+
+		require( position < line.length() && line.charAt( position ) == ' ', lineNumber, "value separator: " + line );
+		String[] valueAndTimestamp = line.substring( position + 1 ).split( " ", -1 );
+		require( valueAndTimestamp.length <= 2, lineNumber, "trailing fields: " + line );
+		require( NUMBER.matcher( valueAndTimestamp[0] ).matches(), lineNumber, "value: " + line );
+		if ( valueAndTimestamp.length == 2 ) {
+			require( NUMBER.matcher( valueAndTimestamp[1] ).matches(), lineNumber, "timestamp: " + line );
+		}
+
+		String number = valueAndTimestamp[0].replace( "Inf", "Infinity" );
+		return new Sample( name, labels, Double.parseDouble( number ) );
+	}
+
+	/**
+	 * only \\, \n and \" are escapes; double quotes must be escaped
+	 */
+	private static String unescape ( String escaped, int lineNumber, boolean isLabel ) {
+
+		StringBuilder text = new StringBuilder( escaped.length() );
+		for ( int i = 0; i < escaped.length(); i++ ) {
+			char c = escaped.charAt( i );
+			if ( c == '\\' ) {
+				require( i + 1 < escaped.length(), lineNumber, "dangling escape: " + escaped );
+				char next = escaped.charAt( ++i );
+				require( next == '\\' || next == 'n' || next == '"', lineNumber, "invalid escape: " + escaped );
+				text.append( next == 'n' ? '\n' : next );
+			} else {
+				require( c != '"', lineNumber, "unescaped double quote: " + escaped );
+				text.append( c );
+			}
+		}
+
+		return text.toString();
+	}
+
+	private static void require ( boolean isValid, int lineNumber, String message ) {
+		if ( !isValid ) {
+			throw new AssertionError( "line " + lineNumber + ": " + message );
+		}
+	}
+
+}
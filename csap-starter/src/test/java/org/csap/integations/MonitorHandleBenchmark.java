@@ -0,0 +1,117 @@
+package org.csap.integations;
+
+import java.util.concurrent.TimeUnit;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.javasimon.SimonManager;
+import org.javasimon.Split;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.aop.aspectj.annotation.AspectJProxyFactory;
+
+/**
+ *
+ * Monitoring advice per call, through a spring aop proxy as in the starter:
+ * nameEachCall is the previous executeSimon - timer name built and stopwatch
+ * looked up on every call; cachedHandle is the current
+ * CsapPerformance.executeSimon using MonitorHandle.
+ *
+ * Run main, eg. from the ide, after mvn test-compile
+ *
+ * @author pnightin
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MonitorHandleBenchmark {
+
+	public interface Service {
+		int work ( int value );
+	}
+
+	public static class ServiceImpl implements Service {
+		@Override
+		public int work ( int value ) {
+			return value + 1;
+		}
+	}
+
+	@Aspect
+	public static class NameEachCallAspect {
+
+		@Around ( "execution(* org.csap.integations.MonitorHandleBenchmark.Service.work(..))" )
+		public Object advice ( ProceedingJoinPoint pjp )
+				throws Throwable {
+
+			String timerId = "benchmark.before." + pjp.getTarget().getClass().getSimpleName()
+					+ "." + pjp.getSignature().getName() + "()";
+
+			Split split = SimonManager.getStopwatch( timerId ).start();
+			Object obj = pjp.proceed();
+			split.stop();
+			return obj;
+		}
+	}
+
+	@Aspect
+	public static class CachedHandleAspect {
+
+		@Around ( "execution(* org.csap.integations.MonitorHandleBenchmark.Service.work(..))" )
+		public Object advice ( ProceedingJoinPoint pjp )
+				throws Throwable {
+			return CsapPerformance.executeSimon( pjp, "benchmark.after." );
+		}
+	}
+
+	private Service nameEachCall;
+	private Service cachedHandle;
+	private int value = 0;
+
+	@Setup
+	public void setup () {
+		nameEachCall = proxy( new NameEachCallAspect() );
+		cachedHandle = proxy( new CachedHandleAspect() );
+	}
+
+	private Service proxy ( Object aspect ) {
+		AspectJProxyFactory factory = new AspectJProxyFactory( new ServiceImpl() );
+		factory.addInterface( Service.class );
+		factory.addAspect( aspect );
+		return factory.getProxy();
+	}
+
+	@Benchmark
+	public int nameEachCall () {
+		return nameEachCall.work( value++ );
+	}
+
+	@Benchmark
+	public int cachedHandle () {
+		return cachedHandle.work( value++ );
+	}
+
+	public static void main ( String[] args )
+			throws Exception {
+
+		new Runner( new OptionsBuilder()
+			.include( MonitorHandleBenchmark.class.getSimpleName() )
+			.build() ).run();
+	}
+
+}